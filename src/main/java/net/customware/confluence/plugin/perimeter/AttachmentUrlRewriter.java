@@ -0,0 +1,179 @@
+/*
+ * Copyright (c) 2017, ServiceRocket Inc
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice,
+ *       this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright notice,
+ *       this list of conditions and the following disclaimer in the documentation
+ *       and/or other materials provided with the distribution.
+ *     * Neither the name of "ServiceRocket Inc" nor the names of its contributors may
+ *       be used to endorse or promote products derived from this software without
+ *       specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package net.customware.confluence.plugin.perimeter;
+
+import com.atlassian.confluence.servlet.FileServerServlet;
+import com.atlassian.confluence.util.GeneralUtil;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.Map;
+
+/**
+ * Points the attachment, thumbnail and image preview links of an included page at the secure download servlet.
+ * The rendered HTML is scanned once and can be written straight to the output; it is returned as is when it
+ * holds nothing to rewrite.
+ * <p/>
+ * Image previews link to the attachment download path, so they are covered by the attachment rewrite. When
+ * attachment versions are given, attachment links ask for those versions instead of the latest ones.
+ *
+ * @since 4.3.1
+ */
+public class AttachmentUrlRewriter {
+
+    private static final String DOWNLOAD = "/" + FileServerServlet.SERVLET_PATH + "/";
+    private static final String ATTACHMENTS = FileServerServlet.ATTACHMENTS_URL_PREFIX + "/";
+    private static final String THUMBNAILS = FileServerServlet.THUMBNAILS_URL_PREFIX + "/";
+    private static final String URL_END = "\"'<> \t\r\n";
+
+    private final String targetId;
+    private final String attachmentPath;
+    private final String thumbnailPath;
+    private final Map<String, Integer> attachmentVersions;
+
+    public AttachmentUrlRewriter(long targetId, long sourceId, String includeId) {
+        this(targetId, sourceId, includeId, null);
+    }
+
+    /**
+     * @param attachmentVersions the version to link to by attachment file name, or <code>null</code> to leave the
+     *                           versions asked for by the links as they are.
+     */
+    public AttachmentUrlRewriter(long targetId, long sourceId, String includeId, Map<String, Integer> attachmentVersions) {
+        this.attachmentVersions = attachmentVersions;
+        this.targetId = String.valueOf(targetId);
+
+        String suffix = "/" + targetId + "/" + sourceId + "/" + GeneralUtil.urlEncode(includeId);
+        this.attachmentPath = SecureAttachmentDownload.ATTACHMENT_PATH + suffix;
+        this.thumbnailPath = SecureThumbnailDownload.THUMBNAIL_PATH + suffix;
+    }
+
+    /**
+     * @return the secure path replacing <code>/download/attachments/&lt;target id&gt;</code>.
+     */
+    public String getAttachmentPath() {
+        return attachmentPath;
+    }
+
+    public String rewrite(String html) {
+        int first = nextLink(html, 0);
+        if (first < 0)
+            return html;
+
+        StringWriter out = new StringWriter(html.length() + 256);
+        try {
+            rewrite(html, first, out);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return out.toString();
+    }
+
+    /**
+     * Writes the rewritten HTML straight to <code>out</code>.
+     */
+    public void rewrite(String html, Writer out) throws IOException {
+        rewrite(html, nextLink(html, 0), out);
+    }
+
+    private void rewrite(String html, int match, Writer out) throws IOException {
+        int copied = 0;
+        while (match >= 0) {
+            int start = match + DOWNLOAD.length();
+            boolean attachment = html.startsWith(ATTACHMENTS, start);
+            int end = start + (attachment ? ATTACHMENTS : THUMBNAILS).length() + targetId.length();
+
+            out.write(html, copied, match - copied);
+            out.write(attachment ? attachmentPath : thumbnailPath);
+
+            copied = attachment && attachmentVersions != null ? writeVersionedFile(html, end, out) : end;
+            match = nextLink(html, copied);
+        }
+        out.write(html, copied, html.length() - copied);
+    }
+
+    /**
+     * Writes the file name part of the attachment link starting at <code>from</code> with the version to link to,
+     * if there is one for the file.
+     *
+     * @return the index up to which the link has been written.
+     */
+    private int writeVersionedFile(String html, int from, Writer out) throws IOException {
+        int urlEnd = from;
+        while (urlEnd < html.length() && URL_END.indexOf(html.charAt(urlEnd)) < 0)
+            urlEnd++;
+
+        int pathEnd = from;
+        while (pathEnd < urlEnd && html.charAt(pathEnd) != '?' && html.charAt(pathEnd) != '#')
+            pathEnd++;
+
+        if (pathEnd <= from + 1 || html.charAt(from) != '/')
+            return from;
+
+        Integer version = attachmentVersions.get(GeneralUtil.urlDecode(html.substring(from + 1, pathEnd)));
+        if (version == null)
+            return from;
+
+        out.write(html, from, pathEnd - from);
+        out.write("?version=" + version);
+        int fragment = html.indexOf('#', pathEnd);
+        if (fragment >= 0 && fragment < urlEnd)
+            out.write(html, fragment, urlEnd - fragment);
+        return urlEnd;
+    }
+
+    /**
+     * @return the index of the next link to the target's attachments or thumbnails, or <code>-1</code>.
+     */
+    private int nextLink(String html, int from) {
+        int match = html.indexOf(DOWNLOAD, from);
+        while (match >= 0) {
+            int start = match + DOWNLOAD.length();
+            if (html.startsWith(ATTACHMENTS, start) && isTargetId(html, start + ATTACHMENTS.length()))
+                return match;
+            if (html.startsWith(THUMBNAILS, start) && isTargetId(html, start + THUMBNAILS.length()))
+                return match;
+            match = html.indexOf(DOWNLOAD, start);
+        }
+        return -1;
+    }
+
+    /**
+     * @return <code>true</code> if the target id starts at <code>offset</code> and is not merely the prefix of a
+     *         longer id.
+     */
+    private boolean isTargetId(String html, int offset) {
+        if (!html.startsWith(targetId, offset))
+            return false;
+
+        int end = offset + targetId.length();
+        return end >= html.length() || !Character.isDigit(html.charAt(end));
+    }
+}
@@ -0,0 +1,248 @@
+/*
+ * Copyright (c) 2017, ServiceRocket Inc
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice,
+ *       this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright notice,
+ *       this list of conditions and the following disclaimer in the documentation
+ *       and/or other materials provided with the distribution.
+ *     * Neither the name of "ServiceRocket Inc" nor the names of its contributors may
+ *       be used to endorse or promote products derived from this software without
+ *       specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package net.customware.confluence.plugin.perimeter;
+
+import com.atlassian.confluence.content.render.xhtml.ConversionContext;
+import com.atlassian.renderer.RenderContextOutputType;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.Weigher;
+import org.springframework.stereotype.Component;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Shares renders of included pages between the pages of an export. An export renders every page of a space, or
+ * every page of a PDF, one after another, and a page included by many of them, such as a disclaimer, would be
+ * converted again for each one. Converted HTML is kept by target, version, owner, section and export format,
+ * before its attachment links are rewritten for the including page.
+ * <p/>
+ * An export renders its pages one after another on one thread, so each exporting thread has a memo of its own.
+ * The memo is dropped as soon as the thread renders anything other than an export, or once it has not been used
+ * for <code>export.memo.expirySeconds</code>.
+ * <p/>
+ * Targets are converted in the context of the including page, so a render is only shared between including
+ * pages when nothing in it resolves against that page: attachments and pages referred to without their page or
+ * space, and macros other than those named by <code>export.memo.sharedMacros</code>. Other renders are kept for
+ * the including page alone. Renders of targets which hold secure includes themselves are never kept.
+ *
+ * @since 4.3.1
+ */
+@Component
+public class ExportRenderMemo {
+
+    static final String MAX_CHARS = "export.memo.maxChars";
+    static final String EXPIRY_SECONDS = "export.memo.expirySeconds";
+    static final String SHARED_MACROS = "export.memo.sharedMacros";
+
+    private static final Set<String> EXPORT_OUTPUT_TYPES = new HashSet<String>(Arrays.asList(
+            RenderContextOutputType.PDF, RenderContextOutputType.WORD, RenderContextOutputType.HTML_EXPORT));
+    private static final String NESTED_INCLUDE = "ac:name=\"secure-include\"";
+
+    private static final Pattern MACRO = Pattern.compile("<ac:(?:structured-)?macro\\b[^>]*?\\sac:name\\s*=\\s*(?:\"([^\"]*)\"|'([^']*)')");
+    private static final Pattern RESOURCE = Pattern.compile("<ri:(attachment|page|blog-post)\\b[^>]*>");
+    private static final Pattern SPACE_KEY = Pattern.compile("\\sri:space-key\\s*=");
+
+    private final long maxChars = PerimeterConfig.getLong(MAX_CHARS, 16L * 1024 * 1024);
+    private final Set<String> sharedMacros = new HashSet<String>();
+
+    /**
+     * The memo of each exporting thread.
+     */
+    private final Cache<Thread, Cache<Key, String>> exports = CacheBuilder.newBuilder()
+            .weakKeys()
+            .expireAfterAccess(PerimeterConfig.getLong(EXPIRY_SECONDS, 300), TimeUnit.SECONDS)
+            .build();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    public ExportRenderMemo() {
+        for (String name : PerimeterConfig.getString(SHARED_MACROS,
+                "info,note,tip,warning,panel,code,noformat,status,expand,section,column,anchor").split(",")) {
+            name = name.trim();
+            if (name.length() > 0)
+                sharedMacros.add(name);
+        }
+    }
+
+    /**
+     * @return <code>true</code> if the context is rendering a page for an export.
+     */
+    public static boolean isExport(ConversionContext ctx) {
+        return EXPORT_OUTPUT_TYPES.contains(ctx.getOutputType());
+    }
+
+    public String get(Key key) {
+        Cache<Key, String> memo = exports.getIfPresent(Thread.currentThread());
+        String html = memo != null ? memo.getIfPresent(key) : null;
+        if (html == null && memo != null)
+            html = memo.getIfPresent(key.shared());
+        if (html != null)
+            hits.incrementAndGet();
+        else
+            misses.incrementAndGet();
+        return html;
+    }
+
+    /**
+     * Keeps the render for the rest of the export unless the storage it was converted from holds secure includes,
+     * for every including page if nothing in it depends on the including page.
+     */
+    public void put(Key key, String storage, String html) {
+        if (storage.contains(NESTED_INCLUDE))
+            return;
+
+        Cache<Key, String> memo = exports.getIfPresent(Thread.currentThread());
+        if (memo == null) {
+            memo = newMemo();
+            Cache<Key, String> existing = exports.asMap().putIfAbsent(Thread.currentThread(), memo);
+            if (existing != null)
+                memo = existing;
+        }
+        memo.put(isShareable(storage, sharedMacros) ? key.shared() : key, html);
+    }
+
+    /**
+     * Drops the memo of the current thread, whose export is over once it renders anything else.
+     */
+    public void finish() {
+        if (exports.getIfPresent(Thread.currentThread()) != null)
+            exports.invalidate(Thread.currentThread());
+    }
+
+    /**
+     * @return <code>true</code> if converting the storage gives the same HTML whatever page it is included in: it
+     *         holds no macros other than <code>sharedMacros</code>, and every attachment and page it refers to is
+     *         named with its page or space.
+     */
+    static boolean isShareable(String storage, Set<String> sharedMacros) {
+        Matcher macro = MACRO.matcher(storage);
+        while (macro.find()) {
+            if (!sharedMacros.contains(macro.group(1) != null ? macro.group(1) : macro.group(2)))
+                return false;
+        }
+
+        Matcher resource = RESOURCE.matcher(storage);
+        while (resource.find()) {
+            String tag = resource.group();
+            if ("attachment".equals(resource.group(1))) {
+                // Without a page inside it, an attachment is one of the including page's.
+                if (tag.endsWith("/>"))
+                    return false;
+            } else if (!SPACE_KEY.matcher(tag).find()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private Cache<Key, String> newMemo() {
+        return CacheBuilder.newBuilder()
+                .maximumWeight(maxChars)
+                .weigher(new Weigher<Key, String>() {
+                    @Override
+                    public int weigh(Key key, String html) {
+                        return html.length();
+                    }
+                })
+                .build();
+    }
+
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    public static final class Key {
+        private final String outputType;
+        private final long targetId;
+        private final int version;
+        private final String owner;
+        private final String section;
+        private final long sourceId;
+
+        /**
+         * @param sourceId
+         *            the page the target is included in, or <code>0</code> for a render shared by every page.
+         */
+        public Key(String outputType, long targetId, int version, String owner, String section, long sourceId) {
+            this.outputType = outputType;
+            this.targetId = targetId;
+            this.version = version;
+            this.owner = owner;
+            this.section = section;
+            this.sourceId = sourceId;
+        }
+
+        Key shared() {
+            return sourceId == 0 ? this : new Key(outputType, targetId, version, owner, section, 0);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o)
+                return true;
+            if (!(o instanceof Key))
+                return false;
+
+            Key other = (Key) o;
+            return targetId == other.targetId && version == other.version && sourceId == other.sourceId
+                    && outputType.equals(other.outputType)
+                    && (owner == null ? other.owner == null : owner.equals(other.owner))
+                    && (section == null ? other.section == null : section.equals(other.section));
+        }
+
+        @Override
+        public int hashCode() {
+            int result = (int) (targetId ^ (targetId >>> 32));
+            result = 31 * result + version;
+            result = 31 * result + (int) (sourceId ^ (sourceId >>> 32));
+            result = 31 * result + outputType.hashCode();
+            result = 31 * result + (owner == null ? 0 : owner.hashCode());
+            result = 31 * result + (section == null ? 0 : section.hashCode());
+            return result;
+        }
+
+        @Override
+        public String toString() {
+            return "[target=" + targetId + ", version=" + version + ", owner=" + owner + ", output=" + outputType
+                    + (section == null ? "" : ", section=" + section) + (sourceId == 0 ? "" : ", source=" + sourceId) + "]";
+        }
+    }
+}
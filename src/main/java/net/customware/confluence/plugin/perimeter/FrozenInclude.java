@@ -0,0 +1,111 @@
+/*
+ * Copyright (c) 2017, ServiceRocket Inc
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice,
+ *       this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright notice,
+ *       this list of conditions and the following disclaimer in the documentation
+ *       and/or other materials provided with the distribution.
+ *     * Neither the name of "ServiceRocket Inc" nor the names of its contributors may
+ *       be used to endorse or promote products derived from this software without
+ *       specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package net.customware.confluence.plugin.perimeter;
+
+import com.atlassian.confluence.core.ContentEntityObject;
+import com.atlassian.confluence.core.ContentPropertyManager;
+import com.atlassian.spring.container.ContainerManager;
+import com.thoughtworks.xstream.XStream;
+
+import java.io.Serializable;
+
+/**
+ * The HTML of a secure include in snapshot mode, rendered and with its attachment links rewritten, stored with the
+ * page holding the include. It remembers what it was rendered from so a snapshot which no longer matches the
+ * include is not served.
+ *
+ * @since 4.3.1
+ */
+public class FrozenInclude implements Serializable {
+    private static final String PREFIX = "org.randombits.confluence.perimeter.SecureIncludeSnapshot:";
+
+    private long targetId;
+    private String owner;
+    private String section;
+    private int version;
+    private long takenAt;
+    private String html;
+
+    public FrozenInclude() {
+    }
+
+    FrozenInclude(SecureIncludeData data, int version, String html) {
+        this.targetId = data.getContentId();
+        this.owner = data.getUsername();
+        this.section = data.getSection();
+        this.version = version;
+        this.takenAt = System.currentTimeMillis();
+        this.html = html;
+    }
+
+    /**
+     * @return <code>true</code> if this snapshot was taken of what <code>data</code> includes.
+     */
+    public boolean matches(SecureIncludeData data) {
+        return targetId == data.getContentId()
+                && owner != null && owner.equals(data.getUsername())
+                && (section == null ? data.getSection() == null : section.equals(data.getSection()))
+                && (!data.isPinned() || version == data.getVersion());
+    }
+
+    /**
+     * @return the version of the target the snapshot was rendered from.
+     */
+    public int getVersion() {
+        return version;
+    }
+
+    public long getTakenAt() {
+        return takenAt;
+    }
+
+    public String getHtml() {
+        return html;
+    }
+
+    private static XStream createXStream() {
+        XStream xStream = new XStream();
+        xStream.setClassLoader(FrozenInclude.class.getClassLoader());
+        xStream.alias("secure-include-snapshot", FrozenInclude.class);
+        return xStream;
+    }
+
+    private static ContentPropertyManager getContentPropertyManager() {
+        return (ContentPropertyManager) ContainerManager.getComponent("contentPropertyManager");
+    }
+
+    public static void save(ContentEntityObject source, String id, FrozenInclude frozen) {
+        getContentPropertyManager().setTextProperty(source, PREFIX + id, createXStream().toXML(frozen));
+    }
+
+    public static FrozenInclude load(ContentEntityObject source, String id) {
+        String xml = getContentPropertyManager().getTextProperty(source, PREFIX + id);
+        return xml != null ? (FrozenInclude) createXStream().fromXML(xml) : null;
+    }
+}
@@ -0,0 +1,265 @@
+/*
+ * Copyright (c) 2017, ServiceRocket Inc
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice,
+ *       this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright notice,
+ *       this list of conditions and the following disclaimer in the documentation
+ *       and/or other materials provided with the distribution.
+ *     * Neither the name of "ServiceRocket Inc" nor the names of its contributors may
+ *       be used to endorse or promote products derived from this software without
+ *       specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package net.customware.confluence.plugin.perimeter;
+
+import com.atlassian.confluence.core.ContentEntityManager;
+import com.atlassian.confluence.core.ContentEntityObject;
+import com.atlassian.confluence.macro.MacroExecutionException;
+import com.atlassian.sal.api.transaction.TransactionCallback;
+import com.atlassian.sal.api.transaction.TransactionTemplate;
+import com.atlassian.spring.container.ContainerManager;
+import org.slf4j.Logger;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.slf4j.LoggerFactory.getLogger;
+
+/**
+ * Keeps the snapshots of secure includes in snapshot mode up to date. A snapshot is scheduled for a refresh when
+ * it is first served, <code>snapshot.refreshMinutes</code> after it was taken plus a random share of that interval
+ * so snapshots taken together do not all refresh together. Refreshes run on a small bounded pool; when it is busy,
+ * the refresh is tried again a little later instead of piling up.
+ *
+ * @since 4.3.1
+ */
+@Component
+public class FrozenIncludeScheduler implements DisposableBean {
+    private static final Logger log = getLogger(FrozenIncludeScheduler.class);
+
+    static final String REFRESH_MINUTES = "snapshot.refreshMinutes";
+    static final String JITTER_PERCENT = "snapshot.jitterPercent";
+    static final String THREADS = "snapshot.threads";
+    static final String QUEUE_SIZE = "snapshot.queueSize";
+    static final String MAX_SCHEDULED = "snapshot.maxScheduled";
+
+    private static final long MIN_RETRY_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
+    private final long intervalMillis = TimeUnit.MINUTES.toMillis(PerimeterConfig.getLong(REFRESH_MINUTES, 60));
+    private final long jitterMillis = intervalMillis * Math.max(0, PerimeterConfig.getInt(JITTER_PERCENT, 20)) / 100;
+    private final int maxScheduled = PerimeterConfig.getInt(MAX_SCHEDULED, 10000);
+
+    private final BoundedExecutor executor = new BoundedExecutor("snapshot",
+            PerimeterConfig.getInt(THREADS, 2), PerimeterConfig.getInt(QUEUE_SIZE, 100));
+
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "perimeter-snapshot-schedule-1");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private final ConcurrentMap<SecureIncludeRenderCache.Key, ScheduledFuture<?>> scheduled =
+            new ConcurrentHashMap<SecureIncludeRenderCache.Key, ScheduledFuture<?>>();
+
+    private final AtomicLong refreshed = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong deferred = new AtomicLong();
+
+    private ContentEntityManager contentEntityManager;
+    private SecureIncludeRenderer renderer;
+    private TransactionTemplate transactionTemplate;
+
+    /**
+     * Schedules the next refresh of the snapshot of the include, unless one is already scheduled or scheduled
+     * refreshes are disabled.
+     *
+     * @param takenAt when the snapshot being served was taken.
+     */
+    public void schedule(SecureIncludeRenderCache.Key key, long takenAt) {
+        if (intervalMillis <= 0 || scheduled.containsKey(key) || scheduled.size() >= maxScheduled)
+            return;
+
+        long due = Math.max(0L, takenAt + intervalMillis - System.currentTimeMillis());
+        schedule(key, due + jitter(jitterMillis));
+    }
+
+    private void schedule(final SecureIncludeRenderCache.Key key, long delayMillis) {
+        Runnable refresh = new Runnable() {
+            @Override
+            public void run() {
+                synchronized (scheduled) {
+                    scheduled.remove(key);
+                }
+                submit(key, null);
+            }
+        };
+
+        synchronized (scheduled) {
+            if (scheduled.containsKey(key))
+                return;
+            try {
+                scheduled.put(key, scheduler.schedule(refresh, delayMillis, TimeUnit.MILLISECONDS));
+            } catch (RejectedExecutionException e) {
+                log.debug("Snapshot scheduler is shut down, not scheduling {}", key);
+            }
+        }
+    }
+
+    /**
+     * Refreshes the snapshot of the include as soon as a thread is free, replacing its scheduled refresh.
+     *
+     * @return <code>false</code> if too many refreshes are already waiting.
+     */
+    public boolean refreshNow(SecureIncludeRenderCache.Key key) {
+        ScheduledFuture<?> next = scheduled.remove(key);
+        if (next != null)
+            next.cancel(false);
+        return submit(key, null);
+    }
+
+    /**
+     * Saves a snapshot taken while the include was rendered for a viewer, in its own transaction.
+     */
+    public void store(SecureIncludeRenderCache.Key key, FrozenInclude frozen) {
+        submit(key, frozen);
+    }
+
+    /**
+     * Runs a refresh, or saves <code>frozen</code> if it is given, on the snapshot pool. A refresh which does not
+     * fit is tried again later.
+     */
+    private boolean submit(final SecureIncludeRenderCache.Key key, final FrozenInclude frozen) {
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    Long takenAt = save(key, frozen);
+                    if (takenAt != null)
+                        schedule(key, takenAt);
+                }
+            });
+            return true;
+        } catch (RejectedExecutionException e) {
+            deferred.incrementAndGet();
+            if (frozen == null && intervalMillis > 0)
+                schedule(key, Math.max(MIN_RETRY_MILLIS, jitter(jitterMillis)));
+            log.debug("Snapshot pool is busy, deferred {}", key);
+            return false;
+        }
+    }
+
+    /**
+     * @return when the snapshot now saved for the include was taken, or <code>null</code> if the include is gone.
+     */
+    private Long save(final SecureIncludeRenderCache.Key key, final FrozenInclude frozen) {
+        try {
+            FrozenInclude saved = transactionTemplate.execute(new TransactionCallback<FrozenInclude>() {
+                @Override
+                public FrozenInclude doInTransaction() {
+                    ContentEntityObject source = getContentEntityManager().getById(key.getSourceId());
+                    if (source == null)
+                        return null;
+
+                    FrozenInclude snapshot = frozen;
+                    if (snapshot == null) {
+                        try {
+                            snapshot = renderer.freeze(key);
+                        } catch (MacroExecutionException e) {
+                            throw new RenderFailure(e);
+                        }
+                    }
+
+                    if (snapshot != null) {
+                        FrozenInclude.save(source, key.getIncludeId(), snapshot);
+                        refreshed.incrementAndGet();
+                    }
+                    return snapshot;
+                }
+            });
+            return saved != null ? saved.getTakenAt() : null;
+        } catch (RenderFailure e) {
+            failed.incrementAndGet();
+            log.debug("Unable to refresh the snapshot of " + key + ": " + e.getCause().getMessage());
+        } catch (RuntimeException e) {
+            failed.incrementAndGet();
+            log.warn("Unable to refresh the snapshot of " + key, e);
+        }
+
+        // Keep serving the previous snapshot, and try again at the next interval.
+        return frozen == null ? System.currentTimeMillis() : null;
+    }
+
+    private static long jitter(long bound) {
+        return bound > 0 ? ThreadLocalRandom.current().nextLong(bound) : 0L;
+    }
+
+    public int getScheduledCount() {
+        return scheduled.size();
+    }
+
+    public long getRefreshedCount() {
+        return refreshed.get();
+    }
+
+    public long getFailedCount() {
+        return failed.get();
+    }
+
+    public long getDeferredCount() {
+        return deferred.get();
+    }
+
+    @Override
+    public void destroy() throws Exception {
+        scheduler.shutdownNow();
+        executor.shutdown();
+        scheduled.clear();
+    }
+
+    public ContentEntityManager getContentEntityManager() {
+        if (contentEntityManager == null) {
+            contentEntityManager = (ContentEntityManager) ContainerManager.getComponent("contentEntityManager");
+        }
+        return contentEntityManager;
+    }
+
+    @Autowired
+    public void setRenderer(SecureIncludeRenderer renderer) {
+        this.renderer = renderer;
+    }
+
+    @Autowired
+    public void setTransactionTemplate(TransactionTemplate transactionTemplate) {
+        this.transactionTemplate = transactionTemplate;
+    }
+}
@@ -0,0 +1,223 @@
+/*
+ * Copyright (c) 2017, ServiceRocket Inc
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice,
+ *       this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright notice,
+ *       this list of conditions and the following disclaimer in the documentation
+ *       and/or other materials provided with the distribution.
+ *     * Neither the name of "ServiceRocket Inc" nor the names of its contributors may
+ *       be used to endorse or promote products derived from this software without
+ *       specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package net.customware.confluence.plugin.perimeter;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Trims converted include HTML before it is sent to the browser. Runs of whitespace between and within text are
+ * collapsed to a single character, except inside <code>pre</code>, <code>textarea</code>, <code>script</code> and
+ * <code>style</code> elements, and images of attachments of the included page are loaded lazily, with their size
+ * given up front when the tag does not already give one, so the page does not reflow as they arrive.
+ *
+ * @since 4.3.1
+ */
+final class HtmlOptimizer {
+
+    /**
+     * Looks up the size of an attachment image.
+     */
+    interface ImageSizes {
+        /**
+         * @param fileName the file name, still URL encoded as it appears in the link.
+         * @return the width and height, or <code>null</code> if unknown.
+         */
+        int[] get(String fileName);
+    }
+
+    private static final String[] VERBATIM = {"pre", "textarea", "script", "style"};
+
+    private static final Pattern SRC = Pattern.compile("\\ssrc\\s*=\\s*(\"[^\"]*\"|'[^']*')", Pattern.CASE_INSENSITIVE);
+    private static final Pattern LOADING = Pattern.compile("\\sloading\\s*=", Pattern.CASE_INSENSITIVE);
+    private static final Pattern SIZE = Pattern.compile("\\s(width|height)\\s*=", Pattern.CASE_INSENSITIVE);
+
+    private final String attachmentPrefix;
+    private final ImageSizes sizes;
+
+    /**
+     * @param sizes the sizes of attachment images, or <code>null</code> to leave sizes out.
+     */
+    HtmlOptimizer(long targetId, ImageSizes sizes) {
+        this.attachmentPrefix = "/download/attachments/" + targetId + "/";
+        this.sizes = sizes;
+    }
+
+    String optimize(String html) {
+        StringBuilder out = new StringBuilder(html.length());
+        int pos = 0;
+        while (pos < html.length()) {
+            int lt = html.indexOf('<', pos);
+            int textEnd = lt < 0 ? html.length() : lt;
+            appendCollapsed(html, pos, textEnd, out);
+            if (lt < 0)
+                break;
+
+            int gt = tagEnd(html, lt);
+            String name = tagName(html, lt);
+            if ("img".equals(name)) {
+                appendImage(html.substring(lt, gt), out);
+                pos = gt;
+                continue;
+            }
+
+            out.append(html, lt, gt);
+            pos = gt;
+
+            String verbatim = verbatim(name);
+            if (verbatim != null) {
+                int close = indexOfIgnoreCase(html, "</" + verbatim, pos);
+                int end = close < 0 ? html.length() : close;
+                out.append(html, pos, end);
+                pos = end;
+            }
+        }
+        return out.toString();
+    }
+
+    /**
+     * @return the <code>src</code> of each image in the HTML, in document order and as written in the HTML.
+     */
+    static List<String> imageSources(String html) {
+        List<String> sources = new ArrayList<String>();
+        int lt = html.indexOf('<');
+        while (lt >= 0) {
+            int gt = tagEnd(html, lt);
+            if ("img".equals(tagName(html, lt))) {
+                Matcher src = SRC.matcher(html.substring(lt, gt));
+                if (src.find())
+                    sources.add(src.group(1).substring(1, src.group(1).length() - 1));
+            }
+            lt = html.indexOf('<', gt);
+        }
+        return sources;
+    }
+
+    private void appendImage(String tag, StringBuilder out) {
+        Matcher src = SRC.matcher(tag);
+        String url = src.find() ? src.group(1).substring(1, src.group(1).length() - 1) : null;
+        int file = url != null ? url.indexOf(attachmentPrefix) : -1;
+        if (file < 0) {
+            out.append(tag);
+            return;
+        }
+
+        int close = tag.endsWith("/>") ? tag.length() - 2 : tag.length() - 1;
+        while (close > 0 && Character.isWhitespace(tag.charAt(close - 1)))
+            close--;
+        out.append(tag, 0, close);
+
+        if (!LOADING.matcher(tag).find())
+            out.append(" loading=\"lazy\"");
+
+        if (sizes != null && !SIZE.matcher(tag).find()) {
+            int nameStart = file + attachmentPrefix.length();
+            int nameEnd = nameStart;
+            while (nameEnd < url.length() && url.charAt(nameEnd) != '?' && url.charAt(nameEnd) != '#')
+                nameEnd++;
+            int[] size = nameEnd > nameStart ? sizes.get(url.substring(nameStart, nameEnd)) : null;
+            if (size != null)
+                out.append(" width=\"").append(size[0]).append("\" height=\"").append(size[1]).append('"');
+        }
+
+        out.append(tag, close, tag.length());
+    }
+
+    private static void appendCollapsed(String html, int from, int to, StringBuilder out) {
+        int i = from;
+        while (i < to) {
+            char c = html.charAt(i);
+            if (!isSpace(c)) {
+                out.append(c);
+                i++;
+                continue;
+            }
+
+            boolean newline = false;
+            while (i < to && isSpace(html.charAt(i))) {
+                newline |= html.charAt(i) == '\n';
+                i++;
+            }
+            out.append(newline ? '\n' : ' ');
+        }
+    }
+
+    private static boolean isSpace(char c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\r';
+    }
+
+    /**
+     * @return the index just past the end of the tag or comment starting at <code>lt</code>.
+     */
+    private static int tagEnd(String html, int lt) {
+        if (html.startsWith("<!--", lt)) {
+            int end = html.indexOf("-->", lt + 4);
+            return end < 0 ? html.length() : end + 3;
+        }
+
+        char quote = 0;
+        for (int i = lt + 1; i < html.length(); i++) {
+            char c = html.charAt(i);
+            if (quote != 0) {
+                if (c == quote)
+                    quote = 0;
+            } else if (c == '"' || c == '\'') {
+                quote = c;
+            } else if (c == '>') {
+                return i + 1;
+            }
+        }
+        return html.length();
+    }
+
+    private static String tagName(String html, int lt) {
+        int i = lt + 1;
+        while (i < html.length() && Character.isLetterOrDigit(html.charAt(i)))
+            i++;
+        return html.substring(lt + 1, i).toLowerCase();
+    }
+
+    private static String verbatim(String name) {
+        for (String element : VERBATIM) {
+            if (element.equals(name))
+                return element;
+        }
+        return null;
+    }
+
+    private static int indexOfIgnoreCase(String html, String s, int from) {
+        for (int i = from; i <= html.length() - s.length(); i++) {
+            if (html.regionMatches(true, i, s, 0, s.length()))
+                return i;
+        }
+        return -1;
+    }
+}
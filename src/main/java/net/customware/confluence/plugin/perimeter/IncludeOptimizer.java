@@ -0,0 +1,184 @@
+/*
+ * Copyright (c) 2017, ServiceRocket Inc
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice,
+ *       this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright notice,
+ *       this list of conditions and the following disclaimer in the documentation
+ *       and/or other materials provided with the distribution.
+ *     * Neither the name of "ServiceRocket Inc" nor the names of its contributors may
+ *       be used to endorse or promote products derived from this software without
+ *       specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package net.customware.confluence.plugin.perimeter;
+
+import com.atlassian.confluence.core.ContentEntityObject;
+import com.atlassian.confluence.pages.Attachment;
+import com.atlassian.confluence.pages.AttachmentManager;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import org.slf4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.slf4j.LoggerFactory.getLogger;
+
+/**
+ * Shrinks the HTML of rendered includes with {@link HtmlOptimizer} before it is cached and sent, giving images of
+ * the target's attachments their size from the attachment itself. Sizes are read from the image header once per
+ * attachment version.
+ *
+ * @since 4.3.1
+ */
+@Component
+public class IncludeOptimizer {
+    private static final Logger log = getLogger(IncludeOptimizer.class);
+
+    static final String ENABLED = "optimize.enabled";
+    static final String IMAGE_SIZES_MAX_SIZE = "optimize.imageSizes.maxSize";
+
+    private static final int[] NO_SIZE = new int[0];
+
+    private final boolean enabled = PerimeterConfig.getBoolean(ENABLED, true);
+
+    private final Cache<String, int[]> imageSizes = CacheBuilder.newBuilder()
+            .maximumSize(PerimeterConfig.getInt(IMAGE_SIZES_MAX_SIZE, 5000))
+            .build();
+
+    private final AtomicLong optimized = new AtomicLong();
+    private final AtomicLong savedChars = new AtomicLong();
+
+    private AttachmentManager attachmentManager;
+
+    /**
+     * @param target             the page the HTML was rendered from.
+     * @param id                 the include, for logging.
+     * @param attachmentVersions the attachment versions of a pinned include, or <code>null</code> for the latest.
+     * @return the optimized HTML.
+     */
+    public String optimize(final ContentEntityObject target, String id, String html, final Map<String, Integer> attachmentVersions) {
+        if (!enabled)
+            return html;
+
+        String result = new HtmlOptimizer(target.getId(), new HtmlOptimizer.ImageSizes() {
+            @Override
+            public int[] get(String fileName) {
+                return getImageSize(target, decode(fileName), attachmentVersions);
+            }
+        }).optimize(html);
+
+        int saved = html.length() - result.length();
+        optimized.incrementAndGet();
+        savedChars.addAndGet(saved);
+        log.debug("Optimized secure include {} of {} from {} to {} characters", id, target.getId(), html.length(), result.length());
+        return result;
+    }
+
+    private int[] getImageSize(ContentEntityObject target, String fileName, Map<String, Integer> attachmentVersions) {
+        if (fileName == null)
+            return null;
+
+        Integer version = attachmentVersions != null ? attachmentVersions.get(fileName) : null;
+        Attachment attachment = version != null
+                ? attachmentManager.getAttachment(target, fileName, version)
+                : attachmentManager.getAttachment(target, fileName);
+        if (attachment == null || attachment.getContentType() == null || !attachment.getContentType().startsWith("image/"))
+            return null;
+
+        String key = attachment.getId() + ":" + attachment.getVersion();
+        int[] size = imageSizes.getIfPresent(key);
+        if (size == null) {
+            size = readImageSize(attachment);
+            imageSizes.put(key, size);
+        }
+        return size == NO_SIZE ? null : size;
+    }
+
+    /**
+     * Reads the size from the image header without decoding the image.
+     */
+    private int[] readImageSize(Attachment attachment) {
+        InputStream data = attachmentManager.getAttachmentData(attachment);
+        if (data == null)
+            return NO_SIZE;
+
+        try {
+            ImageInputStream in = ImageIO.createImageInputStream(data);
+            if (in == null)
+                return NO_SIZE;
+            try {
+                Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+                if (!readers.hasNext())
+                    return NO_SIZE;
+
+                ImageReader reader = readers.next();
+                try {
+                    reader.setInput(in, true, true);
+                    return new int[]{reader.getWidth(0), reader.getHeight(0)};
+                } finally {
+                    reader.dispose();
+                }
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            log.debug("Unable to read the size of attachment " + attachment.getId(), e);
+            return NO_SIZE;
+        } finally {
+            try {
+                data.close();
+            } catch (IOException e) {
+                log.debug("Unable to close attachment " + attachment.getId(), e);
+            }
+        }
+    }
+
+    private static String decode(String fileName) {
+        try {
+            // Links encode a plus sign in a file name as itself.
+            return URLDecoder.decode(fileName.replace("+", "%2B"), "UTF-8");
+        } catch (UnsupportedEncodingException | IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    public long getOptimizedCount() {
+        return optimized.get();
+    }
+
+    public long getSavedChars() {
+        return savedChars.get();
+    }
+
+    @Autowired
+    public void setAttachmentManager(AttachmentManager attachmentManager) {
+        this.attachmentManager = attachmentManager;
+    }
+}
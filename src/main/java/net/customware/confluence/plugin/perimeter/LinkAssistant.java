@@ -30,6 +30,9 @@ package net.customware.confluence.plugin.perimeter;
 
 import com.atlassian.confluence.content.render.xhtml.ConversionContext;
 import com.atlassian.confluence.core.ConfluenceEntityObject;
+import com.atlassian.confluence.core.ContentEntityObject;
+
+import java.util.List;
 
 /**
  * @author khailon
@@ -50,4 +53,36 @@ public interface LinkAssistant {
      *         not be found.
      */
     ConfluenceEntityObject getEntityForWikiLink(ConversionContext context, String linkText );
+
+    /**
+     * Returns the anchor of a link (e.g. 'Heading' in 'SPACE:Page#Heading'), unless the '#' is part of the
+     * title of the page linked to.
+     *
+     * @param context
+     *            The context to get the space key from if not specified in
+     *            the linkText.
+     * @param linkText
+     *            The link
+     * @return The anchor, or <code>null</code> if the link has none.
+     */
+    String getAnchor(ConversionContext context, String linkText );
+
+    /**
+     * Returns the child pages of a page, in the order they are shown in the page tree. Nothing is filtered by
+     * permission.
+     *
+     * @param parent
+     *            The page
+     * @return The children, or an empty list if the content is not a page.
+     */
+    List<ContentEntityObject> getChildren(ContentEntityObject parent );
+
+    /**
+     * Returns the current pages and blog posts with a label, in title order. Nothing is filtered by permission.
+     *
+     * @param labelName
+     *            The name of the label
+     * @return The content, or an empty list if the label does not exist.
+     */
+    List<ContentEntityObject> getLabelledContent(String labelName );
 }
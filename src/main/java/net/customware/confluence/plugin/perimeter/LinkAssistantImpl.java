@@ -31,8 +31,11 @@ package net.customware.confluence.plugin.perimeter;
 import com.atlassian.confluence.content.render.xhtml.ConversionContext;
 import com.atlassian.confluence.core.ConfluenceEntityObject;
 import com.atlassian.confluence.core.ContentEntityObject;
+import com.atlassian.confluence.labels.Label;
+import com.atlassian.confluence.labels.LabelManager;
 import com.atlassian.confluence.pages.AbstractPage;
 import com.atlassian.confluence.pages.AttachmentManager;
+import com.atlassian.confluence.pages.Page;
 import com.atlassian.confluence.pages.PageManager;
 import com.atlassian.confluence.security.Permission;
 import com.atlassian.confluence.security.PermissionManager;
@@ -42,7 +45,11 @@ import com.atlassian.user.User;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.EnumSet;
+import java.util.List;
 
 /**
  * @author khailon
@@ -65,6 +72,7 @@ public class LinkAssistantImpl implements LinkAssistant {
     private PermissionManager permissionManager;
     private AttachmentManager attachmentManager;
     private PageManager pageManager;
+    private LabelManager labelManager;
 
     @Override
     public ConfluenceEntityObject getEntityForWikiLink(ConversionContext context, String linkText) {
@@ -79,6 +87,46 @@ public class LinkAssistantImpl implements LinkAssistant {
         return null;
     }
 
+    @Override
+    public String getAnchor(ConversionContext context, String linkText) {
+        int lastAnchor = linkText.lastIndexOf(ANCHOR_SEPARATOR);
+        if (lastAnchor < 0 || lastAnchor == linkText.length() - 1)
+            return null;
+
+        // A link which resolves without dropping an anchor simply has a '#' in its title.
+        if (findEntityForWikiLink(context.getSpaceKey(), linkText, EnumSet.of(LinkAssistantImpl.LinkPart.ANCHOR)) != null)
+            return null;
+
+        return linkText.substring(lastAnchor + 1);
+    }
+
+    @Override
+    public List<ContentEntityObject> getChildren(ContentEntityObject parent) {
+        if (!(parent instanceof Page))
+            return Collections.emptyList();
+        return new ArrayList<ContentEntityObject>(((Page) parent).getSortedChildren());
+    }
+
+    @Override
+    public List<ContentEntityObject> getLabelledContent(String labelName) {
+        Label label = labelName != null ? labelManager.getLabel(labelName) : null;
+        if (label == null)
+            return Collections.emptyList();
+
+        List<ContentEntityObject> content = new ArrayList<ContentEntityObject>();
+        for (Object labelled : labelManager.getCurrentContentForLabel(label)) {
+            if (labelled instanceof AbstractPage)
+                content.add((ContentEntityObject) labelled);
+        }
+        Collections.sort(content, new Comparator<ContentEntityObject>() {
+            @Override
+            public int compare(ContentEntityObject a, ContentEntityObject b) {
+                return a.getDisplayTitle().compareToIgnoreCase(b.getDisplayTitle());
+            }
+        });
+        return content;
+    }
+
     private ConfluenceEntityObject findEntityForWikiLink(String spaceKey, String linkText, EnumSet<LinkAssistantImpl.LinkPart> processed) {
         ConfluenceEntityObject content = null;
 
@@ -150,6 +198,11 @@ public class LinkAssistantImpl implements LinkAssistant {
         this.attachmentManager = attachmentManager;
     }
 
+    @Autowired
+    public void setLabelManager(LabelManager labelManager) {
+        this.labelManager = labelManager;
+    }
+
     public PageManager getPageManager() {
         if (pageManager == null) {
             pageManager = (PageManager) ContainerManager.getComponent("pageManager");
@@ -0,0 +1,252 @@
+/*
+ * Copyright (c) 2017, ServiceRocket Inc
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice,
+ *       this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright notice,
+ *       this list of conditions and the following disclaimer in the documentation
+ *       and/or other materials provided with the distribution.
+ *     * Neither the name of "ServiceRocket Inc" nor the names of its contributors may
+ *       be used to endorse or promote products derived from this software without
+ *       specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package net.customware.confluence.plugin.perimeter;
+
+import com.atlassian.confluence.content.render.xhtml.ConversionContext;
+import com.atlassian.confluence.content.render.xhtml.XhtmlException;
+import com.atlassian.confluence.user.ConfluenceUser;
+import com.atlassian.confluence.xhtml.api.XhtmlContent;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.Weigher;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import javax.xml.stream.XMLStreamException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps the output of slow macros in included pages, such as Jira issue lists and page trees, so that when a page
+ * is edited and rendered again only the macros which changed are run. Each cached macro is converted on its own
+ * and stands in the rest of the page as a token, which is replaced with its output once the page is converted.
+ * <p/>
+ * Output is kept by the macro's storage definition, the page it is included from, the include owner and the
+ * output type, for a time set per macro name. Macros holding secure includes are always run.
+ *
+ * @since 4.3.1
+ */
+@Component
+public class NestedMacroCache {
+
+    static final String ENABLED = "macroCache.enabled";
+    static final String MACROS = "macroCache.macros";
+    static final String TTL_SECONDS = "macroCache.ttlSeconds";
+    static final String MAX_CHARS = "macroCache.maxChars";
+
+    private static final String SECURE_INCLUDE = "ac:name=\"secure-include\"";
+
+    private final boolean enabled = PerimeterConfig.getBoolean(ENABLED, false);
+    private final Map<String, Long> ttlMillis = new HashMap<String, Long>();
+
+    private final Cache<Key, Output> cache;
+
+    private final Random random = new SecureRandom();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    private XhtmlContent xhtmlContent;
+
+    public NestedMacroCache() {
+        long defaultTtl = PerimeterConfig.getLong(TTL_SECONDS, 300);
+        for (String name : PerimeterConfig.getString(MACROS, "jira,jiraissues,pagetree,children").split(",")) {
+            name = name.trim();
+            if (name.length() > 0)
+                ttlMillis.put(name, TimeUnit.SECONDS.toMillis(PerimeterConfig.getLong(TTL_SECONDS + "." + name, defaultTtl)));
+        }
+
+        // Outputs are dropped once the longest TTL has passed even if they are never read again.
+        long maxTtl = 0L;
+        for (Long ttl : ttlMillis.values())
+            maxTtl = Math.max(maxTtl, ttl);
+        cache = CacheBuilder.newBuilder()
+                .maximumWeight(PerimeterConfig.getLong(MAX_CHARS, 8L * 1024 * 1024))
+                .weigher(new Weigher<Key, Output>() {
+                    @Override
+                    public int weigh(Key key, Output output) {
+                        return key.definition.length() + output.html.length();
+                    }
+                })
+                .expireAfterWrite(Math.max(maxTtl, 1L), TimeUnit.MILLISECONDS)
+                .build();
+    }
+
+    /**
+     * Converts the storage of an included page to view, reusing the output of its cached macros. Must be called as
+     * the owner of the include.
+     */
+    public String convert(long targetId, ConfluenceUser owner, String storage, ConversionContext ctx) throws XhtmlException, XMLStreamException {
+        List<int[]> macros = enabled ? StorageMacros.find(storage, ttlMillis.keySet()) : new ArrayList<int[]>();
+        if (macros.isEmpty())
+            return xhtmlContent.convertStorageToView(storage, ctx);
+
+        String token = "perimeter-macro-" + Long.toHexString(random.nextLong()) + "-";
+        List<String> outputs = new ArrayList<String>(macros.size());
+        StringBuilder slotted = new StringBuilder(storage.length());
+        int copied = 0;
+        for (int[] macro : macros) {
+            String definition = storage.substring(macro[0], macro[1]);
+            if (definition.contains(SECURE_INCLUDE))
+                continue;
+
+            outputs.add(getOutput(targetId, owner, definition, ctx));
+            slotted.append(storage, copied, macro[0]).append(token).append(outputs.size() - 1).append('-');
+            copied = macro[1];
+        }
+        slotted.append(storage, copied, storage.length());
+
+        return fill(xhtmlContent.convertStorageToView(slotted.toString(), ctx), token, outputs);
+    }
+
+    private String getOutput(long targetId, ConfluenceUser owner, String definition, ConversionContext ctx) throws XhtmlException, XMLStreamException {
+        Key key = new Key(targetId, ctx.getEntity() != null ? ctx.getEntity().getId() : 0L,
+                owner != null ? owner.getKey().getStringValue() : null, ctx.getOutputType(), definition);
+        long now = System.currentTimeMillis();
+
+        Output output = cache.getIfPresent(key);
+        if (output != null && output.expires > now) {
+            hits.incrementAndGet();
+            return output.html;
+        }
+        if (output != null)
+            cache.invalidate(key);
+
+        misses.incrementAndGet();
+        String html = xhtmlContent.convertStorageToView(definition, ctx);
+        Long ttl = ttlMillis.get(StorageMacros.name(definition));
+        if (ttl != null && ttl > 0)
+            cache.put(key, new Output(html, now + ttl));
+        return html;
+    }
+
+    /**
+     * Puts the output of each macro in place of its token.
+     */
+    private static String fill(String rendered, String token, List<String> outputs) {
+        StringBuilder out = new StringBuilder(rendered.length());
+        int copied = 0;
+        int match;
+        while ((match = rendered.indexOf(token, copied)) >= 0) {
+            int end = rendered.indexOf('-', match + token.length());
+            int index = end < 0 ? -1 : parseIndex(rendered.substring(match + token.length(), end));
+            if (index < 0 || index >= outputs.size()) {
+                out.append(rendered, copied, match + token.length());
+                copied = match + token.length();
+                continue;
+            }
+
+            out.append(rendered, copied, match).append(outputs.get(index));
+            copied = end + 1;
+        }
+        out.append(rendered, copied, rendered.length());
+        return out.toString();
+    }
+
+    private static int parseIndex(String index) {
+        try {
+            return Integer.parseInt(index);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    @Autowired
+    public void setXhtmlContent(XhtmlContent xhtmlContent) {
+        this.xhtmlContent = xhtmlContent;
+    }
+
+    private static final class Key {
+        private final long targetId;
+        private final long sourceId;
+        private final String owner;
+        private final String outputType;
+        private final String definition;
+
+        Key(long targetId, long sourceId, String owner, String outputType, String definition) {
+            this.targetId = targetId;
+            this.sourceId = sourceId;
+            this.owner = owner;
+            this.outputType = outputType;
+            this.definition = definition;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o)
+                return true;
+            if (!(o instanceof Key))
+                return false;
+
+            Key other = (Key) o;
+            return targetId == other.targetId && sourceId == other.sourceId
+                    && (owner == null ? other.owner == null : owner.equals(other.owner))
+                    && (outputType == null ? other.outputType == null : outputType.equals(other.outputType))
+                    && definition.equals(other.definition);
+        }
+
+        @Override
+        public int hashCode() {
+            int result = (int) (targetId ^ (targetId >>> 32));
+            result = 31 * result + (int) (sourceId ^ (sourceId >>> 32));
+            result = 31 * result + (owner == null ? 0 : owner.hashCode());
+            result = 31 * result + (outputType == null ? 0 : outputType.hashCode());
+            result = 31 * result + definition.hashCode();
+            return result;
+        }
+
+        @Override
+        public String toString() {
+            return "[target=" + targetId + ", source=" + sourceId + ", owner=" + owner + ", type=" + outputType + "]";
+        }
+    }
+
+    private static final class Output {
+        private final String html;
+        private final long expires;
+
+        Output(String html, long expires) {
+            this.html = html;
+            this.expires = expires;
+        }
+    }
+}
@@ -0,0 +1,210 @@
+/*
+ * Copyright (c) 2017, ServiceRocket Inc
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice,
+ *       this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright notice,
+ *       this list of conditions and the following disclaimer in the documentation
+ *       and/or other materials provided with the distribution.
+ *     * Neither the name of "ServiceRocket Inc" nor the names of its contributors may
+ *       be used to endorse or promote products derived from this software without
+ *       specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package net.customware.confluence.plugin.perimeter;
+
+import com.atlassian.confluence.core.ContentEntityObject;
+import com.atlassian.confluence.event.events.content.page.PageMoveEvent;
+import com.atlassian.confluence.event.events.security.ContentPermissionEvent;
+import com.atlassian.confluence.event.events.security.SpacePermissionsUpdateEvent;
+import com.atlassian.confluence.event.events.user.UserDeactivateEvent;
+import com.atlassian.confluence.event.events.user.UserRemoveEvent;
+import com.atlassian.confluence.security.Permission;
+import com.atlassian.confluence.security.PermissionManager;
+import com.atlassian.crowd.event.group.GroupMembershipCreatedEvent;
+import com.atlassian.crowd.event.group.GroupMembershipDeletedEvent;
+import com.atlassian.event.api.EventListener;
+import com.atlassian.event.api.EventPublisher;
+import com.atlassian.user.User;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import org.slf4j.Logger;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.slf4j.LoggerFactory.getLogger;
+
+/**
+ * Remembers whether the owner of a secure include may view its target. Decisions are dropped whenever space
+ * permissions, content restrictions, group memberships or user accounts change, and in any case after
+ * <code>permission.cache.expirySeconds</code>. A decision made while the cache was being cleared is not kept, as it
+ * may have been made against the permissions from before the change.
+ *
+ * @since 4.3.1
+ */
+@Component
+public class OwnerPermissionCache implements InitializingBean, DisposableBean {
+    private static final Logger log = getLogger(OwnerPermissionCache.class);
+
+    static final String MAX_SIZE = "permission.cache.maxSize";
+    static final String EXPIRY_SECONDS = "permission.cache.expirySeconds";
+
+    private final Cache<String, Boolean> cache = CacheBuilder.newBuilder()
+            .maximumSize(PerimeterConfig.getLong(MAX_SIZE, 10000))
+            .expireAfterWrite(PerimeterConfig.getLong(EXPIRY_SECONDS, 600), TimeUnit.SECONDS)
+            .build();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong generation = new AtomicLong();
+
+    private PermissionManager permissionManager;
+    private EventPublisher eventPublisher;
+
+    public boolean canView(User owner, ContentEntityObject target) {
+        if (owner == null)
+            return permissionManager.hasPermission(null, Permission.VIEW, target);
+
+        String key = key(owner.getName(), target.getId());
+        Boolean permitted = cache.getIfPresent(key);
+        if (permitted != null) {
+            hits.incrementAndGet();
+            return permitted;
+        }
+
+        misses.incrementAndGet();
+        long checkedAt = generation.get();
+        permitted = permissionManager.hasPermission(owner, Permission.VIEW, target);
+        store(key, permitted, checkedAt);
+        return permitted;
+    }
+
+    /**
+     * @return the cached decision, or <code>null</code> if there is none.
+     */
+    public Boolean getIfPresent(String owner, long targetId) {
+        Boolean permitted = cache.getIfPresent(key(owner, targetId));
+        if (permitted != null)
+            hits.incrementAndGet();
+        return permitted;
+    }
+
+    /**
+     * @return the generation to pass to {@link #put(String, long, boolean, long)}, read before checking permission.
+     */
+    public long getGeneration() {
+        return generation.get();
+    }
+
+    /**
+     * Records a decision made elsewhere, such as by a bulk permission check, unless the cache has been cleared
+     * since <code>checkedAt</code>.
+     */
+    public void put(String owner, long targetId, boolean permitted, long checkedAt) {
+        misses.incrementAndGet();
+        store(key(owner, targetId), permitted, checkedAt);
+    }
+
+    private void store(String key, boolean permitted, long checkedAt) {
+        if (generation.get() != checkedAt)
+            return;
+        cache.put(key, permitted);
+        // The cache may have been cleared between the check above and the put.
+        if (generation.get() != checkedAt)
+            cache.invalidate(key);
+    }
+
+    public void invalidateAll() {
+        generation.incrementAndGet();
+        cache.invalidateAll();
+    }
+
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    private static String key(String owner, long targetId) {
+        return targetId + ":" + owner;
+    }
+
+    @EventListener
+    public void onSpacePermissionsUpdate(SpacePermissionsUpdateEvent event) {
+        invalidateAll();
+    }
+
+    @EventListener
+    public void onContentPermission(ContentPermissionEvent event) {
+        invalidateAll();
+    }
+
+    @EventListener
+    public void onPageMove(PageMoveEvent event) {
+        invalidateAll();
+    }
+
+    @EventListener
+    public void onGroupMembershipCreated(GroupMembershipCreatedEvent event) {
+        invalidateAll();
+    }
+
+    @EventListener
+    public void onGroupMembershipDeleted(GroupMembershipDeletedEvent event) {
+        invalidateAll();
+    }
+
+    @EventListener
+    public void onUserDeactivate(UserDeactivateEvent event) {
+        invalidateAll();
+    }
+
+    @EventListener
+    public void onUserRemove(UserRemoveEvent event) {
+        invalidateAll();
+    }
+
+    @Override
+    public void afterPropertiesSet() throws Exception {
+        eventPublisher.register(this);
+    }
+
+    @Override
+    public void destroy() throws Exception {
+        eventPublisher.unregister(this);
+        cache.invalidateAll();
+        log.debug("Owner permission cache shut down after {} hits and {} misses", hits.get(), misses.get());
+    }
+
+    @Autowired
+    public void setPermissionManager(PermissionManager permissionManager) {
+        this.permissionManager = permissionManager;
+    }
+
+    @Autowired
+    public void setEventPublisher(EventPublisher eventPublisher) {
+        this.eventPublisher = eventPublisher;
+    }
+}
@@ -0,0 +1,410 @@
+/*
+ * Copyright (c) 2017, ServiceRocket Inc
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice,
+ *       this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright notice,
+ *       this list of conditions and the following disclaimer in the documentation
+ *       and/or other materials provided with the distribution.
+ *     * Neither the name of "ServiceRocket Inc" nor the names of its contributors may
+ *       be used to endorse or promote products derived from this software without
+ *       specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package net.customware.confluence.plugin.perimeter;
+
+import org.slf4j.Logger;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+
+import static org.slf4j.LoggerFactory.getLogger;
+
+/**
+ * Publishes the counters of the renderer, render cache and background refresher over JMX.
+ *
+ * @since 4.3.1
+ */
+@Component
+public class PerimeterStats implements PerimeterStatsMBean, InitializingBean, DisposableBean {
+    private static final Logger log = getLogger(PerimeterStats.class);
+
+    private static final String OBJECT_NAME = PluginInfo.PLUGIN_KEY + ":type=PerimeterStats";
+
+    private SecureIncludeRenderer renderer;
+    private SecureIncludeRenderCache renderCache;
+    private SecureIncludeRefresher refresher;
+    private OwnerPermissionCache permissionCache;
+    private TargetRenderGuard guard;
+    private TargetSummaryCache summaries;
+    private SecureIncludeWarmer warmer;
+    private FrozenIncludeScheduler snapshots;
+    private ExportRenderMemo exportMemo;
+    private SecureIncludeIndexer indexer;
+    private TargetTextCache texts;
+    private SecureIncludePushHub pushHub;
+    private IncludeOptimizer optimizer;
+    private PreloadHints preloadHints;
+    private NestedMacroCache macroCache;
+
+    @Override
+    public long getRenders() {
+        return renderer.getRenderCount();
+    }
+
+    @Override
+    public long getRenderAverageAllocatedBytes() {
+        return renderer.getAverageAllocatedBytes();
+    }
+
+    @Override
+    public long getRenderTimeouts() {
+        return guard.getTimeoutCount();
+    }
+
+    @Override
+    public long getRenderBulkheadRejections() {
+        return guard.getBulkheadRejectionCount();
+    }
+
+    @Override
+    public long getRenderBreakerRejections() {
+        return guard.getBreakerRejectionCount();
+    }
+
+    @Override
+    public int getRenderBreakersOpen() {
+        return guard.getOpenBreakerCount();
+    }
+
+    @Override
+    public long getRenderCacheHits() {
+        return renderCache.getHitCount();
+    }
+
+    @Override
+    public long getRenderCacheMisses() {
+        return renderCache.getMissCount();
+    }
+
+    @Override
+    public long getRenderCacheStaleHits() {
+        return renderCache.getStaleHitCount();
+    }
+
+    @Override
+    public long getRenderCacheSize() {
+        return renderCache.getSize();
+    }
+
+    @Override
+    public long getRenderCacheDiskHits() {
+        return renderCache.getDiskHitCount();
+    }
+
+    @Override
+    public int getRenderCacheDiskSize() {
+        return renderCache.getDiskSize();
+    }
+
+    @Override
+    public long getRenderCacheDiskBytes() {
+        return renderCache.getDiskBytes();
+    }
+
+    @Override
+    public int getRefreshQueueDepth() {
+        return refresher.getQueueDepth();
+    }
+
+    @Override
+    public int getRefreshPending() {
+        return refresher.getPendingCount();
+    }
+
+    @Override
+    public long getRefreshOldestPendingAgeMillis() {
+        return refresher.getOldestPendingAge();
+    }
+
+    @Override
+    public long getRefreshCompleted() {
+        return refresher.getRefreshedCount();
+    }
+
+    @Override
+    public long getRefreshFailed() {
+        return refresher.getFailedCount();
+    }
+
+    @Override
+    public long getRefreshRejected() {
+        return refresher.getRejectedCount();
+    }
+
+    @Override
+    public long getWarmQueued() {
+        return warmer.getQueuedCount();
+    }
+
+    @Override
+    public long getWarmSkipped() {
+        return warmer.getSkippedCount();
+    }
+
+    @Override
+    public long getSnapshotsServed() {
+        return renderer.getSnapshotServedCount();
+    }
+
+    @Override
+    public int getSnapshotsScheduled() {
+        return snapshots.getScheduledCount();
+    }
+
+    @Override
+    public long getSnapshotsRefreshed() {
+        return snapshots.getRefreshedCount();
+    }
+
+    @Override
+    public long getSnapshotRefreshesFailed() {
+        return snapshots.getFailedCount();
+    }
+
+    @Override
+    public long getSnapshotRefreshesDeferred() {
+        return snapshots.getDeferredCount();
+    }
+
+    @Override
+    public long getExportMemoHits() {
+        return exportMemo.getHitCount();
+    }
+
+    @Override
+    public long getExportMemoMisses() {
+        return exportMemo.getMissCount();
+    }
+
+    @Override
+    public long getIndexedDocuments() {
+        return indexer.getDocumentCount();
+    }
+
+    @Override
+    public long getIndexedIncludes() {
+        return indexer.getIncludeCount();
+    }
+
+    @Override
+    public long getIndexAverageMicros() {
+        return indexer.getAverageMicros();
+    }
+
+    @Override
+    public long getIndexReindexedHosts() {
+        return indexer.getReindexedCount();
+    }
+
+    @Override
+    public long getIndexReindexRejected() {
+        return indexer.getRejectedCount();
+    }
+
+    @Override
+    public long getIndexTextCacheHits() {
+        return texts.getHitCount();
+    }
+
+    @Override
+    public long getIndexTextCacheMisses() {
+        return texts.getMissCount();
+    }
+
+    @Override
+    public int getPushListeners() {
+        return pushHub.getListenerCount();
+    }
+
+    @Override
+    public long getPushNotices() {
+        return pushHub.getNoticeCount();
+    }
+
+    @Override
+    public long getPushRefused() {
+        return pushHub.getRefusedCount();
+    }
+
+    @Override
+    public long getOptimizedIncludes() {
+        return optimizer.getOptimizedCount();
+    }
+
+    @Override
+    public long getOptimizeSavedChars() {
+        return optimizer.getSavedChars();
+    }
+
+    @Override
+    public long getPreloadHeaders() {
+        return preloadHints.getHeaderCount();
+    }
+
+    @Override
+    public long getPreloadTags() {
+        return preloadHints.getTagCount();
+    }
+
+    @Override
+    public long getMacroCacheHits() {
+        return macroCache.getHitCount();
+    }
+
+    @Override
+    public long getMacroCacheMisses() {
+        return macroCache.getMissCount();
+    }
+
+    @Override
+    public long getSummaryCacheHits() {
+        return summaries.getHitCount();
+    }
+
+    @Override
+    public long getSummaryCacheMisses() {
+        return summaries.getMissCount();
+    }
+
+    @Override
+    public long getPermissionCacheHits() {
+        return permissionCache.getHitCount();
+    }
+
+    @Override
+    public long getPermissionCacheMisses() {
+        return permissionCache.getMissCount();
+    }
+
+    @Override
+    public void afterPropertiesSet() throws Exception {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (server.isRegistered(name))
+                server.unregisterMBean(name);
+            server.registerMBean(this, name);
+        } catch (JMException e) {
+            log.warn("Unable to register " + OBJECT_NAME, e);
+        }
+    }
+
+    @Override
+    public void destroy() throws Exception {
+        try {
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            if (server.isRegistered(name))
+                server.unregisterMBean(name);
+        } catch (JMException e) {
+            log.debug("Unable to unregister " + OBJECT_NAME, e);
+        }
+    }
+
+    @Autowired
+    public void setRenderer(SecureIncludeRenderer renderer) {
+        this.renderer = renderer;
+    }
+
+    @Autowired
+    public void setRenderCache(SecureIncludeRenderCache renderCache) {
+        this.renderCache = renderCache;
+    }
+
+    @Autowired
+    public void setRefresher(SecureIncludeRefresher refresher) {
+        this.refresher = refresher;
+    }
+
+    @Autowired
+    public void setPermissionCache(OwnerPermissionCache permissionCache) {
+        this.permissionCache = permissionCache;
+    }
+
+    @Autowired
+    public void setGuard(TargetRenderGuard guard) {
+        this.guard = guard;
+    }
+
+    @Autowired
+    public void setSummaries(TargetSummaryCache summaries) {
+        this.summaries = summaries;
+    }
+
+    @Autowired
+    public void setWarmer(SecureIncludeWarmer warmer) {
+        this.warmer = warmer;
+    }
+
+    @Autowired
+    public void setSnapshots(FrozenIncludeScheduler snapshots) {
+        this.snapshots = snapshots;
+    }
+
+    @Autowired
+    public void setExportMemo(ExportRenderMemo exportMemo) {
+        this.exportMemo = exportMemo;
+    }
+
+    @Autowired
+    public void setIndexer(SecureIncludeIndexer indexer) {
+        this.indexer = indexer;
+    }
+
+    @Autowired
+    public void setTexts(TargetTextCache texts) {
+        this.texts = texts;
+    }
+
+    @Autowired
+    public void setPushHub(SecureIncludePushHub pushHub) {
+        this.pushHub = pushHub;
+    }
+
+    @Autowired
+    public void setOptimizer(IncludeOptimizer optimizer) {
+        this.optimizer = optimizer;
+    }
+
+    @Autowired
+    public void setPreloadHints(PreloadHints preloadHints) {
+        this.preloadHints = preloadHints;
+    }
+
+    @Autowired
+    public void setMacroCache(NestedMacroCache macroCache) {
+        this.macroCache = macroCache;
+    }
+}
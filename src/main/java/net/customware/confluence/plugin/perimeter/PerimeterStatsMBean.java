@@ -0,0 +1,133 @@
+/*
+ * Copyright (c) 2017, ServiceRocket Inc
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice,
+ *       this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright notice,
+ *       this list of conditions and the following disclaimer in the documentation
+ *       and/or other materials provided with the distribution.
+ *     * Neither the name of "ServiceRocket Inc" nor the names of its contributors may
+ *       be used to endorse or promote products derived from this software without
+ *       specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package net.customware.confluence.plugin.perimeter;
+
+/**
+ * Runtime counters exposed over JMX as <code>net.customware.confluence.plugin.perimeter:type=PerimeterStats</code>.
+ *
+ * @since 4.3.1
+ */
+public interface PerimeterStatsMBean {
+
+    long getRenders();
+
+    long getRenderAverageAllocatedBytes();
+
+    long getRenderTimeouts();
+
+    long getRenderBulkheadRejections();
+
+    long getRenderBreakerRejections();
+
+    int getRenderBreakersOpen();
+
+    long getRenderCacheHits();
+
+    long getRenderCacheMisses();
+
+    long getRenderCacheStaleHits();
+
+    long getRenderCacheSize();
+
+    long getRenderCacheDiskHits();
+
+    int getRenderCacheDiskSize();
+
+    long getRenderCacheDiskBytes();
+
+    int getRefreshQueueDepth();
+
+    int getRefreshPending();
+
+    long getRefreshOldestPendingAgeMillis();
+
+    long getRefreshCompleted();
+
+    long getRefreshFailed();
+
+    long getRefreshRejected();
+
+    long getWarmQueued();
+
+    long getWarmSkipped();
+
+    long getSnapshotsServed();
+
+    int getSnapshotsScheduled();
+
+    long getSnapshotsRefreshed();
+
+    long getSnapshotRefreshesFailed();
+
+    long getSnapshotRefreshesDeferred();
+
+    long getExportMemoHits();
+
+    long getExportMemoMisses();
+
+    long getIndexedDocuments();
+
+    long getIndexedIncludes();
+
+    long getIndexAverageMicros();
+
+    long getIndexReindexedHosts();
+
+    long getIndexReindexRejected();
+
+    long getIndexTextCacheHits();
+
+    long getIndexTextCacheMisses();
+
+    int getPushListeners();
+
+    long getPushNotices();
+
+    long getPushRefused();
+
+    long getOptimizedIncludes();
+
+    long getOptimizeSavedChars();
+
+    long getPreloadHeaders();
+
+    long getPreloadTags();
+
+    long getMacroCacheHits();
+
+    long getMacroCacheMisses();
+
+    long getSummaryCacheHits();
+
+    long getSummaryCacheMisses();
+
+    long getPermissionCacheHits();
+
+    long getPermissionCacheMisses();
+}
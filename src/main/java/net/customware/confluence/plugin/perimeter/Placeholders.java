@@ -0,0 +1,112 @@
+/*
+ * Copyright (c) 2017, ServiceRocket Inc
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice,
+ *       this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright notice,
+ *       this list of conditions and the following disclaimer in the documentation
+ *       and/or other materials provided with the distribution.
+ *     * Neither the name of "ServiceRocket Inc" nor the names of its contributors may
+ *       be used to endorse or promote products derived from this software without
+ *       specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package net.customware.confluence.plugin.perimeter;
+
+import com.atlassian.confluence.util.velocity.VelocityUtils;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static com.atlassian.confluence.util.GeneralUtil.htmlEncode;
+
+/**
+ * The markup shown in place of a secure include which is not rendered with the page.
+ *
+ * @since 4.3.1
+ */
+final class Placeholders {
+
+    static final String DEFERRED_CLASS = "perimeter-deferred";
+    static final String MORE_CLASS = "perimeter-more";
+    static final String CHUNK_CLASS = "perimeter-chunk";
+
+    private static final String ERROR_TEMPLATE = "templates/macro-error.vm";
+    private static final String PLACEHOLDER_TEMPLATE = "templates/macro-placeholder.vm";
+
+    private Placeholders() {
+    }
+
+    static String error(String title, String message) {
+        return render(ERROR_TEMPLATE, title, message);
+    }
+
+    /**
+     * @return a box naming what an include shows, for contexts such as the editor where it is not rendered.
+     */
+    static String info(String title, String message) {
+        return render(PLACEHOLDER_TEMPLATE, title, message);
+    }
+
+    private static String render(String template, String title, String message) {
+        Map<String, Object> context = new HashMap<String, Object>();
+        context.put("title", htmlEncode(title));
+        context.put("message", htmlEncode(message));
+        return VelocityUtils.getRenderedTemplate(template, context);
+    }
+
+    /**
+     * @return an empty block which the deferred loader script fills with the include once the page has loaded.
+     */
+    static String deferred(long sourceId, String includeId) {
+        return "<div class=\"" + DEFERRED_CLASS + "\" data-source-id=\"" + sourceId
+                + "\" data-include-id=\"" + htmlEncode(includeId) + "\">"
+                + "<span class=\"aui-icon aui-icon-wait\">Loading...</span></div>";
+    }
+
+    /**
+     * @return a button which has the deferred loader script fetch the next page of a multi-page include.
+     */
+    static String more(long sourceId, String includeId, int page) {
+        return "<div class=\"" + MORE_CLASS + "\" data-source-id=\"" + sourceId
+                + "\" data-include-id=\"" + htmlEncode(includeId) + "\" data-page=\"" + page + "\">"
+                + "<button class=\"aui-button\">Show more</button></div>";
+    }
+
+    /**
+     * @return a block which the deferred loader script replaces with the next chunk of a long page as it is
+     *         scrolled towards.
+     */
+    static String chunk(long sourceId, String includeId, int chunk) {
+        return "<div class=\"" + CHUNK_CLASS + "\" data-source-id=\"" + sourceId
+                + "\" data-include-id=\"" + htmlEncode(includeId) + "\" data-chunk=\"" + chunk + "\">"
+                + "<span class=\"aui-icon aui-icon-wait\">Loading...</span></div>";
+    }
+
+    /**
+     * @return the placeholder for an include which was not rendered because of the request's limits or because
+     *         its target is unavailable, or <code>null</code> if the failure is of any other kind.
+     */
+    static String forFailure(Exception e) {
+        if (e instanceof SecureIncludeLimitException)
+            return error("Unable to render secure include", e.getMessage());
+        if (e instanceof SecureIncludeUnavailableException)
+            return error("Secure include temporarily unavailable", e.getMessage());
+        return null;
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright (c) 2017, ServiceRocket Inc
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice,
+ *       this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright notice,
+ *       this list of conditions and the following disclaimer in the documentation
+ *       and/or other materials provided with the distribution.
+ *     * Neither the name of "ServiceRocket Inc" nor the names of its contributors may
+ *       be used to endorse or promote products derived from this software without
+ *       specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package net.customware.confluence.plugin.perimeter;
+
+import com.atlassian.confluence.content.render.xhtml.ConversionContext;
+import com.atlassian.core.filters.ServletContextThreadLocal;
+import com.atlassian.renderer.RenderContextOutputType;
+import org.springframework.stereotype.Component;
+
+import javax.servlet.http.HttpServletResponse;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.atlassian.confluence.util.GeneralUtil.htmlEncode;
+
+/**
+ * Tells the browser about the first images of each include before it reaches them in the page, so they download
+ * alongside the rest of the page. While the response has not been sent yet the images are given as
+ * <code>Link: rel=preload</code> headers, and otherwise as <code>link</code> tags ahead of the include.
+ *
+ * @since 4.3.1
+ */
+@Component
+public class PreloadHints {
+
+    static final String ENABLED = "preload.enabled";
+    static final String PER_INCLUDE = "preload.perInclude";
+    static final String MAX_PER_PAGE = "preload.maxPerPage";
+
+    private static final String CONTEXT_PROPERTY = PreloadHints.class.getName();
+
+    private final boolean enabled = PerimeterConfig.getBoolean(ENABLED, true);
+    private final int perInclude = PerimeterConfig.getInt(PER_INCLUDE, 3);
+    private final int maxPerPage = PerimeterConfig.getInt(MAX_PER_PAGE, 10);
+
+    private final AtomicLong headers = new AtomicLong();
+    private final AtomicLong tags = new AtomicLong();
+
+    /**
+     * Hints at the images of an include rendered into a page view. Nested includes are covered by the images of
+     * the include they are in.
+     *
+     * @return the fragment, with <code>link</code> tags ahead of it if the headers could not be sent.
+     */
+    public RenderedFragment hint(RenderedFragment fragment, ConversionContext ctx) {
+        if (!enabled || perInclude <= 0 || !RenderContextOutputType.DISPLAY.equals(ctx.getOutputType())
+                || SecureIncludeGraph.get(ctx).getDepth() > 0)
+            return fragment;
+
+        Set<String> hinted = getHinted(ctx);
+        if (hinted.size() >= maxPerPage)
+            return fragment;
+
+        HttpServletResponse response = ServletContextThreadLocal.getResponse();
+        boolean useHeaders = response != null && !response.isCommitted();
+        StringBuilder links = new StringBuilder();
+
+        List<String> images = fragment.getSecureImages(perInclude);
+        for (String image : images) {
+            if (hinted.size() >= maxPerPage)
+                break;
+            // Images are found as written in the HTML, so their entities are still encoded.
+            String url = image.replace("&amp;", "&");
+            if (!hinted.add(url))
+                continue;
+
+            if (useHeaders) {
+                response.addHeader("Link", "<" + url + ">; rel=preload; as=image");
+                headers.incrementAndGet();
+            } else {
+                links.append("<link rel=\"preload\" as=\"image\" href=\"").append(htmlEncode(url)).append("\">");
+                tags.incrementAndGet();
+            }
+        }
+        return links.length() > 0 ? fragment.wrap(links.toString(), "") : fragment;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Set<String> getHinted(ConversionContext ctx) {
+        Object hinted = ctx.getProperty(CONTEXT_PROPERTY);
+        if (hinted instanceof Set)
+            return (Set<String>) hinted;
+
+        Set<String> created = new HashSet<String>();
+        ctx.setProperty(CONTEXT_PROPERTY, created);
+        return created;
+    }
+
+    public long getHeaderCount() {
+        return headers.get();
+    }
+
+    public long getTagCount() {
+        return tags.get();
+    }
+}
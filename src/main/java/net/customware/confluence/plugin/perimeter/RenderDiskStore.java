@@ -0,0 +1,453 @@
+/*
+ * Copyright (c) 2017, ServiceRocket Inc
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice,
+ *       this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright notice,
+ *       this list of conditions and the following disclaimer in the documentation
+ *       and/or other materials provided with the distribution.
+ *     * Neither the name of "ServiceRocket Inc" nor the names of its contributors may
+ *       be used to endorse or promote products derived from this software without
+ *       specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package net.customware.confluence.plugin.perimeter;
+
+import org.slf4j.Logger;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+import static org.slf4j.LoggerFactory.getLogger;
+
+/**
+ * The on-disk tier of the render cache, kept in memory-mapped segment files so renders survive a restart. Each
+ * segment is a log of records: a render stored for a key, or the removal of a key. Records are only ever
+ * appended, and an index of the latest render of every key is rebuilt by reading the segments back in order
+ * when the store is opened.
+ * <p/>
+ * Once the store holds its maximum number of segments, the oldest is compacted to make room for a new one: its
+ * renders which are still current are copied to the newest segment, or dropped if they fill more than half of
+ * it, and the file is deleted.
+ *
+ * @since 4.3.1
+ */
+final class RenderDiskStore {
+    private static final Logger log = getLogger(RenderDiskStore.class);
+
+    private static final int MAGIC = 0x50524332;
+    private static final int HEADER_BYTES = 12;
+    private static final byte PUT = 1;
+    private static final byte REMOVE = 2;
+
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".dat";
+
+    private final File dir;
+    private final int segmentBytes;
+    private final int maxSegments;
+
+    private final TreeMap<Long, Segment> segments = new TreeMap<Long, Segment>();
+    private final Map<SecureIncludeRenderCache.Key, Location> index = new HashMap<SecureIncludeRenderCache.Key, Location>();
+    private Segment active;
+    private long nextId;
+
+    private RenderDiskStore(File dir, long maxBytes, int segmentBytes) {
+        this.dir = dir;
+        this.segmentBytes = segmentBytes;
+        this.maxSegments = (int) Math.max(2, maxBytes / segmentBytes);
+    }
+
+    /**
+     * Opens the store in <code>dir</code>, reading back whatever it already holds.
+     */
+    static RenderDiskStore open(File dir, long maxBytes, int segmentBytes) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs())
+            throw new IOException("Unable to create " + dir);
+
+        RenderDiskStore store = new RenderDiskStore(dir, maxBytes, segmentBytes);
+        store.load();
+        return store;
+    }
+
+    /**
+     * A render read back from disk.
+     */
+    static final class Stored {
+        final int version;
+        final boolean pinned;
+        final Set<Long> nested;
+        final String html;
+
+        Stored(int version, boolean pinned, Set<Long> nested, String html) {
+            this.version = version;
+            this.pinned = pinned;
+            this.nested = nested;
+            this.html = html;
+        }
+    }
+
+    synchronized Stored get(SecureIncludeRenderCache.Key key) throws IOException {
+        Location location = index.get(key);
+        if (location == null)
+            return null;
+
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(location.segment.read(location.offset, location.length)));
+        in.skipBytes(HEADER_BYTES);
+        readRecordKey(in);
+        int version = in.readInt();
+        boolean pinned = in.readBoolean();
+        Set<Long> nested = readNested(in);
+        byte[] html = new byte[in.readInt()];
+        in.readFully(html);
+        return new Stored(version, pinned, nested, new String(html, "UTF-8"));
+    }
+
+    /**
+     * @param nested the targets of the secure includes nested in the render.
+     */
+    synchronized void put(SecureIncludeRenderCache.Key key, int version, boolean pinned, Set<Long> nested, String html) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(html.length() + 256);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(PUT);
+        writeKey(key, out);
+        out.writeInt(version);
+        out.writeBoolean(pinned);
+        out.writeInt(nested.size());
+        for (Long id : nested)
+            out.writeLong(id);
+        byte[] encoded = html.getBytes("UTF-8");
+        out.writeInt(encoded.length);
+        out.write(encoded);
+        out.flush();
+
+        // Renders taking more than half a segment are left to the heap tier.
+        if (HEADER_BYTES + bytes.size() > segmentBytes / 2) {
+            remove(key);
+            return;
+        }
+        append(key, bytes.toByteArray(), pinned, nested);
+    }
+
+    synchronized void remove(SecureIncludeRenderCache.Key key) throws IOException {
+        if (!index.containsKey(key))
+            return;
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(REMOVE);
+        writeKey(key, out);
+        out.flush();
+        append(key, bytes.toByteArray(), false, Collections.<Long>emptySet());
+    }
+
+    /**
+     * Removes every render of the content, with the content nested in it, or included by it.
+     *
+     * @param keepPinned whether to keep the renders of includes of the content pinned to a version, unless the
+     *            content is also nested in them.
+     */
+    synchronized void removeContent(long contentId, boolean keepPinned) throws IOException {
+        List<SecureIncludeRenderCache.Key> removed = new ArrayList<SecureIncludeRenderCache.Key>();
+        for (Map.Entry<SecureIncludeRenderCache.Key, Location> entry : index.entrySet()) {
+            SecureIncludeRenderCache.Key key = entry.getKey();
+            Location location = entry.getValue();
+            if (key.getSourceId() == contentId || location.nested.contains(contentId)
+                    || key.getTargetId() == contentId && !(keepPinned && location.pinned))
+                removed.add(key);
+        }
+        for (SecureIncludeRenderCache.Key key : removed)
+            remove(key);
+    }
+
+    synchronized void removeAll() throws IOException {
+        for (SecureIncludeRenderCache.Key key : new ArrayList<SecureIncludeRenderCache.Key>(index.keySet()))
+            remove(key);
+    }
+
+    synchronized int size() {
+        return index.size();
+    }
+
+    /**
+     * @return the number of bytes of current renders held.
+     */
+    synchronized long getLiveBytes() {
+        long live = 0;
+        for (Segment segment : segments.values())
+            live += segment.live;
+        return live;
+    }
+
+    synchronized void close() {
+        for (Segment segment : segments.values())
+            segment.close();
+        segments.clear();
+        index.clear();
+    }
+
+    private void load() throws IOException {
+        File[] files = dir.listFiles();
+        for (File file : files != null ? files : new File[0]) {
+            String name = file.getName();
+            if (!name.startsWith(SEGMENT_PREFIX) || !name.endsWith(SEGMENT_SUFFIX))
+                continue;
+            try {
+                long id = Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+                segments.put(id, new Segment(file, id, segmentBytes));
+            } catch (NumberFormatException e) {
+                log.debug("Ignoring {} in the render cache directory", file);
+            }
+        }
+
+        for (Segment segment : segments.values())
+            scan(segment);
+
+        nextId = segments.isEmpty() ? 0 : segments.lastKey() + 1;
+        active = segments.isEmpty() ? newSegment() : segments.lastEntry().getValue();
+        log.debug("Opened render cache store in {} with {} renders", dir, index.size());
+    }
+
+    /**
+     * Reads the records of a segment into the index, stopping at the first which is missing or was not written in
+     * full.
+     */
+    private void scan(Segment segment) throws IOException {
+        int position = 0;
+        while (position + HEADER_BYTES <= segmentBytes) {
+            if (segment.buffer.getInt(position) != MAGIC)
+                break;
+
+            int length = segment.buffer.getInt(position + 4);
+            if (length <= 0 || position + HEADER_BYTES + length > segmentBytes)
+                break;
+
+            byte[] body = segment.read(position + HEADER_BYTES, length);
+            if (crc(body) != segment.buffer.getInt(position + 8))
+                break;
+
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(body));
+            byte type = in.readByte();
+            SecureIncludeRenderCache.Key key = readKey(in);
+            if (type == PUT) {
+                in.readInt();
+                boolean pinned = in.readBoolean();
+                index(key, new Location(segment, position, HEADER_BYTES + length, pinned, readNested(in)));
+            } else {
+                index(key, null);
+            }
+            position += HEADER_BYTES + length;
+        }
+        segment.end = position;
+    }
+
+    private void append(SecureIncludeRenderCache.Key key, byte[] body, boolean pinned, Set<Long> nested) throws IOException {
+        int length = HEADER_BYTES + body.length;
+        if (active.end + length > segmentBytes)
+            roll();
+
+        int position = active.end;
+        active.write(position + HEADER_BYTES, body);
+        active.buffer.putInt(position + 4, body.length);
+        active.buffer.putInt(position + 8, crc(body));
+        // The magic number goes last, so a record cut short by a crash is never read back.
+        active.buffer.putInt(position, MAGIC);
+        active.end = position + length;
+
+        index(key, body[0] == PUT ? new Location(active, position, length, pinned, nested) : null);
+    }
+
+    private void index(SecureIncludeRenderCache.Key key, Location location) {
+        Location previous = location != null ? index.put(key, location) : index.remove(key);
+        if (previous != null)
+            previous.segment.live -= previous.length;
+        if (location != null)
+            location.segment.live += location.length;
+    }
+
+    private void roll() throws IOException {
+        active = newSegment();
+        while (segments.size() > maxSegments)
+            compact(segments.firstEntry().getValue());
+    }
+
+    /**
+     * Makes room by removing the oldest segment, keeping its current renders if they take no more than half a
+     * segment. Removals in the segment need not be kept, as there is no older segment they could apply to.
+     */
+    private void compact(Segment oldest) throws IOException {
+        segments.remove(oldest.id);
+
+        List<Map.Entry<SecureIncludeRenderCache.Key, Location>> live = new ArrayList<Map.Entry<SecureIncludeRenderCache.Key, Location>>();
+        for (Map.Entry<SecureIncludeRenderCache.Key, Location> entry : index.entrySet()) {
+            if (entry.getValue().segment == oldest)
+                live.add(entry);
+        }
+
+        boolean keep = oldest.live <= segmentBytes / 2;
+        for (Map.Entry<SecureIncludeRenderCache.Key, Location> entry : live) {
+            Location location = entry.getValue();
+            if (keep)
+                append(entry.getKey(), oldest.read(location.offset + HEADER_BYTES, location.length - HEADER_BYTES),
+                        location.pinned, location.nested);
+            else
+                index(entry.getKey(), null);
+        }
+
+        log.debug("Compacted render cache segment {}, {} {} renders", oldest.id, keep ? "keeping" : "dropping", live.size());
+        oldest.close();
+        if (!oldest.file.delete())
+            log.warn("Unable to delete render cache segment {}", oldest.file);
+    }
+
+    private Segment newSegment() throws IOException {
+        long id = nextId++;
+        Segment segment = new Segment(new File(dir, SEGMENT_PREFIX + id + SEGMENT_SUFFIX), id, segmentBytes);
+        segments.put(id, segment);
+        return segment;
+    }
+
+    private static void writeKey(SecureIncludeRenderCache.Key key, DataOutputStream out) throws IOException {
+        out.writeLong(key.getTargetId());
+        out.writeUTF(key.getOwner() != null ? key.getOwner() : "");
+        out.writeLong(key.getSourceId());
+        out.writeUTF(key.getIncludeId());
+        out.writeBoolean(key.getSection() != null);
+        if (key.getSection() != null)
+            out.writeUTF(key.getSection());
+        out.writeInt(key.getChunk());
+    }
+
+    private static SecureIncludeRenderCache.Key readKey(DataInputStream in) throws IOException {
+        long targetId = in.readLong();
+        String owner = in.readUTF();
+        long sourceId = in.readLong();
+        String includeId = in.readUTF();
+        String section = in.readBoolean() ? in.readUTF() : null;
+        int chunk = in.readInt();
+        return new SecureIncludeRenderCache.Key(targetId, owner.length() > 0 ? owner : null, sourceId, includeId, section, chunk);
+    }
+
+    private static Set<Long> readNested(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        if (count == 0)
+            return Collections.emptySet();
+
+        Set<Long> nested = new HashSet<Long>();
+        for (int i = 0; i < count; i++)
+            nested.add(in.readLong());
+        return Collections.unmodifiableSet(nested);
+    }
+
+    private static void readRecordKey(DataInputStream in) throws IOException {
+        in.readByte();
+        readKey(in);
+    }
+
+    private static int crc(byte[] body) {
+        CRC32 crc = new CRC32();
+        crc.update(body);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Where the latest render of a key is held.
+     */
+    private static final class Location {
+        private final Segment segment;
+        private final int offset;
+        private final int length;
+        private final boolean pinned;
+        private final Set<Long> nested;
+
+        Location(Segment segment, int offset, int length, boolean pinned, Set<Long> nested) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+            this.pinned = pinned;
+            this.nested = nested;
+        }
+    }
+
+    private static final class Segment {
+        private final File file;
+        private final long id;
+        private final FileChannel channel;
+        private final MappedByteBuffer buffer;
+        private int end;
+        private long live;
+
+        Segment(File file, long id, int segmentBytes) throws IOException {
+            this.file = file;
+            this.id = id;
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                if (raf.length() != segmentBytes)
+                    raf.setLength(segmentBytes);
+                this.channel = raf.getChannel();
+                this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentBytes);
+            } catch (IOException e) {
+                raf.close();
+                throw e;
+            }
+        }
+
+        byte[] read(int offset, int length) {
+            byte[] bytes = new byte[length];
+            ByteBuffer view = buffer.duplicate();
+            view.position(offset);
+            view.get(bytes);
+            return bytes;
+        }
+
+        void write(int offset, byte[] bytes) {
+            ByteBuffer view = buffer.duplicate();
+            view.position(offset);
+            view.put(bytes);
+        }
+
+        /**
+         * Flushes the segment and closes its file. The mapping itself is released once the buffer is collected.
+         */
+        void close() {
+            try {
+                buffer.force();
+                channel.close();
+            } catch (IOException e) {
+                log.debug("Unable to close render cache segment " + file, e);
+            }
+        }
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright (c) 2017, ServiceRocket Inc
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice,
+ *       this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright notice,
+ *       this list of conditions and the following disclaimer in the documentation
+ *       and/or other materials provided with the distribution.
+ *     * Neither the name of "ServiceRocket Inc" nor the names of its contributors may
+ *       be used to endorse or promote products derived from this software without
+ *       specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package net.customware.confluence.plugin.perimeter;
+
+import com.atlassian.confluence.content.render.xhtml.Streamable;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The output of a secure include. Large renders keep the converted HTML and only rewrite attachment links as
+ * they are written to the page, so no rewritten copy of the whole fragment is ever held in memory.
+ *
+ * @since 4.3.1
+ */
+public class RenderedFragment implements Streamable {
+
+    private final String before;
+    private final String html;
+    private final AttachmentUrlRewriter rewriter;
+    private final String after;
+
+    private RenderedFragment(String before, String html, AttachmentUrlRewriter rewriter, String after) {
+        this.before = before;
+        this.html = html;
+        this.rewriter = rewriter;
+        this.after = after;
+    }
+
+    /**
+     * @param html HTML which is ready to be written to the page as is.
+     */
+    public static RenderedFragment of(String html) {
+        return new RenderedFragment("", html, null, "");
+    }
+
+    /**
+     * @param html converted HTML whose attachment links still have to be rewritten.
+     */
+    public static RenderedFragment rewriting(String html, AttachmentUrlRewriter rewriter) {
+        return new RenderedFragment("", html, rewriter, "");
+    }
+
+    /**
+     * @return this fragment between the given markup.
+     */
+    public RenderedFragment wrap(String before, String after) {
+        return new RenderedFragment(before + this.before, html, rewriter, this.after + after);
+    }
+
+    /**
+     * @return the first <code>max</code> images of the fragment served by the secure download servlet, as written
+     *         to the page.
+     */
+    List<String> getSecureImages(int max) {
+        List<String> images = new ArrayList<String>();
+        for (String src : HtmlOptimizer.imageSources(html)) {
+            if (images.size() >= max)
+                break;
+            if (rewriter != null)
+                src = rewriter.rewrite(src);
+            if (src.contains(SecureFileServerServlet.SERVLET_PATH + "/"))
+                images.add(src);
+        }
+        return images;
+    }
+
+    @Override
+    public void writeTo(Writer writer) throws IOException {
+        writer.write(before);
+        if (rewriter == null)
+            writer.write(html);
+        else
+            rewriter.rewrite(html, writer);
+        writer.write(after);
+    }
+
+    @Override
+    public String toString() {
+        return before + (rewriter == null ? html : rewriter.rewrite(html)) + after;
+    }
+}
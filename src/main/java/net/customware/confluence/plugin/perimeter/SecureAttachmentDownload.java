@@ -72,6 +72,8 @@ public class SecureAttachmentDownload extends AttachmentDownload {
 
     private ContentEntityObjectDao contentEntityObjectDao = null;
 
+    private OwnerPermissionCache permissionCache = null;
+
     public static final String ATTACHMENT_PATH = SecureFileServerServlet.SERVLET_PATH + "/"
             + FileServerServlet.ATTACHMENTS_URL_PREFIX;
 
@@ -100,6 +102,10 @@ public class SecureAttachmentDownload extends AttachmentDownload {
             return true;
         }
 
+        if (permissionCache != null) {
+            return permissionCache.canView(user, entity);
+        }
+
         return permissionManager.hasPermission(user, Permission.VIEW, entity);
     }
 
@@ -128,6 +134,10 @@ public class SecureAttachmentDownload extends AttachmentDownload {
         this.contentEntityObjectDao = contentEntityObjectDao;
     }
 
+    public void setPermissionCache( OwnerPermissionCache permissionCache ) {
+        this.permissionCache = permissionCache;
+    }
+
     @Override
     public java.io.InputStream getStreamForDownload( javax.servlet.http.HttpServletRequest httpServletRequest,
             javax.servlet.http.HttpServletResponse httpServletResponse ) throws IOException {
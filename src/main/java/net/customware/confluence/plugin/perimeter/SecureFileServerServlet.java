@@ -50,6 +50,8 @@ public class SecureFileServerServlet extends BaseFileServerServlet {
     public static final String USER_RESOURCE_URL_PREFIX = "userresources";
     public static final String THUMBNAILS_URL_PREFIX = "thumbnails";
 
+    private OwnerPermissionCache permissionCache;
+
     //~ Methods --------------------------------------------------------------------------------------------------------
 
     @Override
@@ -86,6 +88,11 @@ public class SecureFileServerServlet extends BaseFileServerServlet {
         {
             DownloadStrategy strategy = (DownloadStrategy) downloadStrategyClass.newInstance();
             ContainerManager.autowireComponent(strategy);
+            // Plugin components are not visible to the Confluence container, so hand them over directly.
+            if (strategy instanceof SecureAttachmentDownload)
+                ((SecureAttachmentDownload) strategy).setPermissionCache(permissionCache);
+            else if (strategy instanceof SecureThumbnailDownload)
+                ((SecureThumbnailDownload) strategy).setPermissionCache(permissionCache);
             return strategy;
         }
         catch (InstantiationException e)
@@ -110,6 +117,11 @@ public class SecureFileServerServlet extends BaseFileServerServlet {
     }
 
 
+    public void setPermissionCache(OwnerPermissionCache permissionCache)
+    {
+        this.permissionCache = permissionCache;
+    }
+
     private PluginResourceDownload getSimplePluginResourceDownload()
     {
             PluginResourceDownload download = new PluginResourceDownload();
@@ -31,6 +31,8 @@ package net.customware.confluence.plugin.perimeter;
 import com.atlassian.confluence.core.ContentEntityManager;
 import com.atlassian.confluence.core.ContentEntityObject;
 import com.atlassian.confluence.core.ContentPropertyManager;
+import com.atlassian.confluence.labels.Label;
+import com.atlassian.confluence.pages.Page;
 import com.atlassian.confluence.security.Permission;
 import com.atlassian.confluence.security.PermissionManager;
 import com.atlassian.confluence.servlet.FileServerServlet;
@@ -41,6 +43,7 @@ import com.thoughtworks.xstream.XStream;
 
 import javax.servlet.http.HttpServletRequest;
 import java.io.Serializable;
+import java.util.Map;
 
 /**
  * Created by IntelliJ IDEA.
@@ -53,8 +56,29 @@ public class SecureIncludeData implements Serializable
 {
     private static final String SECURE_INCLUDE_PREFIX = "org.randombits.confluence.perimeter.SecureInclude:";
 
+    public static final String HEADING_PARAM = "heading";
+    public static final String MODE_PARAM = "mode";
+    public static final String SUMMARY_MODE = "summary";
+    public static final String SNAPSHOT_MODE = "snapshot";
+    public static final String PAGE_SIZE_PARAM = "pageSize";
+    public static final String CHUNKED_PARAM = "chunked";
+    public static final String DEFERRED_PARAM = "deferred";
+
+    public static final String CHILDREN_SCOPE = "children";
+    public static final String LABEL_SCOPE = "label";
+
     private String username;
     private long contentId;
+    private String section;
+    private int version;
+    private String scope;
+    private String label;
+    private transient boolean summary;
+    private transient boolean snapshot;
+    private transient int pageSize;
+    private transient boolean chunked;
+    private transient int chunk;
+    private transient boolean deferred;
     private static ContentEntityManager contentEntityManager;
     private static PermissionManager permissionManager;
 
@@ -78,6 +102,241 @@ public class SecureIncludeData implements Serializable
         this.contentId = contentId;
     }
 
+    /**
+     * @return the heading of the only section of the content to include, or <code>null</code> for all of it.
+     */
+    public String getSection()
+    {
+        return section;
+    }
+
+    public void setSection(String section)
+    {
+        this.section = section;
+    }
+
+    /**
+     * @return the version of the content to include, or <code>0</code> to follow its latest version.
+     */
+    public int getVersion()
+    {
+        return version;
+    }
+
+    public void setVersion(int version)
+    {
+        this.version = version;
+    }
+
+    public boolean isPinned()
+    {
+        return version > 0;
+    }
+
+    /**
+     * @return {@link #CHILDREN_SCOPE} if the children of the content are included, {@link #LABEL_SCOPE} if the
+     *         pages with the label are included, or <code>null</code> if only the content itself is included.
+     */
+    public String getScope()
+    {
+        return scope;
+    }
+
+    public void setScope(String scope)
+    {
+        this.scope = scope;
+    }
+
+    /**
+     * @return the name of the label of the pages included in {@link #LABEL_SCOPE}.
+     */
+    public String getLabel()
+    {
+        return label;
+    }
+
+    public void setLabel(String label)
+    {
+        this.label = label;
+    }
+
+    /**
+     * @return <code>true</code> if this include covers a set of pages rather than a single one.
+     */
+    public boolean isSet()
+    {
+        return CHILDREN_SCOPE.equals(scope) || LABEL_SCOPE.equals(scope);
+    }
+
+    /**
+     * @return <code>true</code> if <code>content</code> is, or is one of, the content this include covers.
+     */
+    public boolean covers(ContentEntityObject content)
+    {
+        if (CHILDREN_SCOPE.equals(scope))
+        {
+            Page parent = content instanceof Page ? ((Page) content).getParent() : null;
+            return parent != null && parent.getId() == contentId;
+        }
+
+        if (LABEL_SCOPE.equals(scope))
+        {
+            for (Label contentLabel : content.getLabels())
+            {
+                if (contentLabel.getName().equals(label))
+                    return true;
+            }
+            return false;
+        }
+
+        return content.getId() == contentId;
+    }
+
+    /**
+     * @return a copy of this data which includes only <code>targetId</code>, one of the pages of this set. Sets are
+     *         never kept as snapshots, so neither are their pages.
+     */
+    public SecureIncludeData forTarget(long targetId)
+    {
+        SecureIncludeData data = copy();
+        data.setContentId(targetId);
+        data.setScope(null);
+        data.setLabel(null);
+        data.snapshot = false;
+        return data;
+    }
+
+    /**
+     * @return <code>true</code> if only a plain text summary of the content is included. This is a macro
+     *         parameter and is never saved with the data.
+     */
+    public boolean isSummary()
+    {
+        return summary;
+    }
+
+    /**
+     * @return <code>true</code> if a stored snapshot of the content is included instead of rendering it for each
+     *         view. This is a macro parameter and is never saved with the data.
+     */
+    public boolean isSnapshot()
+    {
+        return snapshot;
+    }
+
+    /**
+     * @return the number of pages of a set to render at a time, or <code>0</code> for the default. This is a macro
+     *         parameter and is never saved with the data.
+     */
+    public int getPageSize()
+    {
+        return pageSize;
+    }
+
+    /**
+     * @return <code>true</code> if a long page is shown a chunk at a time. This is a macro parameter and is never
+     *         saved with the data.
+     */
+    public boolean isChunked()
+    {
+        return chunked;
+    }
+
+    /**
+     * @return <code>true</code> if the browser loads the include after the page is shown. This is a macro parameter
+     *         and is never saved with the data.
+     */
+    public boolean isDeferred()
+    {
+        return deferred;
+    }
+
+    /**
+     * @return the chunk of the page to render, counting from <code>0</code>, when it is shown a chunk at a time.
+     */
+    public int getChunk()
+    {
+        return chunk;
+    }
+
+    /**
+     * @return a copy of this data rendering only the given chunk of the page.
+     */
+    public SecureIncludeData withChunk(int chunk)
+    {
+        SecureIncludeData data = copy();
+        data.chunked = true;
+        data.chunk = chunk;
+        return data;
+    }
+
+    /**
+     * @return a copy of this data including only the given section, or this data if <code>section</code> is blank.
+     */
+    public SecureIncludeData withSection(String section)
+    {
+        if (section == null || section.trim().length() == 0)
+            return this;
+
+        SecureIncludeData data = copy();
+        data.setSection(section.trim());
+        return data;
+    }
+
+    /**
+     * @return a copy of this data with the section, mode, page size and chunking given by the parameters of the
+     *         macro, or this data if they change none of them.
+     */
+    public SecureIncludeData withParameters(Map<String, String> params)
+    {
+        SecureIncludeData data = withSection(params.get(HEADING_PARAM));
+        String mode = params.get(MODE_PARAM);
+        if (SUMMARY_MODE.equals(mode) || SNAPSHOT_MODE.equals(mode))
+        {
+            data = data == this ? copy() : data;
+            data.summary = SUMMARY_MODE.equals(mode);
+            data.snapshot = SNAPSHOT_MODE.equals(mode);
+        }
+
+        String size = params.get(PAGE_SIZE_PARAM);
+        if (size != null && size.trim().matches("[0-9]{1,9}"))
+        {
+            data = data == this ? copy() : data;
+            data.pageSize = Integer.parseInt(size.trim());
+        }
+
+        if (Boolean.parseBoolean(params.get(CHUNKED_PARAM)))
+        {
+            data = data == this ? copy() : data;
+            data.chunked = true;
+        }
+
+        if (Boolean.parseBoolean(params.get(DEFERRED_PARAM)))
+        {
+            data = data == this ? copy() : data;
+            data.deferred = true;
+        }
+        return data;
+    }
+
+    private SecureIncludeData copy()
+    {
+        SecureIncludeData data = new SecureIncludeData();
+        data.setUsername(username);
+        data.setContentId(contentId);
+        data.setSection(section);
+        data.setVersion(version);
+        data.setScope(scope);
+        data.setLabel(label);
+        data.summary = summary;
+        data.snapshot = snapshot;
+        data.pageSize = pageSize;
+        data.chunked = chunked;
+        data.chunk = chunk;
+        data.deferred = deferred;
+        return data;
+    }
+
     private static XStream createXStream()
     {
         XStream xStream = new XStream();
@@ -122,19 +381,32 @@ public class SecureIncludeData implements Serializable
         if (includeId == null || sourceId == 0L)
             return null;
 
-        ContentEntityObject source = getContentEntityManager().getById(sourceId);
-        User currentUser = AuthenticatedUserThreadLocal.getUser();
-        if (!getPermissionManager().hasPermission(currentUser, Permission.VIEW, source))
+        ContentEntityObject source = getViewableSource(sourceId);
+        if (source == null)
             return null;
 
         SecureIncludeData data = load(source, includeId);
 
-        if (data.getContentId() != entity.getId())
+        if (data == null || !data.covers(entity))
             return null;
 
         return data;
     }
 
+    /**
+     * Returns the page holding a secure include, if the current user may view it. Anything served on behalf of
+     * a secure include must first pass this check.
+     */
+    public static ContentEntityObject getViewableSource(long sourceId)
+    {
+        ContentEntityObject source = getContentEntityManager().getById(sourceId);
+        User currentUser = AuthenticatedUserThreadLocal.getUser();
+        if (source == null || !getPermissionManager().hasPermission(currentUser, Permission.VIEW, source))
+            return null;
+
+        return source;
+    }
+
     private static PermissionManager getPermissionManager()
     {
         if (permissionManager == null)
@@ -0,0 +1,107 @@
+/*
+ * Copyright (c) 2017, ServiceRocket Inc
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice,
+ *       this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright notice,
+ *       this list of conditions and the following disclaimer in the documentation
+ *       and/or other materials provided with the distribution.
+ *     * Neither the name of "ServiceRocket Inc" nor the names of its contributors may
+ *       be used to endorse or promote products derived from this software without
+ *       specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package net.customware.confluence.plugin.perimeter;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Streams server-sent events naming the secure includes of a page which have changed, for as long as
+ * <code>push.connectionSeconds</code>. The browser then reconnects, so no connection is held forever. Only
+ * viewers of the page may listen, and the events carry nothing but include ids.
+ *
+ * @since 4.3.1
+ */
+public class SecureIncludeEventServlet extends HttpServlet {
+
+    static final String CONNECTION_SECONDS = "push.connectionSeconds";
+
+    private static final long HEARTBEAT_MILLIS = TimeUnit.SECONDS.toMillis(15);
+    private static final long RETRY_MILLIS = TimeUnit.SECONDS.toMillis(10);
+
+    private final long connectionMillis = TimeUnit.SECONDS.toMillis(PerimeterConfig.getLong(CONNECTION_SECONDS, 55));
+
+    private SecureIncludePushHub pushHub;
+
+    @Override
+    protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
+        long sourceId;
+        try {
+            sourceId = Long.parseLong(req.getParameter("sourceId"));
+        } catch (NumberFormatException e) {
+            resp.sendError(HttpServletResponse.SC_BAD_REQUEST);
+            return;
+        }
+
+        if (SecureIncludeData.getViewableSource(sourceId) == null) {
+            resp.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+
+        SecureIncludePushHub.Listener listener = pushHub.listen(sourceId);
+        if (listener == null) {
+            resp.setHeader("Retry-After", String.valueOf(TimeUnit.MILLISECONDS.toSeconds(RETRY_MILLIS)));
+            resp.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+            return;
+        }
+
+        try {
+            resp.setContentType("text/event-stream");
+            resp.setCharacterEncoding("UTF-8");
+            resp.setHeader("Cache-Control", "no-cache");
+            PrintWriter out = resp.getWriter();
+            out.write("retry: " + RETRY_MILLIS + "\n\n");
+            out.flush();
+
+            long deadline = System.currentTimeMillis() + connectionMillis;
+            long remaining;
+            while ((remaining = deadline - System.currentTimeMillis()) > 0 && !out.checkError()) {
+                String includeId = listener.next(Math.min(HEARTBEAT_MILLIS, remaining));
+                if (includeId != null)
+                    out.write("event: include\ndata: " + includeId.replace('\n', ' ') + "\n\n");
+                else
+                    out.write(": ping\n\n");
+                out.flush();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            pushHub.close(listener);
+        }
+    }
+
+    public void setPushHub(SecureIncludePushHub pushHub) {
+        this.pushHub = pushHub;
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright (c) 2017, ServiceRocket Inc
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice,
+ *       this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright notice,
+ *       this list of conditions and the following disclaimer in the documentation
+ *       and/or other materials provided with the distribution.
+ *     * Neither the name of "ServiceRocket Inc" nor the names of its contributors may
+ *       be used to endorse or promote products derived from this software without
+ *       specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package net.customware.confluence.plugin.perimeter;
+
+import com.atlassian.confluence.content.render.xhtml.ConversionContext;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The chain of pages being rendered into one another by nested secure includes, starting at the page being
+ * viewed. Each graph keeps track of what was rendered inside it, and shares the request wide totals with every
+ * other graph of the same request. The current one is kept in the {@link ConversionContext}.
+ *
+ * @since 4.3.1
+ */
+final class SecureIncludeGraph {
+
+    static final String CONTEXT_PROPERTY = SecureIncludeGraph.class.getName();
+
+    private final SecureIncludeGraph parent;
+    private final long contentId;
+    private final int depth;
+    private final Totals totals;
+    private final AtomicLong nestedChars = new AtomicLong();
+    private final Set<Long> nestedTargets = Collections.newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
+    private volatile boolean truncated;
+
+    private SecureIncludeGraph(SecureIncludeGraph parent, long contentId, int depth, Totals totals) {
+        this.parent = parent;
+        this.contentId = contentId;
+        this.depth = depth;
+        this.totals = totals;
+    }
+
+    /**
+     * @return the current graph of the render, starting a new one at the context's entity if there is none.
+     */
+    static SecureIncludeGraph get(ConversionContext ctx) {
+        Object graph = ctx.getProperty(CONTEXT_PROPERTY);
+        if (graph instanceof SecureIncludeGraph)
+            return (SecureIncludeGraph) graph;
+
+        SecureIncludeGraph root = new SecureIncludeGraph(null,
+                ctx.getEntity() != null ? ctx.getEntity().getId() : 0L, 0, new Totals());
+        ctx.setProperty(CONTEXT_PROPERTY, root);
+        return root;
+    }
+
+    /**
+     * @return a graph one level deeper, rendering <code>targetId</code>.
+     */
+    SecureIncludeGraph enter(long targetId) {
+        return new SecureIncludeGraph(this, targetId, depth + 1, totals);
+    }
+
+    /**
+     * @return the id of the content currently being rendered.
+     */
+    long getContentId() {
+        return contentId;
+    }
+
+    /**
+     * @return the number of includes between the viewed page and the content currently being rendered.
+     */
+    int getDepth() {
+        return depth;
+    }
+
+    boolean contains(long id) {
+        for (SecureIncludeGraph graph = this; graph != null; graph = graph.parent) {
+            if (graph.contentId == id)
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Records that targets were included in this content, and so in the content it is included in.
+     */
+    void nest(Collection<Long> targetIds) {
+        if (targetIds.isEmpty())
+            return;
+        for (SecureIncludeGraph graph = this; graph != null; graph = graph.parent)
+            graph.nestedTargets.addAll(targetIds);
+    }
+
+    /**
+     * @return the targets of every include rendered in this content so far, however deeply nested.
+     */
+    Set<Long> getNestedTargets() {
+        return Collections.unmodifiableSet(nestedTargets);
+    }
+
+    /**
+     * @return the number of includes rendered by the request so far, including this one.
+     */
+    int countInclude() {
+        return totals.includes.incrementAndGet();
+    }
+
+    /**
+     * Counts an include of <code>chars</code> characters rendered into this content. The characters of includes
+     * nested in it were counted as they were rendered, so only the rest of <code>include</code> is counted now.
+     *
+     * @param include
+     *            the graph the include was rendered with, or <code>null</code> if it was not rendered now
+     * @return the number of characters included by the request so far.
+     */
+    long countChars(SecureIncludeGraph include, int chars) {
+        nestedChars.addAndGet(chars);
+        long own = include != null ? Math.max(0, chars - include.nestedChars.get()) : chars;
+        return totals.chars.addAndGet(own);
+    }
+
+    /**
+     * Records that an include in this content was replaced by a placeholder, so neither this content nor the
+     * content it is included in should be cached as rendered now.
+     */
+    void markTruncated() {
+        for (SecureIncludeGraph graph = this; graph != null; graph = graph.parent)
+            graph.truncated = true;
+    }
+
+    /**
+     * @return whether an include somewhere in this content was replaced by a placeholder.
+     */
+    boolean isTruncated() {
+        return truncated;
+    }
+
+    private static final class Totals {
+        private final AtomicInteger includes = new AtomicInteger();
+        private final AtomicLong chars = new AtomicLong();
+    }
+}
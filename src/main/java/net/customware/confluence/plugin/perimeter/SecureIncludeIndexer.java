@@ -0,0 +1,360 @@
+/*
+ * Copyright (c) 2017, ServiceRocket Inc
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice,
+ *       this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright notice,
+ *       this list of conditions and the following disclaimer in the documentation
+ *       and/or other materials provided with the distribution.
+ *     * Neither the name of "ServiceRocket Inc" nor the names of its contributors may
+ *       be used to endorse or promote products derived from this software without
+ *       specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package net.customware.confluence.plugin.perimeter;
+
+import com.atlassian.confluence.content.render.xhtml.DefaultConversionContext;
+import com.atlassian.confluence.core.ContentEntityManager;
+import com.atlassian.confluence.core.ContentEntityObject;
+import com.atlassian.confluence.core.SpaceContentEntityObject;
+import com.atlassian.confluence.event.events.content.blogpost.BlogPostUpdateEvent;
+import com.atlassian.confluence.event.events.content.page.PageUpdateEvent;
+import com.atlassian.confluence.event.events.security.ContentPermissionEvent;
+import com.atlassian.confluence.event.events.security.SpacePermissionsUpdateEvent;
+import com.atlassian.confluence.macro.MacroExecutionException;
+import com.atlassian.confluence.search.ConfluenceIndexer;
+import com.atlassian.event.api.EventListener;
+import com.atlassian.event.api.EventPublisher;
+import com.atlassian.sal.api.transaction.TransactionCallback;
+import com.atlassian.sal.api.transaction.TransactionTemplate;
+import com.atlassian.spring.container.ContainerManager;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import org.slf4j.Logger;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.slf4j.LoggerFactory.getLogger;
+
+/**
+ * Adds the plain text of the secure includes of a page to the text the page is found by in search. Only what the
+ * include shows is added: a summary mode include adds its summary, and the include adds nothing once its owner
+ * can no longer view the target. The time spent is counted so reindexing with and without
+ * <code>index.enabled</code> can be compared.
+ * <p/>
+ * The pages holding includes of a target are remembered as they are indexed, up to <code>index.maxTargets</code>
+ * targets, and queued for reindexing when the target is updated, so their text follows it. A change of space
+ * permissions queues the pages including targets in that space, and a change of restrictions the pages including
+ * targets in the space of the restricted content, as restrictions are inherited by its children. Reindexing runs
+ * on a single background thread with a queue of <code>index.queueSize</code> pages. Changes of group membership
+ * are only picked up the next time the page is indexed.
+ *
+ * @since 4.3.1
+ */
+@Component
+public class SecureIncludeIndexer implements InitializingBean, DisposableBean {
+    private static final Logger log = getLogger(SecureIncludeIndexer.class);
+
+    static final String ENABLED = "index.enabled";
+    static final String MAX_TARGETS = "index.maxTargets";
+    static final String QUEUE_SIZE = "index.queueSize";
+
+    private final boolean enabled = PerimeterConfig.getBoolean(ENABLED, true);
+
+    /**
+     * Target id to the space of the target and the ids of the indexed pages which include it.
+     */
+    private final Cache<Long, Hosts> hosts = CacheBuilder.newBuilder()
+            .maximumSize(PerimeterConfig.getLong(MAX_TARGETS, 10000))
+            .build();
+
+    /**
+     * Indexed page id to the ids of the targets it was last indexed with, so a removed include stops being followed.
+     */
+    private final Cache<Long, Set<Long>> targets = CacheBuilder.newBuilder()
+            .maximumSize(PerimeterConfig.getLong(MAX_TARGETS, 10000))
+            .build();
+
+    private final BoundedExecutor executor = enabled ? new BoundedExecutor("reindex",
+            1, PerimeterConfig.getInt(QUEUE_SIZE, 1000)) : null;
+
+    private final Set<Long> pending = Collections.newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
+
+    private final AtomicLong documents = new AtomicLong();
+    private final AtomicLong includes = new AtomicLong();
+    private final AtomicLong nanos = new AtomicLong();
+    private final AtomicLong reindexed = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+
+    private ContentEntityManager contentEntityManager;
+    private SecureIncludePreloader preloader;
+    private SecureIncludeRenderer renderer;
+    private ConfluenceIndexer confluenceIndexer;
+    private EventPublisher eventPublisher;
+    private TransactionTemplate transactionTemplate;
+
+    /**
+     * Appends the text of the secure includes of <code>entity</code> to <code>text</code>.
+     */
+    public void addText(ContentEntityObject entity, StringBuffer text) {
+        if (!enabled || !entity.isLatestVersion())
+            return;
+
+        long start = System.nanoTime();
+        try {
+            Set<Long> targetIds = new HashSet<Long>();
+            Map<String, Map<String, String>> found = preloader.findIncludes(entity,
+                    new DefaultConversionContext(entity.toPageContext()));
+            for (Map.Entry<String, Map<String, String>> include : found.entrySet()) {
+                SecureIncludeData data = SecureIncludeData.load(entity, include.getKey());
+                if (data != null && !data.isSet() && targetIds.add(data.getContentId()))
+                    recordHost(data.getContentId(), entity.getId());
+                String included = data != null ? getText(entity, include.getKey(), data.withParameters(include.getValue())) : null;
+                if (included != null && included.length() > 0) {
+                    text.append(' ').append(included);
+                    includes.incrementAndGet();
+                }
+            }
+            forgetRemoved(entity.getId(), targetIds);
+        } finally {
+            documents.incrementAndGet();
+            nanos.addAndGet(System.nanoTime() - start);
+        }
+    }
+
+    private void recordHost(long targetId, long hostId) {
+        Hosts entry = hosts.getIfPresent(targetId);
+        if (entry == null) {
+            ContentEntityObject target = getContentEntityManager().getById(targetId);
+            entry = new Hosts(target instanceof SpaceContentEntityObject
+                    ? ((SpaceContentEntityObject) target).getSpaceKey() : null);
+            Hosts existing = hosts.asMap().putIfAbsent(targetId, entry);
+            if (existing != null)
+                entry = existing;
+        }
+        entry.ids.add(hostId);
+    }
+
+    /**
+     * Stops following the targets the page included when it was last indexed but no longer does.
+     */
+    private void forgetRemoved(long hostId, Set<Long> targetIds) {
+        Set<Long> previous = targets.getIfPresent(hostId);
+        if (previous != null) {
+            for (Long targetId : previous) {
+                Hosts entry = targetIds.contains(targetId) ? null : hosts.getIfPresent(targetId);
+                if (entry != null)
+                    entry.ids.remove(hostId);
+            }
+        }
+        if (targetIds.isEmpty())
+            targets.invalidate(hostId);
+        else
+            targets.put(hostId, targetIds);
+    }
+
+    /**
+     * Queues the pages holding includes of the target for reindexing.
+     */
+    void targetChanged(long targetId) {
+        Hosts entry = hosts.getIfPresent(targetId);
+        if (entry != null)
+            reindex(entry.ids);
+    }
+
+    /**
+     * Queues the pages holding includes of targets in the space for reindexing.
+     */
+    void spaceChanged(String spaceKey) {
+        Set<Long> ids = new HashSet<Long>();
+        for (Hosts entry : hosts.asMap().values()) {
+            if (entry.spaceKey == null || entry.spaceKey.equals(spaceKey))
+                ids.addAll(entry.ids);
+        }
+        reindex(ids);
+    }
+
+    private void reindex(Collection<Long> hostIds) {
+        final Set<Long> queued = new HashSet<Long>();
+        for (Long hostId : hostIds) {
+            if (pending.add(hostId))
+                queued.add(hostId);
+        }
+        if (queued.isEmpty())
+            return;
+
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        transactionTemplate.execute(new TransactionCallback<Object>() {
+                            @Override
+                            public Object doInTransaction() {
+                                for (Long hostId : queued) {
+                                    pending.remove(hostId);
+                                    ContentEntityObject host = getContentEntityManager().getById(hostId);
+                                    if (host != null && host.isLatestVersion()) {
+                                        confluenceIndexer.reIndex(host);
+                                        reindexed.incrementAndGet();
+                                    }
+                                }
+                                return null;
+                            }
+                        });
+                    } catch (RuntimeException e) {
+                        pending.removeAll(queued);
+                        log.warn("Unable to reindex the pages holding secure includes " + queued, e);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            pending.removeAll(queued);
+            rejected.incrementAndGet();
+            log.debug("Reindex queue is full, skipped {}", queued);
+        }
+    }
+
+    private String getText(ContentEntityObject entity, String id, SecureIncludeData data) {
+        try {
+            return renderer.getIndexText(data);
+        } catch (MacroExecutionException e) {
+            log.debug("Secure include " + id + " on " + entity.getId() + " not indexed: " + e.getMessage());
+            return null;
+        }
+    }
+
+    public long getDocumentCount() {
+        return documents.get();
+    }
+
+    public long getIncludeCount() {
+        return includes.get();
+    }
+
+    public long getReindexedCount() {
+        return reindexed.get();
+    }
+
+    public long getRejectedCount() {
+        return rejected.get();
+    }
+
+    /**
+     * @return the average time spent adding the includes of a document, in microseconds.
+     */
+    public long getAverageMicros() {
+        long count = documents.get();
+        return count == 0 ? 0L : TimeUnit.NANOSECONDS.toMicros(nanos.get() / count);
+    }
+
+    @EventListener
+    public void onPageUpdate(PageUpdateEvent event) {
+        targetChanged(event.getPage().getId());
+    }
+
+    @EventListener
+    public void onBlogPostUpdate(BlogPostUpdateEvent event) {
+        targetChanged(event.getBlogPost().getId());
+    }
+
+    @EventListener
+    public void onSpacePermissionsUpdate(SpacePermissionsUpdateEvent event) {
+        if (event.getSpace() != null)
+            spaceChanged(event.getSpace().getKey());
+    }
+
+    @EventListener
+    public void onContentPermission(ContentPermissionEvent event) {
+        ContentEntityObject content = event.getContent();
+        if (content instanceof SpaceContentEntityObject)
+            spaceChanged(((SpaceContentEntityObject) content).getSpaceKey());
+        else if (content != null)
+            targetChanged(content.getId());
+    }
+
+    @Override
+    public void afterPropertiesSet() throws Exception {
+        if (enabled)
+            eventPublisher.register(this);
+    }
+
+    @Override
+    public void destroy() throws Exception {
+        if (enabled) {
+            eventPublisher.unregister(this);
+            executor.shutdown();
+        }
+        hosts.invalidateAll();
+        targets.invalidateAll();
+        pending.clear();
+    }
+
+    public ContentEntityManager getContentEntityManager() {
+        if (contentEntityManager == null) {
+            contentEntityManager = (ContentEntityManager) ContainerManager.getComponent("contentEntityManager");
+        }
+        return contentEntityManager;
+    }
+
+    @Autowired
+    public void setPreloader(SecureIncludePreloader preloader) {
+        this.preloader = preloader;
+    }
+
+    @Autowired
+    public void setRenderer(SecureIncludeRenderer renderer) {
+        this.renderer = renderer;
+    }
+
+    @Autowired
+    public void setConfluenceIndexer(ConfluenceIndexer confluenceIndexer) {
+        this.confluenceIndexer = confluenceIndexer;
+    }
+
+    @Autowired
+    public void setEventPublisher(EventPublisher eventPublisher) {
+        this.eventPublisher = eventPublisher;
+    }
+
+    @Autowired
+    public void setTransactionTemplate(TransactionTemplate transactionTemplate) {
+        this.transactionTemplate = transactionTemplate;
+    }
+
+    private static class Hosts {
+        private final String spaceKey;
+        private final Set<Long> ids = Collections.newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
+
+        private Hosts(String spaceKey) {
+            this.spaceKey = spaceKey;
+        }
+    }
+}
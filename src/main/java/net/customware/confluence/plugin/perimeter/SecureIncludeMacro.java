@@ -29,25 +29,23 @@
 package net.customware.confluence.plugin.perimeter;
 
 import com.atlassian.confluence.content.render.xhtml.ConversionContext;
+import com.atlassian.confluence.content.render.xhtml.ConversionContextOutputType;
 import com.atlassian.confluence.content.render.xhtml.DefaultConversionContext;
-import com.atlassian.confluence.content.render.xhtml.XhtmlException;
+import com.atlassian.confluence.content.render.xhtml.Streamable;
 import com.atlassian.confluence.core.ConfluenceEntityObject;
 import com.atlassian.confluence.core.ContentEntityManager;
 import com.atlassian.confluence.core.ContentEntityObject;
-import com.atlassian.confluence.macro.Macro;
 import com.atlassian.confluence.macro.MacroExecutionException;
-import com.atlassian.confluence.renderer.PageContext;
+import com.atlassian.confluence.macro.StreamableMacro;
+import com.atlassian.confluence.pages.Page;
 import com.atlassian.confluence.security.Permission;
 import com.atlassian.confluence.security.PermissionManager;
-import com.atlassian.confluence.servlet.FileServerServlet;
-import com.atlassian.confluence.setup.BootstrapManager;
 import com.atlassian.confluence.user.AuthenticatedUserThreadLocal;
 import com.atlassian.confluence.user.ConfluenceUser;
-import com.atlassian.confluence.user.UserAccessor;
-import com.atlassian.confluence.util.GeneralUtil;
 import com.atlassian.confluence.web.context.StaticHttpContext;
-import com.atlassian.confluence.xhtml.api.XhtmlContent;
+import com.atlassian.plugin.webresource.WebResourceManager;
 import com.atlassian.renderer.RenderContext;
+import com.atlassian.renderer.RenderContextOutputType;
 import com.atlassian.renderer.v2.RenderMode;
 import com.atlassian.renderer.v2.macro.BaseMacro;
 import com.atlassian.renderer.v2.macro.MacroException;
@@ -56,8 +54,10 @@ import com.atlassian.user.User;
 import org.slf4j.Logger;
 import org.springframework.beans.factory.annotation.Autowired;
 
-import javax.xml.stream.XMLStreamException;
+import java.util.Arrays;
+import java.util.HashSet;
 import java.util.Map;
+import java.util.Set;
 
 import static com.atlassian.confluence.util.GeneralUtil.htmlEncode;
 import static org.apache.commons.lang3.StringUtils.isBlank;
@@ -67,19 +67,34 @@ import static org.slf4j.LoggerFactory.getLogger;
 /**
  * @since 2005-12-10
  */
-public class SecureIncludeMacro extends BaseMacro implements Macro {
+public class SecureIncludeMacro extends BaseMacro implements StreamableMacro {
     private static Logger log = getLogger(SecureIncludeMacro.class);
     private static final String ID = "id";
     public static final String ID_PARAM = "secureIncludeId";
     public static final String LINK_PARAM = "secureIncludeLink";
+    public static final String VERSION_PARAM = "secureIncludeVersion";
+    public static final String SCOPE_PARAM = "secureIncludeScope";
     public static final String PAGE_ID_PARAM = "pageId";
 
+    /**
+     * Output types in which the include is only named, as the page is being edited or compared rather than read.
+     */
+    static final Set<String> PLACEHOLDER_OUTPUT_TYPES = new HashSet<String>(Arrays.asList(
+            ConversionContextOutputType.PREVIEW.value(), ConversionContextOutputType.WYSIWYG.value(),
+            ConversionContextOutputType.DIFF.value()));
+    private static final String DEFERRED_RESOURCE = PluginInfo.PLUGIN_KEY + ":deferred-loader";
+    private static final String PUSH_RESOURCE = PluginInfo.PLUGIN_KEY + ":push-client";
+
     private ContentEntityManager contentEntityManager;
     private PermissionManager permissionManager;
-    private UserAccessor userAccessor;
-    private BootstrapManager bootstrapManager;
-    private XhtmlContent xhtmlContent;
     private LinkAssistant linkAssistant;
+    private SecureIncludePreloader preloader;
+    private SecureIncludeParallelRenderer parallelRenderer;
+    private SecureIncludeSetRenderer setRenderer;
+    private WebResourceManager webResourceManager;
+    private SecureIncludeWarmer warmer;
+    private SecureIncludePushHub pushHub;
+    private PreloadHints preloadHints;
 
     @Override
     public String execute(Map params, String body, RenderContext renderContext) throws MacroException {
@@ -92,29 +107,119 @@ public class SecureIncludeMacro extends BaseMacro implements Macro {
 
     @Override
     public String execute(Map<String, String> params, String body, ConversionContext ctx) throws MacroExecutionException {
+        return executeToStream(params, null, ctx).toString();
+    }
+
+    @Override
+    public RenderedFragment executeToStream(Map<String, String> params, Streamable body, ConversionContext ctx) throws MacroExecutionException {
         String id = isNotBlank(params.get(ID)) ? params.get(ID) : null;
         if (id == null)
             throw new MacroExecutionException("Please supply an id which is unique to this page.");
 
-        SecureIncludeData data = SecureIncludeData.load(ctx.getEntity(), id);
+        if (PLACEHOLDER_OUTPUT_TYPES.contains(ctx.getOutputType()))
+            return RenderedFragment.of(placeholder(id, params, ctx));
+
+        // Let the browser start on the include's images before it parses the include.
+        RenderedFragment fragment = preloadHints.hint(render(id, params, ctx), ctx);
+
+        // Let open views of the page refresh this include on its own when its target changes.
+        if (pushHub.isEnabled() && RenderContextOutputType.DISPLAY.equals(ctx.getOutputType())
+                && SecureIncludeGraph.get(ctx).getDepth() == 0) {
+            webResourceManager.requireResource(PUSH_RESOURCE);
+            return pushHub.wrap(ctx.getEntity().getId(), id, fragment);
+        }
+        return fragment;
+    }
+
+    private RenderedFragment render(String id, Map<String, String> params, ConversionContext ctx) throws MacroExecutionException {
+
+        if (isDeferred(params, ctx)) {
+            SecureIncludeData data = SecureIncludeData.load(ctx.getEntity(), id);
+            if (data != null) {
+                webResourceManager.requireResource(DEFERRED_RESOURCE);
+                return RenderedFragment.of(Placeholders.deferred(ctx.getEntity().getId(), id));
+            }
+        }
+
+        SecureIncludeSnapshot snapshot = preloader.getSnapshot(ctx);
+        SecureIncludeData data = snapshot != null && snapshot.contains(id)
+                ? snapshot.getData(id) : SecureIncludeData.load(ctx.getEntity(), id);
 
         if (data == null) {
             data = processRequest(id, ctx);
+
+            // A new deferred include is rendered in the background, so the page can be shown without waiting.
+            if (data != null && isDeferred(params, ctx) && warm(id, data.withParameters(params), ctx)) {
+                webResourceManager.requireResource(DEFERRED_RESOURCE);
+                return RenderedFragment.of(Placeholders.deferred(ctx.getEntity().getId(), id));
+            }
         }
 
         if (data != null) {
-            return includePage(id, data, ctx);
+            data = data.withParameters(params);
+            try {
+                if (data.isSet()) {
+                    // The loader script fetches further pages of the set.
+                    webResourceManager.requireResource(DEFERRED_RESOURCE);
+                    return setRenderer.render(id, data, ctx, 0);
+                }
+                // The loader script fetches the further chunks of a long page.
+                if (data.isChunked())
+                    webResourceManager.requireResource(DEFERRED_RESOURCE);
+                return parallelRenderer.render(id, data, snapshot, ctx);
+            } catch (SecureIncludeLimitException | SecureIncludeUnavailableException e) {
+                log.debug("Secure include " + id + " on " + ctx.getEntity().getId() + " not rendered: " + e.getMessage());
+                SecureIncludeGraph.get(ctx).markTruncated();
+                return RenderedFragment.of(Placeholders.forFailure(e));
+            }
         } else {
             ConfluenceUser user = AuthenticatedUserThreadLocal.get();
             if (permissionManager.hasPermission(user, Permission.EDIT, ctx.getEntity()))
-                return inputForm(id, ctx);
+                return RenderedFragment.of(inputForm(id, ctx));
 
-            return "";
+            return RenderedFragment.of("");
         }
     }
 
+    /**
+     * Names the target and owner of the include without rendering it.
+     */
+    private String placeholder(String id, Map<String, String> params, ConversionContext ctx) {
+        SecureIncludeData data = SecureIncludeData.load(ctx.getEntity(), id);
+        if (data == null)
+            return Placeholders.info("Secure include", "Not set up yet. Save the page and view it to choose the page to include.");
+
+        ContentEntityObject target = SecureIncludeData.LABEL_SCOPE.equals(data.getScope())
+                ? null : getContentEntityManager().getById(data.getContentId());
+        if (target == null && !SecureIncludeData.LABEL_SCOPE.equals(data.getScope()))
+            return Placeholders.error("Secure include", "The content this secure include accesses no longer exists.");
+
+        data = data.withParameters(params);
+        String included = SecureIncludeData.LABEL_SCOPE.equals(data.getScope()) ? "pages labelled '" + data.getLabel() + "'"
+                : SecureIncludeData.CHILDREN_SCOPE.equals(data.getScope()) ? "children of " + target.getDisplayTitle()
+                : target.getDisplayTitle();
+        String title = "Secure include: " + included
+                + (data.getSection() != null ? " #" + data.getSection() : "")
+                + (data.isPinned() ? " (version " + data.getVersion() + ")" : "")
+                + (data.isSummary() ? " (summary)" : "")
+                + (data.isSnapshot() ? " (snapshot)" : "");
+        return Placeholders.info(title, "Included as " + data.getUsername() + ". The content is shown when the page is viewed.");
+    }
+
+    /**
+     * Deferred includes are only left for the browser to load in page views, and never when nested in another
+     * include.
+     */
+    private boolean isDeferred(Map<String, String> params, ConversionContext ctx) {
+        return Boolean.parseBoolean(params.get(SecureIncludeData.DEFERRED_PARAM))
+                && RenderContextOutputType.DISPLAY.equals(ctx.getOutputType())
+                && SecureIncludeGraph.get(ctx).getDepth() == 0;
+    }
+
     private String inputForm(String id, ConversionContext ctx) {
         String link = getRequestParam(LINK_PARAM, null);
+        String version = getRequestParam(VERSION_PARAM, null);
+        String scope = getRequestParam(SCOPE_PARAM, null);
         String ctxPath = ctx.getPageContext().getSiteRoot();
 
         StringBuffer out = new StringBuffer();
@@ -128,12 +233,22 @@ public class SecureIncludeMacro extends BaseMacro implements Macro {
                 .append("\" value=\"").append(htmlEncode(id)).append("\"/>\n");
 
         if (link != null)
-            out.append("<div class='error'>The specified link does not exist or is not accessible.</div>\n");
+            out.append("<div class='error'>The specified link or version does not exist or is not accessible.</div>\n");
 
         out.append("<p>");
         out.append("Enter the link to any other page you can view, in any space, and anyone who can view <i>this</i> page will be able to view it.<br/>");
+        out.append("To include a single section, add <i>#heading</i> to the link.<br/>");
+        out.append("To always show the page as it was at one version, even after it is edited, enter the version number.<br/>");
+        out.append("To include the children of the page instead, or every page with a label, choose it and enter the page or the label.<br/>");
+        out.append("<select name='").append(SCOPE_PARAM).append("'>");
+        appendOption(out, "", "This page", scope);
+        appendOption(out, SecureIncludeData.CHILDREN_SCOPE, "Its children", scope);
+        appendOption(out, SecureIncludeData.LABEL_SCOPE, "Pages with label", scope);
+        out.append("</select> ");
         out.append("<b>Link:</b> <input type='text' name='").append(LINK_PARAM)
                 .append("' value=\"").append((link == null) ? "" : link).append("\" width='20'/>");
+        out.append(" <b>Version:</b> <input type='text' name='").append(VERSION_PARAM)
+                .append("' value=\"").append((version == null) ? "" : htmlEncode(version)).append("\" size='4'/>");
         out.append(" <input type='submit' name='go' value='Include'/>");
         out.append("</p>\n");
 
@@ -143,18 +258,44 @@ public class SecureIncludeMacro extends BaseMacro implements Macro {
         return out.toString();
     }
 
+    private void appendOption(StringBuffer out, String value, String label, String selected) {
+        out.append("<option value='").append(value).append("'")
+                .append(value.equals(selected == null ? "" : selected) ? " selected='selected'" : "")
+                .append(">").append(label).append("</option>");
+    }
+
+    private boolean warm(String id, SecureIncludeData data, ConversionContext ctx) {
+        if (data.isSummary() || data.isSnapshot() || data.isSet())
+            return false;
+        return warmer.warm(new SecureIncludeRenderCache.Key(data.getContentId(), data.getUsername(),
+                ctx.getEntity().getId(), id, data.getSection()));
+    }
+
     private SecureIncludeData processRequest(String id, ConversionContext ctx) {
         if (id.equals(getRequestParam(ID_PARAM, null))) {
             String link = getRequestParam(LINK_PARAM, null);
+            String scope = getRequestParam(SCOPE_PARAM, null);
+            if (link != null && SecureIncludeData.LABEL_SCOPE.equals(scope))
+                return processLabel(id, link, ctx);
+
             if (link != null && link.length() > 0) {
                 // Try to find the content.
                 ConfluenceEntityObject entity = linkAssistant.getEntityForWikiLink(ctx, link);
                 if (entity instanceof ContentEntityObject) {
                     User user = AuthenticatedUserThreadLocal.get();
                     if (permissionManager.hasPermission(user, Permission.VIEW, entity)) {
+                        boolean children = SecureIncludeData.CHILDREN_SCOPE.equals(scope);
+                        // Only single pages can be pinned to a version.
+                        int version = children ? 0 : getPinnedVersion((ContentEntityObject) entity);
+                        if (version < 0 || children && !(entity instanceof Page))
+                            return null;
+
                         SecureIncludeData data = new SecureIncludeData();
                         data.setUsername(user.getName());
                         data.setContentId(entity.getId());
+                        data.setSection(linkAssistant.getAnchor(ctx, link));
+                        data.setVersion(version);
+                        data.setScope(children ? SecureIncludeData.CHILDREN_SCOPE : null);
                         SecureIncludeData.save(ctx.getEntity(), id, data);
                         return data;
                     }
@@ -164,68 +305,58 @@ public class SecureIncludeMacro extends BaseMacro implements Macro {
         return null;
     }
 
-    private String getRequestParam(String name, String defaultVal) {
-        if ((new StaticHttpContext()).getRequest() != null) {
-            String param = (new StaticHttpContext()).getRequest().getParameter(name);
-            if (isBlank(param)) {
-                return defaultVal;
-            } else {
-                return param;
+    /**
+     * Sets up an include of the pages with a label, as long as the current user can view at least one of them.
+     */
+    private SecureIncludeData processLabel(String id, String link, ConversionContext ctx) {
+        String label = link.trim().toLowerCase();
+        User user = AuthenticatedUserThreadLocal.get();
+        for (ContentEntityObject content : linkAssistant.getLabelledContent(label)) {
+            if (permissionManager.hasPermission(user, Permission.VIEW, content)) {
+                SecureIncludeData data = new SecureIncludeData();
+                data.setUsername(user.getName());
+                data.setScope(SecureIncludeData.LABEL_SCOPE);
+                data.setLabel(label);
+                SecureIncludeData.save(ctx.getEntity(), id, data);
+                return data;
             }
         }
-        return defaultVal;
+        return null;
     }
 
-    private String includePage(String id, SecureIncludeData data, ConversionContext conversionContext) throws MacroExecutionException {
-        ContentEntityObject targetContent = getContentEntityManager().getById(data.getContentId());
+    /**
+     * @return the version of <code>content</code> asked for in the form, <code>0</code> if none was asked for, or
+     *         <code>-1</code> if it is not a version of the content.
+     */
+    private int getPinnedVersion(ContentEntityObject content) {
+        String param = getRequestParam(VERSION_PARAM, null);
+        if (param == null)
+            return 0;
 
-        if (targetContent == null) {
-            throw new MacroExecutionException("The targetContent this secure include accesses no longer exists.");
-        }
-
-        ConfluenceUser user = userAccessor.getUserByName(data.getUsername());
-        if (user == null) {
-            throw new MacroExecutionException("The user who set up this secure include no longer exists: " + data.getUsername());
-        }
-
-        if (!permissionManager.hasPermission(user, Permission.VIEW, targetContent)) {
-            throw new MacroExecutionException("The user who set up this secure include no longer has access to the resource.");
-        }
-
-        PageContext ctx = targetContent.toPageContext();
-        String contentIncludeId = SecureAttachmentDownload.ATTACHMENT_PATH + "/" + targetContent.getId()
-                + "/" + conversionContext.getEntity().getId() + "/" + GeneralUtil.urlEncode(id);
-
-        String securePath = bootstrapManager.getWebAppContextPath() + contentIncludeId;
-
-        ctx.setSiteRoot(conversionContext.getPageContext().getSiteRoot());
-        ctx.setBaseUrl(conversionContext.getPageContext().getBaseUrl());
-        ctx.setImagePath(conversionContext.getPageContext().getImagePath());
-        ctx.setAttachmentsPath(securePath);
-
-        // Fake logging in as the original accessor...
-        ConfluenceUser currentUser = AuthenticatedUserThreadLocal.get();
-        AuthenticatedUserThreadLocal.set(user);
-
-        //return subRenderer.render(targetContent.getContent(), ctx, RenderMode.ALL);
-        String rendered;
+        int version;
         try {
-            rendered = xhtmlContent.convertStorageToView(targetContent.getBodyAsString(), conversionContext);
-        } catch (XhtmlException | XMLStreamException e) {
-            throw new MacroExecutionException(e.getMessage());
+            version = Integer.parseInt(param.trim());
+        } catch (NumberFormatException e) {
+            return -1;
         }
 
-        // Return to the real user...
-        AuthenticatedUserThreadLocal.set(currentUser);
-
-        rendered = replaceAttachmentUrls(rendered, data, contentIncludeId);
-
-        return rendered;
+        if (version < 1 || version > content.getVersion())
+            return -1;
+        if (version != content.getVersion() && getContentEntityManager().getOtherVersion(content, version) == null)
+            return -1;
+        return version;
     }
 
-    private String replaceAttachmentUrls(String rendered, SecureIncludeData data, String contentIncludeId) {
-        String attachmentUrl = "/" + FileServerServlet.SERVLET_PATH + "/" + FileServerServlet.ATTACHMENTS_URL_PREFIX + "/" + data.getContentId();
-        return rendered.replaceAll(attachmentUrl, contentIncludeId);
+    private String getRequestParam(String name, String defaultVal) {
+        if ((new StaticHttpContext()).getRequest() != null) {
+            String param = (new StaticHttpContext()).getRequest().getParameter(name);
+            if (isBlank(param)) {
+                return defaultVal;
+            } else {
+                return param;
+            }
+        }
+        return defaultVal;
     }
 
     public boolean isInline() {
@@ -261,22 +392,42 @@ public class SecureIncludeMacro extends BaseMacro implements Macro {
     }
 
     @Autowired
-    public void setUserAccessor(UserAccessor userAccessor) {
-        this.userAccessor = userAccessor;
+    public void setLinkAssistant(LinkAssistant linkAssistant) {
+        this.linkAssistant = linkAssistant;
+    }
+
+    @Autowired
+    public void setPreloader(SecureIncludePreloader preloader) {
+        this.preloader = preloader;
     }
 
     @Autowired
-    public void setBootstrapManager(BootstrapManager bootstrapManager) {
-        this.bootstrapManager = bootstrapManager;
+    public void setParallelRenderer(SecureIncludeParallelRenderer parallelRenderer) {
+        this.parallelRenderer = parallelRenderer;
     }
 
     @Autowired
-    public void setXhtmlContent(XhtmlContent xhtmlContent) {
-        this.xhtmlContent = xhtmlContent;
+    public void setSetRenderer(SecureIncludeSetRenderer setRenderer) {
+        this.setRenderer = setRenderer;
     }
 
     @Autowired
-    public void setLinkAssistant(LinkAssistant linkAssistant) {
-        this.linkAssistant = linkAssistant;
+    public void setWebResourceManager(WebResourceManager webResourceManager) {
+        this.webResourceManager = webResourceManager;
+    }
+
+    @Autowired
+    public void setWarmer(SecureIncludeWarmer warmer) {
+        this.warmer = warmer;
+    }
+
+    @Autowired
+    public void setPushHub(SecureIncludePushHub pushHub) {
+        this.pushHub = pushHub;
+    }
+
+    @Autowired
+    public void setPreloadHints(PreloadHints preloadHints) {
+        this.preloadHints = preloadHints;
     }
 }
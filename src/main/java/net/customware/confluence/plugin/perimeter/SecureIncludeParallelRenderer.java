@@ -0,0 +1,310 @@
+/*
+ * Copyright (c) 2017, ServiceRocket Inc
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice,
+ *       this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright notice,
+ *       this list of conditions and the following disclaimer in the documentation
+ *       and/or other materials provided with the distribution.
+ *     * Neither the name of "ServiceRocket Inc" nor the names of its contributors may
+ *       be used to endorse or promote products derived from this software without
+ *       specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package net.customware.confluence.plugin.perimeter;
+
+import com.atlassian.confluence.content.render.xhtml.ConversionContext;
+import com.atlassian.confluence.content.render.xhtml.DefaultConversionContext;
+import com.atlassian.confluence.core.ContentEntityManager;
+import com.atlassian.confluence.core.ContentEntityObject;
+import com.atlassian.confluence.macro.MacroExecutionException;
+import com.atlassian.confluence.renderer.PageContext;
+import com.atlassian.confluence.user.AuthenticatedUserThreadLocal;
+import com.atlassian.confluence.user.ConfluenceUser;
+import com.atlassian.renderer.RenderContextOutputType;
+import com.atlassian.sal.api.transaction.TransactionCallback;
+import com.atlassian.sal.api.transaction.TransactionTemplate;
+import com.atlassian.spring.container.ContainerManager;
+import org.slf4j.Logger;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+
+import static org.slf4j.LoggerFactory.getLogger;
+
+/**
+ * Renders the secure includes of a page concurrently. When the first include on a page executes, a render task
+ * is created for every include on the page and up to <code>render.parallel.perPage</code> pool threads start
+ * working through them in document order. Each macro then waits for its own task, running it on the request
+ * thread instead if no pool thread has reached it yet, so output is always returned in document order.
+ * <p>
+ * Includes which are only named in the output, or left for the browser to load, are not rendered ahead. A batch
+ * left behind by a render of another page has its remaining tasks cancelled.
+ *
+ * @since 4.3.1
+ */
+@Component
+public class SecureIncludeParallelRenderer implements DisposableBean {
+    private static final Logger log = getLogger(SecureIncludeParallelRenderer.class);
+
+    static final String ENABLED = "render.parallel.enabled";
+    static final String THREADS = "render.parallel.threads";
+    static final String QUEUE_SIZE = "render.parallel.queueSize";
+    static final String PER_PAGE = "render.parallel.perPage";
+
+    private static final String CONTEXT_PROPERTY = Batch.class.getName();
+
+    private final boolean enabled = PerimeterConfig.getBoolean(ENABLED, false);
+    private final int perPage = Math.max(1, PerimeterConfig.getInt(PER_PAGE, 2));
+    private final BoundedExecutor executor = enabled ? new BoundedExecutor("render",
+            PerimeterConfig.getInt(THREADS, 4), PerimeterConfig.getInt(QUEUE_SIZE, 100)) : null;
+
+    private ContentEntityManager contentEntityManager;
+    private SecureIncludeRenderer renderer;
+    private TransactionTemplate transactionTemplate;
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Renders the include, starting concurrent rendering of the rest of the page if this is the first include
+     * rendered from the snapshot.
+     */
+    public RenderedFragment render(String id, SecureIncludeData data, SecureIncludeSnapshot snapshot, ConversionContext ctx) throws MacroExecutionException {
+        // Includes nested in a target are rendered as part of it, on whichever thread renders the target.
+        boolean nested = SecureIncludeGraph.get(ctx).getDepth() > 0;
+        boolean placeholder = SecureIncludeMacro.PLACEHOLDER_OUTPUT_TYPES.contains(ctx.getOutputType());
+        Batch batch = enabled && snapshot != null && !nested && !placeholder ? getBatch(snapshot, ctx) : null;
+        FutureTask<RenderedFragment> task = batch != null ? batch.tasks.get(id) : null;
+
+        if (task == null)
+            return renderer.render(id, data, ctx);
+
+        task.run();
+        try {
+            return task.get();
+        } catch (CancellationException e) {
+            // The batch was abandoned before the task ran, so the include is rendered here after all.
+            return renderer.render(id, data, ctx);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new MacroExecutionException(e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof MacroExecutionException)
+                throw (MacroExecutionException) e.getCause();
+            throw new MacroExecutionException(e.getCause());
+        }
+    }
+
+    /**
+     * Renders the pages of a multi-page include the same way as the includes of a page: pool threads work through
+     * them alongside the request thread. Nested sets are rendered on the calling thread only.
+     *
+     * @return the completed renders, in the order of <code>targets</code>.
+     */
+    public List<Future<RenderedFragment>> renderAll(String id, List<SecureIncludeData> targets, ConversionContext ctx) {
+        Batch batch = new Batch(ctx.getEntity().getId());
+        SecureIncludeSnapshot snapshot = SecureIncludeSnapshot.get(ctx);
+        SecureIncludeSnapshot detached = snapshot != null ? snapshot.detached() : null;
+        List<Future<RenderedFragment>> renders = new ArrayList<Future<RenderedFragment>>(targets.size());
+        for (SecureIncludeData data : targets) {
+            FutureTask<RenderedFragment> task = new FutureTask<RenderedFragment>(new RenderTask(id, data, batch.entityId, ctx, detached));
+            batch.queue.add(task);
+            renders.add(task);
+        }
+
+        if (enabled && targets.size() > 1 && SecureIncludeGraph.get(ctx).getDepth() == 0) {
+            try {
+                for (int i = 0; i < Math.min(perPage, targets.size() - 1); i++)
+                    executor.execute(batch);
+            } catch (RejectedExecutionException e) {
+                log.debug("Render pool is busy, rendering the set {} on the request thread", id);
+            }
+        }
+
+        // Tasks already taken by a pool thread do not run again; waiting for them is left to the caller.
+        batch.run();
+        return renders;
+    }
+
+    private Batch getBatch(SecureIncludeSnapshot snapshot, ConversionContext ctx) {
+        Object existing = ctx.getProperty(CONTEXT_PROPERTY);
+        if (existing instanceof Batch && ((Batch) existing).entityId == snapshot.getEntityId())
+            return (Batch) existing;
+        // The context has moved on to another page, so nobody is left to wait for the renders of the old one.
+        if (existing instanceof Batch)
+            ((Batch) existing).cancel();
+
+        Batch batch = new Batch(snapshot.getEntityId());
+        ctx.setProperty(CONTEXT_PROPERTY, batch);
+
+        // Deferred includes are only left for the browser to load in page views.
+        boolean display = RenderContextOutputType.DISPLAY.equals(ctx.getOutputType());
+        SecureIncludeSnapshot detached = snapshot.detached();
+        int rendered = 0;
+        for (String id : snapshot.getIncludeIds()) {
+            SecureIncludeData data = snapshot.getData(id);
+            // Sets are rendered by the set renderer, which spreads their pages over the pool itself.
+            if (data != null && !data.isSet() && !(display && data.isDeferred())) {
+                FutureTask<RenderedFragment> task = new FutureTask<RenderedFragment>(new RenderTask(id, data, snapshot.getEntityId(), ctx, detached));
+                batch.tasks.put(id, task);
+                batch.queue.add(task);
+                rendered++;
+            }
+        }
+
+        // A single include gains nothing from a hand-off to another thread.
+        if (rendered > 1) {
+            try {
+                for (int i = 0; i < Math.min(perPage, rendered); i++)
+                    executor.execute(batch);
+            } catch (RejectedExecutionException e) {
+                log.debug("Render pool is busy, rendering the rest of {} on the request thread", snapshot.getEntityId());
+            }
+        }
+        return batch;
+    }
+
+    @Override
+    public void destroy() throws Exception {
+        if (executor != null)
+            executor.shutdown();
+    }
+
+    public ContentEntityManager getContentEntityManager() {
+        if (contentEntityManager == null) {
+            contentEntityManager = (ContentEntityManager) ContainerManager.getComponent("contentEntityManager");
+        }
+        return contentEntityManager;
+    }
+
+    @Autowired
+    public void setRenderer(SecureIncludeRenderer renderer) {
+        this.renderer = renderer;
+    }
+
+    @Autowired
+    public void setTransactionTemplate(TransactionTemplate transactionTemplate) {
+        this.transactionTemplate = transactionTemplate;
+    }
+
+    /**
+     * The render tasks of one page. Each pool thread given the batch keeps taking the next task until none are
+     * left, which caps the threads working on a single page.
+     */
+    private static final class Batch implements Runnable {
+        private final long entityId;
+        private final Map<String, FutureTask<RenderedFragment>> tasks = new LinkedHashMap<String, FutureTask<RenderedFragment>>();
+        private final Queue<FutureTask<RenderedFragment>> queue = new ConcurrentLinkedQueue<FutureTask<RenderedFragment>>();
+
+        Batch(long entityId) {
+            this.entityId = entityId;
+        }
+
+        @Override
+        public void run() {
+            FutureTask<RenderedFragment> task;
+            while ((task = queue.poll()) != null)
+                task.run();
+        }
+
+        /**
+         * Cancels the tasks no thread has started yet.
+         */
+        void cancel() {
+            FutureTask<RenderedFragment> task;
+            while ((task = queue.poll()) != null)
+                task.cancel(false);
+        }
+    }
+
+    private final class RenderTask implements Callable<RenderedFragment> {
+        private final String id;
+        private final SecureIncludeData data;
+        private final long entityId;
+        private final ConversionContext ctx;
+        private final Thread requestThread = Thread.currentThread();
+        private final ConfluenceUser viewer = AuthenticatedUserThreadLocal.get();
+        private final SecureIncludeGraph graph;
+        private final SecureIncludeSnapshot snapshot;
+
+        RenderTask(String id, SecureIncludeData data, long entityId, ConversionContext ctx, SecureIncludeSnapshot snapshot) {
+            this.id = id;
+            this.data = data;
+            this.entityId = entityId;
+            this.ctx = ctx;
+            this.graph = SecureIncludeGraph.get(ctx);
+            this.snapshot = snapshot;
+        }
+
+        @Override
+        public RenderedFragment call() throws Exception {
+            if (Thread.currentThread() == requestThread)
+                return renderer.render(id, data, ctx);
+
+            ConfluenceUser previous = AuthenticatedUserThreadLocal.get();
+            AuthenticatedUserThreadLocal.set(viewer);
+            try {
+                return transactionTemplate.execute(new TransactionCallback<RenderedFragment>() {
+                    @Override
+                    public RenderedFragment doInTransaction() {
+                        try {
+                            return renderer.render(id, data, workerContext());
+                        } catch (MacroExecutionException e) {
+                            throw new RenderFailure(e);
+                        }
+                    }
+                });
+            } catch (RenderFailure e) {
+                throw e.getCause();
+            } finally {
+                AuthenticatedUserThreadLocal.set(previous);
+            }
+        }
+
+        /**
+         * Conversion contexts and the entities they hold belong to the request thread, so each worker renders
+         * with its own context around the page as loaded in the worker's own session. The include graph is shared
+         * so the request's limits cover every thread. Workers get a detached copy of the snapshot, keeping the
+         * permission decisions already made for the page while targets and owners are loaded in their own session.
+         */
+        private ConversionContext workerContext() {
+            ContentEntityObject entity = getContentEntityManager().getById(entityId);
+            PageContext pageContext = new PageContext(entity, ctx.getPageContext());
+            ConversionContext workerContext = new DefaultConversionContext(pageContext);
+            workerContext.setProperty(SecureIncludeGraph.CONTEXT_PROPERTY, graph);
+            if (snapshot != null)
+                workerContext.setProperty(SecureIncludeSnapshot.CONTEXT_PROPERTY, snapshot);
+            return workerContext;
+        }
+    }
+}
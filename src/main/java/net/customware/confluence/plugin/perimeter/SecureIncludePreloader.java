@@ -0,0 +1,206 @@
+/*
+ * Copyright (c) 2017, ServiceRocket Inc
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice,
+ *       this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright notice,
+ *       this list of conditions and the following disclaimer in the documentation
+ *       and/or other materials provided with the distribution.
+ *     * Neither the name of "ServiceRocket Inc" nor the names of its contributors may
+ *       be used to endorse or promote products derived from this software without
+ *       specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package net.customware.confluence.plugin.perimeter;
+
+import com.atlassian.confluence.content.render.xhtml.ConversionContext;
+import com.atlassian.confluence.content.render.xhtml.XhtmlException;
+import com.atlassian.confluence.core.ContentEntityManager;
+import com.atlassian.confluence.core.ContentEntityObject;
+import com.atlassian.confluence.security.Permission;
+import com.atlassian.confluence.security.PermissionManager;
+import com.atlassian.confluence.user.ConfluenceUser;
+import com.atlassian.confluence.user.UserAccessor;
+import com.atlassian.confluence.xhtml.api.MacroDefinition;
+import com.atlassian.confluence.xhtml.api.MacroDefinitionHandler;
+import com.atlassian.confluence.xhtml.api.XhtmlContent;
+import com.atlassian.spring.container.ContainerManager;
+import org.slf4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.apache.commons.lang3.StringUtils.isNotBlank;
+import static org.slf4j.LoggerFactory.getLogger;
+
+/**
+ * Loads the data, owners, targets and owner permissions of every secure include on a page in one go, so that
+ * each macro on the page can render from the same {@link SecureIncludeSnapshot}.
+ *
+ * @since 4.3.1
+ */
+@Component
+public class SecureIncludePreloader {
+    private static final Logger log = getLogger(SecureIncludePreloader.class);
+
+    static final String MACRO_NAME = "secure-include";
+    static final String ID_PARAMETER = "id";
+
+    private ContentEntityManager contentEntityManager;
+    private PermissionManager permissionManager;
+    private OwnerPermissionCache permissionCache;
+    private UserAccessor userAccessor;
+    private XhtmlContent xhtmlContent;
+    private SecureIncludePushHub pushHub;
+
+    /**
+     * @return the snapshot for the page being rendered, taking it if this is the first include on the page.
+     */
+    public SecureIncludeSnapshot getSnapshot(ConversionContext ctx) {
+        SecureIncludeSnapshot snapshot = SecureIncludeSnapshot.get(ctx);
+        if (snapshot == null && ctx.getEntity() != null) {
+            snapshot = load(ctx);
+            ctx.setProperty(SecureIncludeSnapshot.CONTEXT_PROPERTY, snapshot);
+        }
+        return snapshot;
+    }
+
+    /**
+     * @return the parameters of the secure includes in the body of the entity being rendered, by include id and in
+     *         document order.
+     */
+    public Map<String, Map<String, String>> findIncludes(ContentEntityObject entity, ConversionContext ctx) {
+        final Map<String, Map<String, String>> includes = new LinkedHashMap<String, Map<String, String>>();
+        try {
+            xhtmlContent.handleMacroDefinitions(entity.getBodyAsString(), ctx, new MacroDefinitionHandler() {
+                @Override
+                public void handle(MacroDefinition macroDefinition) {
+                    if (MACRO_NAME.equals(macroDefinition.getName())) {
+                        String id = macroDefinition.getParameters().get(ID_PARAMETER);
+                        if (isNotBlank(id) && !includes.containsKey(id))
+                            includes.put(id, macroDefinition.getParameters());
+                    }
+                }
+            });
+        } catch (XhtmlException e) {
+            log.debug("Unable to find the secure includes of " + entity.getId(), e);
+        }
+        return includes;
+    }
+
+    private SecureIncludeSnapshot load(ConversionContext ctx) {
+        ContentEntityObject entity = ctx.getEntity();
+        SecureIncludeSnapshot snapshot = new SecureIncludeSnapshot(entity.getId());
+
+        Set<String> usernames = new HashSet<String>();
+        Set<Long> targetIds = new HashSet<Long>();
+        for (Map.Entry<String, Map<String, String>> include : findIncludes(entity, ctx).entrySet()) {
+            String id = include.getKey();
+            SecureIncludeData data = SecureIncludeData.load(entity, id);
+            if (data != null)
+                data = data.withParameters(include.getValue());
+            snapshot.putData(id, data);
+            if (data != null) {
+                usernames.add(data.getUsername());
+                // The pages of a set are only known once it is rendered.
+                if (!data.isSet()) {
+                    targetIds.add(data.getContentId());
+                    pushHub.record(data.getContentId(), entity.getId(), id);
+                }
+            }
+        }
+
+        List<ContentEntityObject> targets = new ArrayList<ContentEntityObject>(targetIds.size());
+        for (Long targetId : targetIds) {
+            ContentEntityObject target = getContentEntityManager().getById(targetId);
+            snapshot.putTarget(targetId, target);
+            if (target != null)
+                targets.add(target);
+        }
+
+        for (String username : usernames) {
+            ConfluenceUser owner = userAccessor.getUserByName(username);
+            snapshot.putOwner(username, owner);
+            if (owner == null)
+                continue;
+
+            // Only ask the permission subsystem about the targets whose decision is not cached yet.
+            Set<Long> permitted = new HashSet<Long>();
+            List<ContentEntityObject> unknown = new ArrayList<ContentEntityObject>(targets.size());
+            for (ContentEntityObject target : targets) {
+                Boolean cached = permissionCache.getIfPresent(username, target.getId());
+                if (cached == null)
+                    unknown.add(target);
+                else if (cached)
+                    permitted.add(target.getId());
+            }
+
+            if (!unknown.isEmpty()) {
+                long checkedAt = permissionCache.getGeneration();
+                Set<Long> granted = new HashSet<Long>();
+                for (ContentEntityObject target : permissionManager.getPermittedEntities(owner, Permission.VIEW, unknown))
+                    granted.add(target.getId());
+                for (ContentEntityObject target : unknown)
+                    permissionCache.put(username, target.getId(), granted.contains(target.getId()), checkedAt);
+                permitted.addAll(granted);
+            }
+            snapshot.putPermitted(username, permitted);
+        }
+
+        log.debug("Preloaded {} secure includes of {}", snapshot.getIncludeIds().size(), entity.getId());
+        return snapshot;
+    }
+
+    public ContentEntityManager getContentEntityManager() {
+        if (contentEntityManager == null) {
+            contentEntityManager = (ContentEntityManager) ContainerManager.getComponent("contentEntityManager");
+        }
+        return contentEntityManager;
+    }
+
+    @Autowired
+    public void setPermissionManager(PermissionManager permissionManager) {
+        this.permissionManager = permissionManager;
+    }
+
+    @Autowired
+    public void setPermissionCache(OwnerPermissionCache permissionCache) {
+        this.permissionCache = permissionCache;
+    }
+
+    @Autowired
+    public void setUserAccessor(UserAccessor userAccessor) {
+        this.userAccessor = userAccessor;
+    }
+
+    @Autowired
+    public void setXhtmlContent(XhtmlContent xhtmlContent) {
+        this.xhtmlContent = xhtmlContent;
+    }
+
+    @Autowired
+    public void setPushHub(SecureIncludePushHub pushHub) {
+        this.pushHub = pushHub;
+    }
+}
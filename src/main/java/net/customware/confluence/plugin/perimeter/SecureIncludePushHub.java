@@ -0,0 +1,291 @@
+/*
+ * Copyright (c) 2017, ServiceRocket Inc
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice,
+ *       this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright notice,
+ *       this list of conditions and the following disclaimer in the documentation
+ *       and/or other materials provided with the distribution.
+ *     * Neither the name of "ServiceRocket Inc" nor the names of its contributors may
+ *       be used to endorse or promote products derived from this software without
+ *       specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package net.customware.confluence.plugin.perimeter;
+
+import com.atlassian.confluence.event.events.content.attachment.AttachmentEvent;
+import com.atlassian.confluence.event.events.content.attachment.AttachmentViewEvent;
+import com.atlassian.confluence.event.events.content.blogpost.BlogPostUpdateEvent;
+import com.atlassian.confluence.event.events.content.page.PageUpdateEvent;
+import com.atlassian.confluence.pages.Attachment;
+import com.atlassian.event.api.EventListener;
+import com.atlassian.event.api.EventPublisher;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.atlassian.confluence.util.GeneralUtil.htmlEncode;
+
+/**
+ * Tells pages open in a browser when one of their secure includes has changed, so the page can fetch that include
+ * again instead of being reloaded as a whole. Which pages include a target is remembered as the includes are
+ * rendered, from their {@link SecureIncludeData}; browsers listen through {@link SecureIncludeEventServlet}.
+ * <p/>
+ * Each open page holds a request thread, so the number of listeners is capped by <code>push.maxListeners</code>.
+ * Notices are held back by <code>push.delayMillis</code> so the include is re-rendered by the time it is fetched.
+ *
+ * @since 4.3.1
+ */
+@Component
+public class SecureIncludePushHub implements InitializingBean, DisposableBean {
+
+    static final String ENABLED = "push.enabled";
+    static final String MAX_LISTENERS = "push.maxListeners";
+    static final String MAX_TARGETS = "push.maxTargets";
+    static final String DELAY_MILLIS = "push.delayMillis";
+
+    private final boolean enabled = PerimeterConfig.getBoolean(ENABLED, false);
+    private final long delayMillis = PerimeterConfig.getLong(DELAY_MILLIS, 3000);
+    private final Semaphore listenerPermits = new Semaphore(PerimeterConfig.getInt(MAX_LISTENERS, 50));
+
+    /**
+     * Target id to the includes of it which have been rendered.
+     */
+    private final Cache<Long, Set<Ref>> includers = CacheBuilder.newBuilder()
+            .maximumSize(PerimeterConfig.getLong(MAX_TARGETS, 10000))
+            .build();
+
+    /**
+     * Source id to the listeners open on it.
+     */
+    private final ConcurrentMap<Long, Set<Listener>> listeners = new ConcurrentHashMap<Long, Set<Listener>>();
+
+    private final AtomicLong notices = new AtomicLong();
+    private final AtomicLong refused = new AtomicLong();
+
+    private EventPublisher eventPublisher;
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Remembers that the include <code>includeId</code> on <code>sourceId</code> shows <code>targetId</code>.
+     */
+    public void record(long targetId, long sourceId, String includeId) {
+        if (!enabled)
+            return;
+
+        Set<Ref> refs = includers.getIfPresent(targetId);
+        if (refs == null) {
+            refs = Collections.newSetFromMap(new ConcurrentHashMap<Ref, Boolean>());
+            Set<Ref> existing = includers.asMap().putIfAbsent(targetId, refs);
+            if (existing != null)
+                refs = existing;
+        }
+        refs.add(new Ref(sourceId, includeId));
+    }
+
+    /**
+     * @return the markup around an include which the push client script refreshes when it is told to.
+     */
+    public RenderedFragment wrap(long sourceId, String includeId, RenderedFragment fragment) {
+        return fragment.wrap("<div class=\"perimeter-include\" data-source-id=\"" + sourceId
+                + "\" data-include-id=\"" + htmlEncode(includeId) + "\">", "</div>");
+    }
+
+    /**
+     * Opens a listener for the includes of a page.
+     *
+     * @return the listener, or <code>null</code> if too many are already open.
+     */
+    public Listener listen(long sourceId) {
+        if (!enabled || !listenerPermits.tryAcquire()) {
+            refused.incrementAndGet();
+            return null;
+        }
+
+        Listener listener = new Listener(sourceId);
+        Set<Listener> open = listeners.get(sourceId);
+        if (open == null) {
+            open = Collections.newSetFromMap(new ConcurrentHashMap<Listener, Boolean>());
+            Set<Listener> existing = listeners.putIfAbsent(sourceId, open);
+            if (existing != null)
+                open = existing;
+        }
+        open.add(listener);
+        return listener;
+    }
+
+    public void close(Listener listener) {
+        Set<Listener> open = listeners.get(listener.sourceId);
+        if (open != null && open.remove(listener)) {
+            listenerPermits.release();
+            if (open.isEmpty())
+                listeners.remove(listener.sourceId, open);
+        }
+    }
+
+    private void targetChanged(long targetId) {
+        Set<Ref> refs = includers.getIfPresent(targetId);
+        if (refs == null)
+            return;
+
+        long due = System.currentTimeMillis() + delayMillis;
+        for (Ref ref : refs) {
+            Set<Listener> open = listeners.get(ref.sourceId);
+            if (open == null)
+                continue;
+            for (Listener listener : open) {
+                listener.notices.offer(new Notice(ref.includeId, due));
+                notices.incrementAndGet();
+            }
+        }
+    }
+
+    @EventListener
+    public void onPageUpdate(PageUpdateEvent event) {
+        targetChanged(event.getPage().getId());
+    }
+
+    @EventListener
+    public void onBlogPostUpdate(BlogPostUpdateEvent event) {
+        targetChanged(event.getBlogPost().getId());
+    }
+
+    @EventListener
+    public void onAttachment(AttachmentEvent event) {
+        if (event instanceof AttachmentViewEvent)
+            return;
+
+        for (Attachment attachment : event.getAttachments()) {
+            if (attachment.getContent() != null)
+                targetChanged(attachment.getContent().getId());
+        }
+    }
+
+    public int getListenerCount() {
+        int count = 0;
+        for (Set<Listener> open : listeners.values())
+            count += open.size();
+        return count;
+    }
+
+    public long getNoticeCount() {
+        return notices.get();
+    }
+
+    public long getRefusedCount() {
+        return refused.get();
+    }
+
+    @Override
+    public void afterPropertiesSet() throws Exception {
+        if (enabled)
+            eventPublisher.register(this);
+    }
+
+    @Override
+    public void destroy() throws Exception {
+        if (enabled)
+            eventPublisher.unregister(this);
+        includers.invalidateAll();
+    }
+
+    @Autowired
+    public void setEventPublisher(EventPublisher eventPublisher) {
+        this.eventPublisher = eventPublisher;
+    }
+
+    /**
+     * The includes of one page, as seen by one open browser window.
+     */
+    public static final class Listener {
+        private final long sourceId;
+        private final BlockingQueue<Notice> notices = new LinkedBlockingQueue<Notice>(1000);
+
+        Listener(long sourceId) {
+            this.sourceId = sourceId;
+        }
+
+        /**
+         * Waits for the next include to be refreshed, and until it is due.
+         *
+         * @return the include id, or <code>null</code> if there is none within <code>timeoutMillis</code>.
+         */
+        public String next(long timeoutMillis) throws InterruptedException {
+            Notice notice = notices.poll(timeoutMillis, TimeUnit.MILLISECONDS);
+            if (notice == null)
+                return null;
+
+            long wait = notice.due - System.currentTimeMillis();
+            if (wait > 0)
+                Thread.sleep(wait);
+            return notice.includeId;
+        }
+    }
+
+    private static final class Notice {
+        private final String includeId;
+        private final long due;
+
+        Notice(String includeId, long due) {
+            this.includeId = includeId;
+            this.due = due;
+        }
+    }
+
+    private static final class Ref {
+        private final long sourceId;
+        private final String includeId;
+
+        Ref(long sourceId, String includeId) {
+            this.sourceId = sourceId;
+            this.includeId = includeId;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o)
+                return true;
+            if (!(o instanceof Ref))
+                return false;
+
+            Ref other = (Ref) o;
+            return sourceId == other.sourceId && includeId.equals(other.includeId);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * (int) (sourceId ^ (sourceId >>> 32)) + includeId.hashCode();
+        }
+    }
+}
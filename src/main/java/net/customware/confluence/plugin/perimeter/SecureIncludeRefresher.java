@@ -0,0 +1,161 @@
+/*
+ * Copyright (c) 2017, ServiceRocket Inc
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice,
+ *       this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright notice,
+ *       this list of conditions and the following disclaimer in the documentation
+ *       and/or other materials provided with the distribution.
+ *     * Neither the name of "ServiceRocket Inc" nor the names of its contributors may
+ *       be used to endorse or promote products derived from this software without
+ *       specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package net.customware.confluence.plugin.perimeter;
+
+import com.atlassian.confluence.macro.MacroExecutionException;
+import com.atlassian.sal.api.transaction.TransactionCallback;
+import com.atlassian.sal.api.transaction.TransactionTemplate;
+import org.slf4j.Logger;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.slf4j.LoggerFactory.getLogger;
+
+/**
+ * Re-renders cached secure includes in the background. Each include is queued at most once at a time, and the
+ * queue is bounded so a burst of edits cannot build up unbounded work.
+ *
+ * @since 4.3.1
+ */
+@Component
+public class SecureIncludeRefresher implements DisposableBean {
+    private static final Logger log = getLogger(SecureIncludeRefresher.class);
+
+    static final String THREADS = "refresh.threads";
+    static final String QUEUE_SIZE = "refresh.queueSize";
+
+    private final BoundedExecutor executor = new BoundedExecutor("refresh",
+            PerimeterConfig.getInt(THREADS, 2), PerimeterConfig.getInt(QUEUE_SIZE, 200));
+
+    private final ConcurrentMap<SecureIncludeRenderCache.Key, Long> pending =
+            new ConcurrentHashMap<SecureIncludeRenderCache.Key, Long>();
+
+    private final AtomicLong refreshed = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+
+    private SecureIncludeRenderer renderer;
+    private TransactionTemplate transactionTemplate;
+
+    /**
+     * Queues the include for re-rendering unless it is already queued or running.
+     *
+     * @return <code>true</code> if the include is now pending a refresh.
+     */
+    public boolean refresh(final SecureIncludeRenderCache.Key key) {
+        if (pending.putIfAbsent(key, System.currentTimeMillis()) != null)
+            return true;
+
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        transactionTemplate.execute(new TransactionCallback<Object>() {
+                            @Override
+                            public Object doInTransaction() {
+                                try {
+                                    renderer.rerender(key);
+                                    refreshed.incrementAndGet();
+                                } catch (MacroExecutionException e) {
+                                    failed.incrementAndGet();
+                                    log.debug("Unable to refresh secure include " + key + ": " + e.getMessage());
+                                }
+                                return null;
+                            }
+                        });
+                    } catch (RuntimeException e) {
+                        failed.incrementAndGet();
+                        log.warn("Unable to refresh secure include " + key, e);
+                    } finally {
+                        pending.remove(key);
+                    }
+                }
+            });
+            return true;
+        } catch (RejectedExecutionException e) {
+            pending.remove(key);
+            rejected.incrementAndGet();
+            log.debug("Refresh queue is full, skipped {}", key);
+            return false;
+        }
+    }
+
+    public int getQueueDepth() {
+        return executor.getQueueDepth();
+    }
+
+    public int getPendingCount() {
+        return pending.size();
+    }
+
+    /**
+     * @return how long the oldest pending refresh has been waiting or running, in milliseconds.
+     */
+    public long getOldestPendingAge() {
+        long oldest = Long.MAX_VALUE;
+        for (Long queuedAt : pending.values())
+            oldest = Math.min(oldest, queuedAt);
+        return oldest == Long.MAX_VALUE ? 0L : System.currentTimeMillis() - oldest;
+    }
+
+    public long getRefreshedCount() {
+        return refreshed.get();
+    }
+
+    public long getFailedCount() {
+        return failed.get();
+    }
+
+    public long getRejectedCount() {
+        return rejected.get();
+    }
+
+    @Override
+    public void destroy() throws Exception {
+        executor.shutdown();
+        pending.clear();
+    }
+
+    @Autowired
+    public void setRenderer(SecureIncludeRenderer renderer) {
+        this.renderer = renderer;
+    }
+
+    @Autowired
+    public void setTransactionTemplate(TransactionTemplate transactionTemplate) {
+        this.transactionTemplate = transactionTemplate;
+    }
+}
@@ -0,0 +1,569 @@
+/*
+ * Copyright (c) 2017, ServiceRocket Inc
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice,
+ *       this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright notice,
+ *       this list of conditions and the following disclaimer in the documentation
+ *       and/or other materials provided with the distribution.
+ *     * Neither the name of "ServiceRocket Inc" nor the names of its contributors may
+ *       be used to endorse or promote products derived from this software without
+ *       specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package net.customware.confluence.plugin.perimeter;
+
+import com.atlassian.confluence.event.events.content.attachment.AttachmentEvent;
+import com.atlassian.confluence.event.events.content.attachment.AttachmentViewEvent;
+import com.atlassian.confluence.event.events.content.blogpost.BlogPostTrashedEvent;
+import com.atlassian.confluence.event.events.content.blogpost.BlogPostUpdateEvent;
+import com.atlassian.confluence.event.events.content.page.PageTrashedEvent;
+import com.atlassian.confluence.event.events.content.page.PageUpdateEvent;
+import com.atlassian.confluence.pages.Attachment;
+import com.atlassian.confluence.setup.BootstrapManager;
+import com.atlassian.event.api.EventListener;
+import com.atlassian.event.api.EventPublisher;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.Weigher;
+import org.slf4j.Logger;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.slf4j.LoggerFactory.getLogger;
+
+/**
+ * Holds the rewritten HTML of rendered secure includes so that repeated views of a page do not convert the
+ * target body again. Entries are keyed by target, owner, source and include id and remember the target version
+ * they were rendered from, so a lookup for any other version misses. The cache is bounded by the total number
+ * of characters held. Entries are marked stale when a target is updated or has its attachments changed, and
+ * dropped when it is trashed. Each entry also remembers the targets of the secure includes nested in it, and goes
+ * stale or is dropped with them too. Renderings of includes pinned to a version without nested includes never
+ * change, so they are only dropped when their target or source is trashed, or to make room.
+ * <p/>
+ * When <code>render.disk.enabled</code> is set, renderings are also kept behind the heap tier in a
+ * {@link RenderDiskStore} under the Confluence home, so pages are quick again straight after a restart. A rendering
+ * read back from disk is only used if it is still of the version asked for, and is dropped otherwise. Stale
+ * renderings are dropped from disk rather than marked. Page views only read from disk: every change to it is
+ * made in order by a single writer thread.
+ *
+ * @since 4.3.1
+ */
+@Component
+public class SecureIncludeRenderCache implements InitializingBean, DisposableBean {
+    private static final Logger log = getLogger(SecureIncludeRenderCache.class);
+
+    static final String MAX_CHARS = "render.cache.maxChars";
+    private static final long DEFAULT_MAX_CHARS = 32L * 1024 * 1024;
+    /**
+     * Weight counted for each entry on top of its HTML, for the key and the entry itself, so that even empty
+     * renderings take up room in the cache and are evicted in turn.
+     */
+    static final int ENTRY_WEIGHT = 128;
+
+    static final String DISK_ENABLED = "render.disk.enabled";
+    static final String DISK_MAX_BYTES = "render.disk.maxBytes";
+    static final String DISK_SEGMENT_BYTES = "render.disk.segmentBytes";
+    static final String DISK_QUEUE_SIZE = "render.disk.queueSize";
+
+    private static final String DISK_DIRECTORY = "perimeter/render-cache";
+
+    private final Cache<Key, Fragment> cache;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong staleHits = new AtomicLong();
+    private final AtomicLong diskHits = new AtomicLong();
+    private EventPublisher eventPublisher;
+    private BootstrapManager bootstrapManager;
+    private volatile RenderDiskStore disk;
+    private BoundedExecutor diskWriter;
+
+    public SecureIncludeRenderCache() {
+        cache = CacheBuilder.newBuilder()
+                .maximumWeight(PerimeterConfig.getLong(MAX_CHARS, DEFAULT_MAX_CHARS))
+                .weigher(new Weigher<Key, Fragment>() {
+                    @Override
+                    public int weigh(Key key, Fragment fragment) {
+                        return ENTRY_WEIGHT + fragment.getHtml().length();
+                    }
+                })
+                .build();
+    }
+
+    /**
+     * @return the cached HTML for the include if it was rendered from <code>version</code> and has not been
+     *         marked stale since, otherwise <code>null</code>.
+     */
+    public String get(Key key, int version) {
+        Fragment fragment = getFragment(key, version);
+        return fragment != null ? fragment.getHtml() : null;
+    }
+
+    /**
+     * @return the targets of the secure includes nested in the cached rendering, which is empty if there is none.
+     */
+    public Set<Long> getNestedTargets(Key key) {
+        Fragment fragment = cache.getIfPresent(key);
+        return fragment != null ? fragment.getNested() : Collections.<Long>emptySet();
+    }
+
+    private Fragment getFragment(Key key, int version) {
+        Fragment fragment = cache.getIfPresent(key);
+        if (fragment == null) {
+            fragment = load(key, version);
+            if (fragment != null) {
+                diskHits.incrementAndGet();
+                cache.put(key, fragment);
+            }
+        }
+        if (fragment == null || fragment.getVersion() != version || fragment.getStaleSince() != 0) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        return fragment;
+    }
+
+    /**
+     * Returns a previous rendering of the include as long as it went out of date no more than
+     * <code>windowMillis</code> ago.
+     *
+     * @param outdatedSince when the target changed, used for entries which were not explicitly marked stale.
+     */
+    public String getStale(Key key, long windowMillis, long outdatedSince) {
+        Fragment fragment = cache.getIfPresent(key);
+        if (fragment == null)
+            return null;
+
+        long staleSince = fragment.getStaleSince() != 0 ? fragment.getStaleSince() : outdatedSince;
+        if (System.currentTimeMillis() - staleSince > windowMillis)
+            return null;
+
+        staleHits.incrementAndGet();
+        return fragment.getHtml();
+    }
+
+    public void put(Key key, int version, String html) {
+        put(key, version, html, false, Collections.<Long>emptySet());
+    }
+
+    /**
+     * @param pinned whether the include always renders <code>version</code>, so the entry only goes stale with
+     *            its nested includes.
+     * @param nested the targets of the secure includes nested in the rendering.
+     */
+    public void put(final Key key, final int version, final String html, final boolean pinned, Set<Long> nested) {
+        final Set<Long> nestedTargets = nested.isEmpty()
+                ? Collections.<Long>emptySet() : Collections.unmodifiableSet(new HashSet<Long>(nested));
+        cache.put(key, new Fragment(version, html, 0L, pinned, nestedTargets));
+
+        writeToDisk("Unable to store " + key + " on disk", false, new DiskWrite() {
+            @Override
+            public void write(RenderDiskStore disk) throws IOException {
+                disk.put(key, version, pinned, nestedTargets, html);
+            }
+        });
+    }
+
+    public void remove(Key key) {
+        cache.invalidate(key);
+        removeFromDisk(key);
+    }
+
+    private void removeFromDisk(final Key key) {
+        writeToDisk("Unable to remove " + key + " from disk", true, new DiskWrite() {
+            @Override
+            public void write(RenderDiskStore disk) throws IOException {
+                disk.remove(key);
+            }
+        });
+    }
+
+    /**
+     * @return the rendering kept on disk if it is of <code>version</code>. Any other version is dropped.
+     */
+    private Fragment load(Key key, int version) {
+        RenderDiskStore disk = this.disk;
+        if (disk == null)
+            return null;
+
+        try {
+            RenderDiskStore.Stored stored = disk.get(key);
+            if (stored == null)
+                return null;
+            if (stored.version == version)
+                return new Fragment(stored.version, stored.html, 0L, stored.pinned, stored.nested);
+
+            removeFromDisk(key);
+        } catch (IOException e) {
+            log.warn("Unable to read " + key + " from disk", e);
+        }
+        return null;
+    }
+
+    private void removeFromDisk(final long contentId, final boolean keepPinned) {
+        writeToDisk("Unable to remove the renderings of " + contentId + " from disk", true, new DiskWrite() {
+            @Override
+            public void write(RenderDiskStore disk) throws IOException {
+                disk.removeContent(contentId, keepPinned);
+            }
+        });
+    }
+
+    /**
+     * Hands a change to the writer thread. A rendering which does not fit in its queue is only kept in memory,
+     * while a removal which does not fit is made on the calling thread.
+     */
+    private void writeToDisk(final String failure, boolean removal, final DiskWrite write) {
+        final RenderDiskStore disk = this.disk;
+        if (disk == null)
+            return;
+
+        Runnable task = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    write.write(disk);
+                } catch (IOException e) {
+                    log.warn(failure, e);
+                }
+            }
+        };
+        try {
+            diskWriter.execute(task);
+        } catch (RejectedExecutionException e) {
+            if (removal)
+                task.run();
+            else
+                log.debug("The render cache writer is busy, keeping the rendering in memory only");
+        }
+    }
+
+    /**
+     * Drops every entry which either includes the content, directly or through a nested include, or is included
+     * by it.
+     */
+    public void invalidate(long contentId) {
+        for (Iterator<Map.Entry<Key, Fragment>> entries = cache.asMap().entrySet().iterator(); entries.hasNext(); ) {
+            Map.Entry<Key, Fragment> entry = entries.next();
+            Key key = entry.getKey();
+            if (key.getTargetId() == contentId || key.getSourceId() == contentId || entry.getValue().nests(contentId))
+                entries.remove();
+        }
+        removeFromDisk(contentId, false);
+    }
+
+    /**
+     * Marks every rendering of the target, and every rendering with an include of it nested inside, as stale, so it
+     * is only served while revalidation is pending. Renderings which the target itself includes are dropped as in
+     * {@link #invalidate(long)}.
+     */
+    public void markStale(long contentId) {
+        long now = System.currentTimeMillis();
+        ConcurrentMap<Key, Fragment> map = cache.asMap();
+        for (Map.Entry<Key, Fragment> entry : map.entrySet()) {
+            Key key = entry.getKey();
+            Fragment fragment = entry.getValue();
+            if (key.getSourceId() == contentId)
+                map.remove(key);
+            else if (fragment.getStaleSince() == 0 && follows(key, fragment, contentId))
+                map.replace(key, fragment, fragment.stale(now));
+        }
+        removeFromDisk(contentId, true);
+    }
+
+    /**
+     * @return the keys of every cached rendering which follows the latest version of the target, directly or
+     *         through a nested include.
+     */
+    public List<Key> getKeys(long targetId) {
+        List<Key> keys = new ArrayList<Key>();
+        for (Map.Entry<Key, Fragment> entry : cache.asMap().entrySet()) {
+            if (follows(entry.getKey(), entry.getValue(), targetId))
+                keys.add(entry.getKey());
+        }
+        return keys;
+    }
+
+    /**
+     * @return whether the rendering changes when the content does: it is of the content and not pinned to a
+     *         version, or the content is nested in it.
+     */
+    private static boolean follows(Key key, Fragment fragment, long contentId) {
+        return key.getTargetId() == contentId && !fragment.isPinned() || fragment.nests(contentId);
+    }
+
+    public void invalidateAll() {
+        cache.invalidateAll();
+
+        writeToDisk("Unable to clear the render cache on disk", true, new DiskWrite() {
+            @Override
+            public void write(RenderDiskStore disk) throws IOException {
+                disk.removeAll();
+            }
+        });
+    }
+
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    public long getStaleHitCount() {
+        return staleHits.get();
+    }
+
+    public long getSize() {
+        return cache.size();
+    }
+
+    public long getDiskHitCount() {
+        return diskHits.get();
+    }
+
+    public int getDiskSize() {
+        RenderDiskStore disk = this.disk;
+        return disk != null ? disk.size() : 0;
+    }
+
+    public long getDiskBytes() {
+        RenderDiskStore disk = this.disk;
+        return disk != null ? disk.getLiveBytes() : 0L;
+    }
+
+    @EventListener
+    public void onPageUpdate(PageUpdateEvent event) {
+        markStale(event.getPage().getId());
+    }
+
+    @EventListener
+    public void onBlogPostUpdate(BlogPostUpdateEvent event) {
+        markStale(event.getBlogPost().getId());
+    }
+
+    @EventListener
+    public void onPageTrashed(PageTrashedEvent event) {
+        invalidate(event.getPage().getId());
+    }
+
+    @EventListener
+    public void onBlogPostTrashed(BlogPostTrashedEvent event) {
+        invalidate(event.getBlogPost().getId());
+    }
+
+    @EventListener
+    public void onAttachment(AttachmentEvent event) {
+        if (event instanceof AttachmentViewEvent)
+            return;
+
+        for (Attachment attachment : event.getAttachments()) {
+            if (attachment.getContent() != null)
+                markStale(attachment.getContent().getId());
+        }
+    }
+
+    @Override
+    public void afterPropertiesSet() throws Exception {
+        eventPublisher.register(this);
+
+        if (PerimeterConfig.getBoolean(DISK_ENABLED, false)) {
+            File dir = new File(bootstrapManager.getConfluenceHome(), DISK_DIRECTORY);
+            try {
+                diskWriter = new BoundedExecutor("render-disk", 1, PerimeterConfig.getInt(DISK_QUEUE_SIZE, 500));
+                disk = RenderDiskStore.open(dir, PerimeterConfig.getLong(DISK_MAX_BYTES, 256L * 1024 * 1024),
+                        PerimeterConfig.getInt(DISK_SEGMENT_BYTES, 16 * 1024 * 1024));
+            } catch (IOException e) {
+                log.warn("Unable to open the render cache in " + dir + ", keeping renders in memory only", e);
+            }
+        }
+    }
+
+    @Override
+    public void destroy() throws Exception {
+        eventPublisher.unregister(this);
+        cache.invalidateAll();
+        if (diskWriter != null)
+            diskWriter.shutdown();
+        if (disk != null) {
+            disk.close();
+            disk = null;
+        }
+        log.debug("Secure include render cache shut down after {} hits and {} misses", hits.get(), misses.get());
+    }
+
+    @Autowired
+    public void setEventPublisher(EventPublisher eventPublisher) {
+        this.eventPublisher = eventPublisher;
+    }
+
+    @Autowired
+    public void setBootstrapManager(BootstrapManager bootstrapManager) {
+        this.bootstrapManager = bootstrapManager;
+    }
+
+    /**
+     * Identifies one rendering of a secure include. The source and include ids are part of the key because they
+     * are embedded in the rewritten attachment URLs. The section is <code>null</code> when the whole target is
+     * included.
+     */
+    public static final class Key {
+        private final long targetId;
+        private final String owner;
+        private final long sourceId;
+        private final String includeId;
+        private final String section;
+        private final int chunk;
+
+        public Key(long targetId, String owner, long sourceId, String includeId, String section) {
+            this(targetId, owner, sourceId, includeId, section, -1);
+        }
+
+        /**
+         * @param chunk the chunk of a page shown a chunk at a time, or <code>-1</code> for the whole page.
+         */
+        public Key(long targetId, String owner, long sourceId, String includeId, String section, int chunk) {
+            this.targetId = targetId;
+            this.owner = owner;
+            this.sourceId = sourceId;
+            this.includeId = includeId;
+            this.section = section;
+            this.chunk = chunk;
+        }
+
+        public long getTargetId() {
+            return targetId;
+        }
+
+        public String getOwner() {
+            return owner;
+        }
+
+        public long getSourceId() {
+            return sourceId;
+        }
+
+        public String getIncludeId() {
+            return includeId;
+        }
+
+        public String getSection() {
+            return section;
+        }
+
+        public int getChunk() {
+            return chunk;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o)
+                return true;
+            if (!(o instanceof Key))
+                return false;
+
+            Key other = (Key) o;
+            return targetId == other.targetId && sourceId == other.sourceId && chunk == other.chunk
+                    && (owner == null ? other.owner == null : owner.equals(other.owner))
+                    && includeId.equals(other.includeId)
+                    && (section == null ? other.section == null : section.equals(other.section));
+        }
+
+        @Override
+        public int hashCode() {
+            int result = (int) (targetId ^ (targetId >>> 32));
+            result = 31 * result + (owner == null ? 0 : owner.hashCode());
+            result = 31 * result + (int) (sourceId ^ (sourceId >>> 32));
+            result = 31 * result + includeId.hashCode();
+            result = 31 * result + (section == null ? 0 : section.hashCode());
+            result = 31 * result + chunk;
+            return result;
+        }
+
+        @Override
+        public String toString() {
+            return "[target=" + targetId + ", owner=" + owner + ", source=" + sourceId + ", include=" + includeId
+                    + (section == null ? "" : ", section=" + section) + (chunk < 0 ? "" : ", chunk=" + chunk) + "]";
+        }
+    }
+
+    private interface DiskWrite {
+        void write(RenderDiskStore disk) throws IOException;
+    }
+
+    private static final class Fragment {
+        private final int version;
+        private final String html;
+        private final long staleSince;
+        private final boolean pinned;
+        private final Set<Long> nested;
+
+        Fragment(int version, String html, long staleSince, boolean pinned, Set<Long> nested) {
+            this.version = version;
+            this.html = html;
+            this.staleSince = staleSince;
+            this.pinned = pinned;
+            this.nested = nested;
+        }
+
+        Fragment stale(long since) {
+            return new Fragment(version, html, since, pinned, nested);
+        }
+
+        int getVersion() {
+            return version;
+        }
+
+        String getHtml() {
+            return html;
+        }
+
+        long getStaleSince() {
+            return staleSince;
+        }
+
+        boolean isPinned() {
+            return pinned;
+        }
+
+        Set<Long> getNested() {
+            return nested;
+        }
+
+        boolean nests(long contentId) {
+            return nested.contains(contentId);
+        }
+    }
+}
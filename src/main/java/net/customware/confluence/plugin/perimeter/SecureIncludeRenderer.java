@@ -0,0 +1,600 @@
+/*
+ * Copyright (c) 2017, ServiceRocket Inc
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice,
+ *       this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright notice,
+ *       this list of conditions and the following disclaimer in the documentation
+ *       and/or other materials provided with the distribution.
+ *     * Neither the name of "ServiceRocket Inc" nor the names of its contributors may
+ *       be used to endorse or promote products derived from this software without
+ *       specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package net.customware.confluence.plugin.perimeter;
+
+import com.atlassian.confluence.content.render.xhtml.ConversionContext;
+import com.atlassian.confluence.content.render.xhtml.DefaultConversionContext;
+import com.atlassian.confluence.content.render.xhtml.XhtmlException;
+import com.atlassian.confluence.core.ContentEntityManager;
+import com.atlassian.confluence.core.ContentEntityObject;
+import com.atlassian.confluence.macro.MacroExecutionException;
+import com.atlassian.confluence.pages.Attachment;
+import com.atlassian.confluence.pages.AttachmentManager;
+import com.atlassian.confluence.renderer.PageContext;
+import com.atlassian.confluence.user.AuthenticatedUserThreadLocal;
+import com.atlassian.confluence.user.ConfluenceUser;
+import com.atlassian.confluence.user.UserAccessor;
+import com.atlassian.renderer.RenderContextOutputType;
+import com.atlassian.sal.api.transaction.TransactionCallback;
+import com.atlassian.sal.api.transaction.TransactionTemplate;
+import com.atlassian.spring.container.ContainerManager;
+import org.slf4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import javax.xml.stream.XMLStreamException;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.slf4j.LoggerFactory.getLogger;
+
+/**
+ * Renders the target of a secure include as the user who set it up and rewrites its attachment links to go
+ * through the secure download servlet.
+ *
+ * @since 4.3.1
+ */
+@Component
+public class SecureIncludeRenderer {
+    private static final Logger log = getLogger(SecureIncludeRenderer.class);
+
+    static final String STALE_WHILE_REVALIDATE_SECONDS = "render.staleWhileRevalidate.seconds";
+
+    static final String MAX_CACHED_CHARS = "render.cache.maxEntryChars";
+
+    static final String MAX_SNAPSHOT_CHARS = "snapshot.maxChars";
+
+    static final String CHUNK_CHARS = "chunk.maxChars";
+
+    static final String MAX_DEPTH = "include.maxDepth";
+    static final String MAX_INCLUDES = "include.maxPerPage";
+    static final String MAX_CHARS = "include.maxChars";
+
+    private final long staleWindowMillis = TimeUnit.SECONDS.toMillis(
+            PerimeterConfig.getLong(STALE_WHILE_REVALIDATE_SECONDS, 0));
+    private final int maxCachedChars = PerimeterConfig.getInt(MAX_CACHED_CHARS, 2 * 1024 * 1024);
+    private final int maxSnapshotChars = PerimeterConfig.getInt(MAX_SNAPSHOT_CHARS, 2 * 1024 * 1024);
+    private final int chunkChars = PerimeterConfig.getInt(CHUNK_CHARS, 32 * 1024);
+    private final int maxDepth = PerimeterConfig.getInt(MAX_DEPTH, 5);
+    private final int maxIncludes = PerimeterConfig.getInt(MAX_INCLUDES, 200);
+    private final long maxChars = PerimeterConfig.getLong(MAX_CHARS, 16L * 1024 * 1024);
+
+    private final AtomicLong renders = new AtomicLong();
+    private final AtomicLong measuredRenders = new AtomicLong();
+    private final AtomicLong allocatedBytes = new AtomicLong();
+    private final AtomicLong snapshotsServed = new AtomicLong();
+
+    private ContentEntityManager contentEntityManager;
+    private OwnerPermissionCache permissionCache;
+    private UserAccessor userAccessor;
+    private AttachmentManager attachmentManager;
+    private SecureIncludeRenderCache renderCache;
+    private SecureIncludeRefresher refresher;
+    private TargetRenderGuard guard;
+    private TargetSummaryCache summaries;
+    private FrozenIncludeScheduler snapshots;
+    private ExportRenderMemo exportMemo;
+    private TargetTextCache texts;
+    private IncludeOptimizer optimizer;
+    private NestedMacroCache macroCache;
+    private TransactionTemplate transactionTemplate;
+
+    public RenderedFragment render(String id, SecureIncludeData data, ConversionContext conversionContext) throws MacroExecutionException {
+        return render(id, data, conversionContext, false);
+    }
+
+    /**
+     * Renders the include identified by <code>key</code> again, replacing whatever is cached for it. Used to
+     * revalidate stale entries outside of a page view.
+     */
+    void rerender(SecureIncludeRenderCache.Key key) throws MacroExecutionException {
+        ContentEntityObject source = getContentEntityManager().getById(key.getSourceId());
+        SecureIncludeData data = load(source, key);
+        if (data == null) {
+            renderCache.remove(key);
+            return;
+        }
+
+        try {
+            render(key.getIncludeId(), data, new DefaultConversionContext(source.toPageContext()), true);
+        } catch (MacroExecutionException e) {
+            // Never keep serving content the owner can no longer render.
+            renderCache.remove(key);
+            throw e;
+        }
+    }
+
+    /**
+     * Takes a new snapshot of the include identified by <code>key</code>, outside of a page view.
+     *
+     * @return the snapshot, or <code>null</code> if the include no longer exists as it was or could not be rendered in
+     *         full.
+     */
+    FrozenInclude freeze(SecureIncludeRenderCache.Key key) throws MacroExecutionException {
+        ContentEntityObject source = getContentEntityManager().getById(key.getSourceId());
+        SecureIncludeData data = load(source, key);
+        if (data == null)
+            return null;
+
+        data = data.withParameters(Collections.singletonMap(SecureIncludeData.MODE_PARAM, SecureIncludeData.SNAPSHOT_MODE));
+        ConversionContext ctx = new DefaultConversionContext(source.toPageContext());
+        String html = render(key.getIncludeId(), data, ctx, true).toString();
+        if (html.length() > maxSnapshotChars || SecureIncludeGraph.get(ctx).isTruncated())
+            return null;
+
+        ContentEntityObject target = getContentEntityManager().getById(key.getTargetId());
+        return new FrozenInclude(data, getPinnedVersion(target, data).getVersion(), html);
+    }
+
+    /**
+     * @return the include identified by <code>key</code> as it is now saved, or <code>null</code> if it has been
+     *         removed or changed to include something else.
+     */
+    private SecureIncludeData load(ContentEntityObject source, SecureIncludeRenderCache.Key key) {
+        SecureIncludeData data = source != null ? SecureIncludeData.load(source, key.getIncludeId()) : null;
+        if (data != null)
+            data = data.withSection(key.getSection());
+        if (data != null && key.getChunk() >= 0)
+            data = data.withChunk(key.getChunk());
+
+        // The pages of a set are cached as includes of their own, for as long as they belong to the set.
+        if (data != null && data.isSet()) {
+            ContentEntityObject target = getContentEntityManager().getById(key.getTargetId());
+            data = target != null && data.covers(target) ? data.forTarget(target.getId()) : null;
+        }
+
+        if (data == null || data.getContentId() != key.getTargetId() || !key.getOwner().equals(data.getUsername()))
+            return null;
+        return data;
+    }
+
+    private RenderedFragment render(String id, SecureIncludeData data, ConversionContext conversionContext, boolean refresh) throws MacroExecutionException {
+        SecureIncludeGraph graph = SecureIncludeGraph.get(conversionContext);
+        checkGraph(graph, data.getContentId());
+        // Renders of the content around this include follow changes of its target.
+        graph.nest(Collections.singleton(data.getContentId()));
+
+        SecureIncludeSnapshot snapshot = SecureIncludeSnapshot.get(conversionContext);
+
+        ContentEntityObject targetContent = getTarget(data, snapshot);
+
+        if (targetContent == null) {
+            throw new MacroExecutionException("The targetContent this secure include accesses no longer exists.");
+        }
+
+        ConfluenceUser user = getOwner(data, snapshot);
+        if (user == null) {
+            throw new MacroExecutionException("The user who set up this secure include no longer exists: " + data.getUsername());
+        }
+
+        if (!isPermitted(user, targetContent, snapshot)) {
+            throw new MacroExecutionException("The user who set up this secure include no longer has access to the resource.");
+        }
+
+        // Permission is always checked against the current page; a pinned include then renders the old version.
+        ContentEntityObject renderedContent = getPinnedVersion(targetContent, data);
+
+        // Summaries are plain text, so there is nothing to convert and no attachment links to rewrite.
+        if (data.isSummary())
+            return RenderedFragment.of(charge(graph, summaries.getSummary(renderedContent, data.getSection())));
+
+        SecureIncludeRenderCache.Key snapshotKey = null;
+        if (data.isSnapshot() && RenderContextOutputType.DISPLAY.equals(conversionContext.getOutputType())) {
+            snapshotKey = new SecureIncludeRenderCache.Key(targetContent.getId(), data.getUsername(),
+                    conversionContext.getEntity().getId(), id, data.getSection());
+
+            FrozenInclude frozen = refresh ? null : FrozenInclude.load(conversionContext.getEntity(), id);
+            if (frozen != null && frozen.matches(data)) {
+                snapshotsServed.incrementAndGet();
+                snapshots.schedule(snapshotKey, frozen.getTakenAt());
+                return RenderedFragment.of(charge(graph, frozen.getHtml()));
+            }
+        }
+
+        // Long pages viewed a chunk at a time are rendered and cached chunk by chunk. Exports, snapshots and nested
+        // includes always show the whole page.
+        int chunk = data.isChunked() && !data.isSnapshot() && graph.getDepth() == 0
+                && RenderContextOutputType.DISPLAY.equals(conversionContext.getOutputType()) ? data.getChunk() : -1;
+        if (data.isChunked() && data.getChunk() < 0)
+            throw new MacroExecutionException("There is no chunk " + data.getChunk() + " of the page this secure include accesses.");
+
+        Map<String, Integer> attachmentVersions = data.isPinned() ? getAttachmentVersions(targetContent, renderedContent) : null;
+        AttachmentUrlRewriter rewriter = new AttachmentUrlRewriter(targetContent.getId(),
+                conversionContext.getEntity().getId(), id, attachmentVersions);
+
+        // Only page views are shared between viewers; exports and previews are always rendered fresh. Snapshots
+        // are kept with the page instead.
+        SecureIncludeRenderCache.Key cacheKey = null;
+        if (RenderContextOutputType.DISPLAY.equals(conversionContext.getOutputType()) && snapshotKey == null) {
+            cacheKey = new SecureIncludeRenderCache.Key(targetContent.getId(), data.getUsername(),
+                    conversionContext.getEntity().getId(), id, data.getSection(), chunk);
+
+            if (!refresh) {
+                String cached = renderCache.get(cacheKey, renderedContent.getVersion());
+                if (cached != null) {
+                    graph.nest(renderCache.getNestedTargets(cacheKey));
+                    return RenderedFragment.of(charge(graph, cached));
+                }
+
+                if (staleWindowMillis > 0 && !data.isPinned()) {
+                    Date modified = targetContent.getLastModificationDate();
+                    String stale = renderCache.getStale(cacheKey, staleWindowMillis, modified != null ? modified.getTime() : 0L);
+                    if (stale != null) {
+                        graph.nest(renderCache.getNestedTargets(cacheKey));
+                        refresher.refresh(cacheKey);
+                        return RenderedFragment.of(charge(graph, stale));
+                    }
+                }
+            }
+        }
+
+        // Exports render the same targets for page after page, so their conversions are shared for the export.
+        boolean export = ExportRenderMemo.isExport(conversionContext);
+        if (!export)
+            exportMemo.finish();
+        ExportRenderMemo.Key memoKey = !refresh && export
+                ? new ExportRenderMemo.Key(conversionContext.getOutputType(), targetContent.getId(),
+                        renderedContent.getVersion(), data.getUsername(), data.getSection(),
+                        conversionContext.getEntity().getId()) : null;
+        String rendered = memoKey != null ? exportMemo.get(memoKey) : null;
+
+        // Placeholders for nested includes over the request's limits are recorded against the graph of this render.
+        SecureIncludeGraph include = graph.enter(targetContent.getId());
+        if (rendered == null) {
+            String storage = getStorage(renderedContent, data);
+            String next = "";
+            if (chunk >= 0) {
+                List<String> chunks = StorageChunks.split(storage, chunkChars);
+                // The page may have been shortened since the chunk before was shown. Chunks past the end are never
+                // rendered, let alone cached.
+                if (chunk >= chunks.size())
+                    throw new MacroExecutionException("There is no chunk " + chunk + " of the page this secure include accesses. Reload the page to see it as it is now.");
+                storage = chunks.get(chunk);
+                if (chunk + 1 < chunks.size())
+                    next = Placeholders.chunk(conversionContext.getEntity().getId(), id, chunk + 1);
+            }
+
+            // Nested includes are already covered by the deadline of the include they are nested in.
+            rendered = guard.render(targetContent.getId(), new Conversion(user, storage,
+                    conversionContext, include), graph.getDepth() == 0) + next;
+            // Renders too large to cache are streamed to the page as they are rather than copied once more.
+            if (rendered.length() <= maxCachedChars)
+                rendered = optimizer.optimize(targetContent, id, rendered, attachmentVersions);
+            if (memoKey != null && !include.isTruncated())
+                exportMemo.put(memoKey, storage, rendered);
+        }
+
+        charge(graph, include, rendered);
+
+        RenderedFragment fragment;
+        // A render with placeholders for nested includes over the request's limits must not be shared.
+        if (cacheKey != null && rendered.length() <= maxCachedChars && !include.isTruncated()) {
+            rendered = rewriter.rewrite(rendered);
+            renderCache.put(cacheKey, renderedContent.getVersion(), rendered, data.isPinned(), include.getNestedTargets());
+            fragment = RenderedFragment.of(rendered);
+        } else {
+            // Too large to keep around: links are rewritten while the fragment is written to the page.
+            fragment = RenderedFragment.rewriting(rendered, rewriter);
+        }
+
+        // The first view of a snapshot include renders it live and leaves the snapshot for the next views.
+        if (snapshotKey != null && !refresh && !include.isTruncated() && rendered.length() <= maxSnapshotChars) {
+            fragment = RenderedFragment.of(fragment.toString());
+            snapshots.store(snapshotKey, new FrozenInclude(data, renderedContent.getVersion(), fragment.toString()));
+        }
+
+        log.debug("Rendered secure include {} from version {}", cacheKey, renderedContent.getVersion());
+        return fragment;
+    }
+
+    /**
+     * Works out the plain text of what the include shows, for the search index of the page holding it. The text
+     * comes from the text caches rather than a conversion of the target, and includes of a set of pages are left
+     * out.
+     *
+     * @return the text, or <code>null</code> if the include would not be shown.
+     */
+    String getIndexText(SecureIncludeData data) throws MacroExecutionException {
+        if (data.isSet())
+            return null;
+
+        ContentEntityObject targetContent = getContentEntityManager().getById(data.getContentId());
+        ConfluenceUser user = targetContent != null ? userAccessor.getUserByName(data.getUsername()) : null;
+        if (user == null || !permissionCache.canView(user, targetContent))
+            return null;
+
+        ContentEntityObject renderedContent = getPinnedVersion(targetContent, data);
+        return data.isSummary()
+                ? summaries.getSummaryText(renderedContent, data.getSection())
+                : texts.getText(renderedContent, data.getSection());
+    }
+
+    /**
+     * @return the version of the target the include is pinned to, or the target itself if it is not pinned.
+     */
+    private ContentEntityObject getPinnedVersion(ContentEntityObject targetContent, SecureIncludeData data) throws MacroExecutionException {
+        if (!data.isPinned() || data.getVersion() == targetContent.getVersion())
+            return targetContent;
+
+        ContentEntityObject version = getContentEntityManager().getOtherVersion(targetContent, data.getVersion());
+        if (version == null)
+            throw new MacroExecutionException("Version " + data.getVersion() + " of the page this secure include accesses no longer exists.");
+        return version;
+    }
+
+    /**
+     * Works out which version of each attachment of the target was current when the pinned version was saved,
+     * so its links keep downloading the files the version was written against.
+     *
+     * @return attachment file names mapped to their version.
+     */
+    private Map<String, Integer> getAttachmentVersions(ContentEntityObject targetContent, ContentEntityObject renderedContent) {
+        Date saved = renderedContent.getLastModificationDate();
+        Map<String, Integer> versions = new HashMap<String, Integer>();
+        for (Attachment latest : attachmentManager.getLatestVersionsOfAttachments(targetContent)) {
+            if (saved == null || !latest.getLastModificationDate().after(saved)) {
+                versions.put(latest.getFileName(), latest.getVersion());
+                continue;
+            }
+
+            for (Attachment attachment : attachmentManager.getAllVersions(latest)) {
+                Integer found = versions.get(attachment.getFileName());
+                if (!attachment.getLastModificationDate().after(saved) && (found == null || attachment.getVersion() > found))
+                    versions.put(attachment.getFileName(), attachment.getVersion());
+            }
+        }
+        return versions;
+    }
+
+    /**
+     * @return the storage of the part of the target to include.
+     */
+    private String getStorage(ContentEntityObject targetContent, SecureIncludeData data) throws MacroExecutionException {
+        String storage = targetContent.getBodyAsString();
+        if (data.getSection() == null)
+            return storage;
+
+        String section = StorageSection.extract(storage, data.getSection());
+        if (section == null)
+            throw new MacroExecutionException("The section '" + data.getSection() + "' this secure include accesses no longer exists.");
+        return section;
+    }
+
+    private void checkGraph(SecureIncludeGraph graph, long targetId) throws SecureIncludeLimitException {
+        if (graph.contains(targetId))
+            throw new SecureIncludeLimitException("This secure include is part of a cycle: its content includes itself.");
+
+        if (graph.getDepth() >= maxDepth)
+            throw new SecureIncludeLimitException("Secure includes cannot be nested more than " + maxDepth + " levels deep.");
+
+        if (graph.countInclude() > maxIncludes)
+            throw new SecureIncludeLimitException("This page has more than " + maxIncludes + " secure includes.");
+    }
+
+    private String charge(SecureIncludeGraph graph, String html) throws SecureIncludeLimitException {
+        return charge(graph, null, html);
+    }
+
+    /**
+     * Counts <code>html</code> against the request's limit, leaving out what the includes nested in it have already
+     * counted.
+     */
+    private String charge(SecureIncludeGraph graph, SecureIncludeGraph include, String html) throws SecureIncludeLimitException {
+        if (graph.countChars(include, html.length()) > maxChars)
+            throw new SecureIncludeLimitException("The secure includes on this page are larger than " + maxChars + " characters in total.");
+        return html;
+    }
+
+    private void recordAllocation(long allocatedBefore) {
+        renders.incrementAndGet();
+        long allocatedAfter = AllocationMeter.allocatedBytes();
+        if (allocatedBefore >= 0 && allocatedAfter >= allocatedBefore) {
+            measuredRenders.incrementAndGet();
+            allocatedBytes.addAndGet(allocatedAfter - allocatedBefore);
+        }
+    }
+
+    public long getSnapshotServedCount() {
+        return snapshotsServed.get();
+    }
+
+    public long getRenderCount() {
+        return renders.get();
+    }
+
+    /**
+     * @return the average number of bytes allocated by the rendering thread per include rendered, or
+     *         <code>-1</code> if the JVM does not report allocation.
+     */
+    public long getAverageAllocatedBytes() {
+        long measured = measuredRenders.get();
+        return measured == 0 ? -1L : allocatedBytes.get() / measured;
+    }
+
+    private ContentEntityObject getTarget(SecureIncludeData data, SecureIncludeSnapshot snapshot) {
+        if (snapshot != null && snapshot.hasTarget(data.getContentId()))
+            return snapshot.getTarget(data.getContentId());
+        return getContentEntityManager().getById(data.getContentId());
+    }
+
+    private ConfluenceUser getOwner(SecureIncludeData data, SecureIncludeSnapshot snapshot) {
+        if (snapshot != null && snapshot.hasOwner(data.getUsername()))
+            return snapshot.getOwner(data.getUsername());
+        return userAccessor.getUserByName(data.getUsername());
+    }
+
+    private boolean isPermitted(ConfluenceUser user, ContentEntityObject targetContent, SecureIncludeSnapshot snapshot) {
+        Boolean permitted = snapshot != null ? snapshot.isPermitted(user.getName(), targetContent.getId()) : null;
+        if (permitted != null)
+            return permitted;
+        return permissionCache.canView(user, targetContent);
+    }
+
+    /**
+     * Converts the target body as the include owner. When called on a thread other than the one which created it,
+     * such as when rendering under a deadline, it converts in its own transaction with its own context around the
+     * page as loaded in that transaction.
+     */
+    private final class Conversion implements Callable<String> {
+        private final ConfluenceUser owner;
+        private final String storage;
+        private final ConversionContext ctx;
+        private final SecureIncludeGraph graph;
+        private final long entityId;
+        private final Thread callingThread = Thread.currentThread();
+
+        Conversion(ConfluenceUser owner, String storage, ConversionContext ctx, SecureIncludeGraph graph) {
+            this.owner = owner;
+            this.storage = storage;
+            this.ctx = ctx;
+            this.graph = graph;
+            this.entityId = ctx.getEntity().getId();
+        }
+
+        @Override
+        public String call() throws MacroExecutionException {
+            if (Thread.currentThread() == callingThread)
+                return convert(ctx);
+
+            return transactionTemplate.execute(new TransactionCallback<String>() {
+                @Override
+                public String doInTransaction() {
+                    try {
+                        ContentEntityObject entity = getContentEntityManager().getById(entityId);
+                        return convert(new DefaultConversionContext(new PageContext(entity, ctx.getPageContext())));
+                    } catch (MacroExecutionException e) {
+                        throw new RenderFailure(e);
+                    }
+                }
+            });
+        }
+
+        private String convert(ConversionContext conversionContext) throws MacroExecutionException {
+            long allocatedBefore = AllocationMeter.allocatedBytes();
+
+            // Fake logging in as the original accessor...
+            ConfluenceUser currentUser = AuthenticatedUserThreadLocal.get();
+            AuthenticatedUserThreadLocal.set(owner);
+            // ...and let any secure includes in the target know where they are nested.
+            Object parentGraph = conversionContext.getProperty(SecureIncludeGraph.CONTEXT_PROPERTY);
+            conversionContext.setProperty(SecureIncludeGraph.CONTEXT_PROPERTY, graph);
+
+            //return subRenderer.render(targetContent.getContent(), ctx, RenderMode.ALL);
+            try {
+                String rendered = macroCache.convert(graph.getContentId(), owner, storage, conversionContext);
+                recordAllocation(allocatedBefore);
+                return rendered;
+            } catch (XhtmlException | XMLStreamException e) {
+                throw new MacroExecutionException(e.getMessage());
+            } finally {
+                // Return to the real user...
+                AuthenticatedUserThreadLocal.set(currentUser);
+                conversionContext.setProperty(SecureIncludeGraph.CONTEXT_PROPERTY, parentGraph);
+            }
+        }
+    }
+
+    public ContentEntityManager getContentEntityManager() {
+        if (contentEntityManager == null) {
+            contentEntityManager = (ContentEntityManager) ContainerManager.getComponent("contentEntityManager");
+        }
+        return contentEntityManager;
+    }
+
+    @Autowired
+    public void setPermissionCache(OwnerPermissionCache permissionCache) {
+        this.permissionCache = permissionCache;
+    }
+
+    @Autowired
+    public void setUserAccessor(UserAccessor userAccessor) {
+        this.userAccessor = userAccessor;
+    }
+
+    @Autowired
+    public void setAttachmentManager(AttachmentManager attachmentManager) {
+        this.attachmentManager = attachmentManager;
+    }
+
+    @Autowired
+    public void setRenderCache(SecureIncludeRenderCache renderCache) {
+        this.renderCache = renderCache;
+    }
+
+    @Autowired
+    public void setRefresher(SecureIncludeRefresher refresher) {
+        this.refresher = refresher;
+    }
+
+    @Autowired
+    public void setGuard(TargetRenderGuard guard) {
+        this.guard = guard;
+    }
+
+    @Autowired
+    public void setSummaries(TargetSummaryCache summaries) {
+        this.summaries = summaries;
+    }
+
+    @Autowired
+    public void setSnapshots(FrozenIncludeScheduler snapshots) {
+        this.snapshots = snapshots;
+    }
+
+    @Autowired
+    public void setExportMemo(ExportRenderMemo exportMemo) {
+        this.exportMemo = exportMemo;
+    }
+
+    @Autowired
+    public void setOptimizer(IncludeOptimizer optimizer) {
+        this.optimizer = optimizer;
+    }
+
+    @Autowired
+    public void setMacroCache(NestedMacroCache macroCache) {
+        this.macroCache = macroCache;
+    }
+
+    @Autowired
+    public void setTexts(TargetTextCache texts) {
+        this.texts = texts;
+    }
+
+    @Autowired
+    public void setTransactionTemplate(TransactionTemplate transactionTemplate) {
+        this.transactionTemplate = transactionTemplate;
+    }
+}
@@ -0,0 +1,233 @@
+/*
+ * Copyright (c) 2017, ServiceRocket Inc
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice,
+ *       this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright notice,
+ *       this list of conditions and the following disclaimer in the documentation
+ *       and/or other materials provided with the distribution.
+ *     * Neither the name of "ServiceRocket Inc" nor the names of its contributors may
+ *       be used to endorse or promote products derived from this software without
+ *       specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package net.customware.confluence.plugin.perimeter;
+
+import com.atlassian.confluence.content.render.xhtml.ConversionContext;
+import com.atlassian.confluence.content.render.xhtml.DefaultConversionContext;
+import com.atlassian.confluence.core.ContentEntityObject;
+import com.atlassian.confluence.macro.MacroExecutionException;
+import com.atlassian.confluence.security.Permission;
+import com.atlassian.confluence.security.PermissionManager;
+import com.atlassian.confluence.user.AuthenticatedUserThreadLocal;
+import com.atlassian.plugins.rest.common.security.AnonymousAllowed;
+import org.slf4j.Logger;
+
+import javax.ws.rs.Consumes;
+import javax.ws.rs.POST;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import javax.xml.bind.annotation.XmlAccessType;
+import javax.xml.bind.annotation.XmlAccessorType;
+import javax.xml.bind.annotation.XmlElement;
+import javax.xml.bind.annotation.XmlRootElement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.slf4j.LoggerFactory.getLogger;
+
+/**
+ * Renders secure includes for the deferred loader script. One request may ask for any number of includes, up to
+ * <code>rest.maxBatchSize</code>, and gets the fragments back in the same order. The viewer must be able to view
+ * the page holding each include, just as for secure downloads.
+ * <p/>
+ * Further pages of multi-page includes are fetched the same way, by asking for the include with a page number,
+ * and so are the further chunks of long pages shown a chunk at a time, by asking with a chunk number.
+ * <p/>
+ * Editors of a page can also ask for the snapshots of its snapshot mode includes to be refreshed straight away.
+ *
+ * @since 4.3.1
+ */
+@Path("/includes")
+@AnonymousAllowed
+@Consumes(MediaType.APPLICATION_JSON)
+@Produces(MediaType.APPLICATION_JSON)
+public class SecureIncludeResource {
+    private static final Logger log = getLogger(SecureIncludeResource.class);
+
+    static final String MAX_BATCH_SIZE = "rest.maxBatchSize";
+
+    private final int maxBatchSize = PerimeterConfig.getInt(MAX_BATCH_SIZE, 50);
+
+    private final SecureIncludeRenderer renderer;
+    private final SecureIncludePreloader preloader;
+    private final SecureIncludeSetRenderer setRenderer;
+    private final FrozenIncludeScheduler snapshots;
+    private final PermissionManager permissionManager;
+
+    public SecureIncludeResource(SecureIncludeRenderer renderer, SecureIncludePreloader preloader,
+                                 SecureIncludeSetRenderer setRenderer, FrozenIncludeScheduler snapshots,
+                                 PermissionManager permissionManager) {
+        this.renderer = renderer;
+        this.preloader = preloader;
+        this.setRenderer = setRenderer;
+        this.snapshots = snapshots;
+        this.permissionManager = permissionManager;
+    }
+
+    @POST
+    public Response render(IncludesRequest request) {
+        if (request == null || request.includes == null)
+            return Response.status(Response.Status.BAD_REQUEST).build();
+        if (request.includes.size() > maxBatchSize)
+            return Response.status(Response.Status.REQUEST_ENTITY_TOO_LARGE).build();
+
+        // Includes of the same page share a context, and with it the page's snapshot and include limits.
+        Map<Long, ConversionContext> contexts = new HashMap<Long, ConversionContext>();
+        IncludesResponse response = new IncludesResponse();
+        for (IncludeRef include : request.includes)
+            response.fragments.add(render(include, contexts));
+        return Response.ok(response).build();
+    }
+
+    /**
+     * Queues a refresh of the snapshot of a snapshot mode include.
+     */
+    @POST
+    @Path("/snapshots")
+    public Response refreshSnapshot(IncludeRef include) {
+        if (include == null || include.includeId == null)
+            return Response.status(Response.Status.BAD_REQUEST).build();
+
+        ContentEntityObject source = SecureIncludeData.getViewableSource(include.sourceId);
+        if (source == null || !permissionManager.hasPermission(AuthenticatedUserThreadLocal.get(), Permission.EDIT, source))
+            return Response.status(Response.Status.FORBIDDEN).build();
+
+        SecureIncludeData data = getData(include.includeId, new DefaultConversionContext(source.toPageContext()));
+        if (data == null || !data.isSnapshot() || data.isSet())
+            return Response.status(Response.Status.NOT_FOUND).build();
+
+        SecureIncludeRenderCache.Key key = new SecureIncludeRenderCache.Key(data.getContentId(), data.getUsername(),
+                source.getId(), include.includeId, data.getSection());
+        return snapshots.refreshNow(key)
+                ? Response.status(Response.Status.ACCEPTED).build()
+                : Response.status(Response.Status.SERVICE_UNAVAILABLE).build();
+    }
+
+    private Fragment render(IncludeRef include, Map<Long, ConversionContext> contexts) {
+        Fragment fragment = new Fragment(include);
+
+        ConversionContext ctx = contexts.get(include.sourceId);
+        if (ctx == null && !contexts.containsKey(include.sourceId)) {
+            ContentEntityObject source = SecureIncludeData.getViewableSource(include.sourceId);
+            ctx = source != null ? new DefaultConversionContext(source.toPageContext()) : null;
+            contexts.put(include.sourceId, ctx);
+        }
+
+        SecureIncludeData data = ctx != null && include.includeId != null
+                ? getData(include.includeId, ctx) : null;
+        if (data == null) {
+            fragment.error = "The secure include does not exist or you do not have permission to view it.";
+            return fragment;
+        }
+
+        if (include.chunk != null && include.chunk < 0) {
+            fragment.error = "There is no chunk " + include.chunk + " of this secure include.";
+            return fragment;
+        }
+        if (include.chunk != null && data.isChunked() && !data.isSet())
+            data = data.withChunk(include.chunk);
+
+        try {
+            fragment.html = data.isSet()
+                    ? setRenderer.render(include.includeId, data, ctx, include.page).toString()
+                    : renderer.render(include.includeId, data, ctx).toString();
+        } catch (MacroExecutionException e) {
+            log.debug("Secure include " + include.includeId + " on " + include.sourceId + " not rendered: " + e.getMessage());
+            fragment.html = Placeholders.forFailure(e);
+            if (fragment.html == null)
+                fragment.error = e.getMessage();
+        }
+        return fragment;
+    }
+
+    /**
+     * @return the include, as long as the body of the page still holds it. The saved data of an include outlives its
+     *         macro, so it is never served on its own.
+     */
+    private SecureIncludeData getData(String includeId, ConversionContext ctx) {
+        SecureIncludeSnapshot snapshot = preloader.getSnapshot(ctx);
+        return snapshot != null && snapshot.contains(includeId) ? snapshot.getData(includeId) : null;
+    }
+
+    @XmlRootElement
+    @XmlAccessorType(XmlAccessType.FIELD)
+    public static class IncludesRequest {
+        @XmlElement
+        private List<IncludeRef> includes;
+    }
+
+    @XmlAccessorType(XmlAccessType.FIELD)
+    public static class IncludeRef {
+        @XmlElement
+        private long sourceId;
+
+        @XmlElement
+        private String includeId;
+
+        @XmlElement
+        private int page;
+
+        @XmlElement
+        private Integer chunk;
+    }
+
+    @XmlRootElement
+    @XmlAccessorType(XmlAccessType.FIELD)
+    public static class IncludesResponse {
+        @XmlElement
+        private List<Fragment> fragments = new ArrayList<Fragment>();
+    }
+
+    @XmlAccessorType(XmlAccessType.FIELD)
+    public static class Fragment {
+        @XmlElement
+        private long sourceId;
+
+        @XmlElement
+        private String includeId;
+
+        @XmlElement
+        private String html;
+
+        @XmlElement
+        private String error;
+
+        public Fragment() {
+        }
+
+        Fragment(IncludeRef include) {
+            this.sourceId = include.sourceId;
+            this.includeId = include.includeId;
+        }
+    }
+}
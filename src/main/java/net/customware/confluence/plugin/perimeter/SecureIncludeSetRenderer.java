@@ -0,0 +1,323 @@
+/*
+ * Copyright (c) 2017, ServiceRocket Inc
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice,
+ *       this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright notice,
+ *       this list of conditions and the following disclaimer in the documentation
+ *       and/or other materials provided with the distribution.
+ *     * Neither the name of "ServiceRocket Inc" nor the names of its contributors may
+ *       be used to endorse or promote products derived from this software without
+ *       specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package net.customware.confluence.plugin.perimeter;
+
+import com.atlassian.confluence.content.render.xhtml.ConversionContext;
+import com.atlassian.confluence.core.ContentEntityManager;
+import com.atlassian.confluence.core.ContentEntityObject;
+import com.atlassian.confluence.event.events.content.blogpost.BlogPostCreateEvent;
+import com.atlassian.confluence.event.events.content.blogpost.BlogPostTrashedEvent;
+import com.atlassian.confluence.event.events.content.page.PageCreateEvent;
+import com.atlassian.confluence.event.events.content.page.PageMoveEvent;
+import com.atlassian.confluence.event.events.content.page.PageTrashedEvent;
+import com.atlassian.confluence.event.events.label.LabelAddEvent;
+import com.atlassian.confluence.event.events.label.LabelRemoveEvent;
+import com.atlassian.confluence.event.events.security.ContentPermissionEvent;
+import com.atlassian.confluence.event.events.security.SpacePermissionsUpdateEvent;
+import com.atlassian.confluence.event.events.user.UserDeactivateEvent;
+import com.atlassian.confluence.event.events.user.UserRemoveEvent;
+import com.atlassian.confluence.macro.MacroExecutionException;
+import com.atlassian.confluence.user.ConfluenceUser;
+import com.atlassian.confluence.user.UserAccessor;
+import com.atlassian.crowd.event.group.GroupMembershipCreatedEvent;
+import com.atlassian.crowd.event.group.GroupMembershipDeletedEvent;
+import com.atlassian.event.api.EventListener;
+import com.atlassian.event.api.EventPublisher;
+import com.atlassian.spring.container.ContainerManager;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static com.atlassian.confluence.util.GeneralUtil.htmlEncode;
+
+/**
+ * Renders secure includes which cover a set of pages: the children of a page, or the pages with a label. Only the
+ * pages the owner of the include can view are rendered, each as if it were included on its own, and a page of
+ * <code>pageSize</code> of them at a time. Further pages are left for the deferred loader script to fetch when
+ * the viewer asks for them.
+ * <p>
+ * The pages a set resolves to are remembered per owner for <code>set.targets.expirySeconds</code>, so that
+ * fetching further pages does not load every labelled page or child again. They are forgotten sooner when
+ * labels, pages, permissions or group memberships change. The title of a page is only shown when it renders, so
+ * a page the owner has lost access to since does not show its title.
+ *
+ * @since 4.3.1
+ */
+@Component
+public class SecureIncludeSetRenderer implements InitializingBean, DisposableBean {
+
+    static final String PAGE_SIZE = "set.pageSize";
+    static final String MAX_PAGE_SIZE = "set.maxPageSize";
+    static final String MAX_TARGETS = "set.maxTargets";
+    static final String TARGETS_EXPIRY_SECONDS = "set.targets.expirySeconds";
+    static final String TARGETS_MAX_SIZE = "set.targets.maxSize";
+
+    private final int defaultPageSize = PerimeterConfig.getInt(PAGE_SIZE, 10);
+    private final int maxPageSize = PerimeterConfig.getInt(MAX_PAGE_SIZE, 50);
+    private final int maxTargets = PerimeterConfig.getInt(MAX_TARGETS, 500);
+
+    private final Cache<String, List<Target>> targetCache = CacheBuilder.newBuilder()
+            .maximumSize(PerimeterConfig.getLong(TARGETS_MAX_SIZE, 1000))
+            .expireAfterWrite(PerimeterConfig.getLong(TARGETS_EXPIRY_SECONDS, 60), TimeUnit.SECONDS)
+            .build();
+
+    private ContentEntityManager contentEntityManager;
+    private LinkAssistant linkAssistant;
+    private OwnerPermissionCache permissionCache;
+    private UserAccessor userAccessor;
+    private SecureIncludeParallelRenderer parallelRenderer;
+    private EventPublisher eventPublisher;
+
+    /**
+     * Renders one page of the set, starting at <code>page</code> 0.
+     */
+    public RenderedFragment render(String id, SecureIncludeData data, ConversionContext ctx, int page) throws MacroExecutionException {
+        ConfluenceUser owner = userAccessor.getUserByName(data.getUsername());
+        if (owner == null)
+            throw new MacroExecutionException("The user who set up this secure include no longer exists: " + data.getUsername());
+
+        List<Target> targets = getTargets(data, owner);
+        int pageSize = data.getPageSize() > 0 ? Math.min(data.getPageSize(), maxPageSize) : defaultPageSize;
+        int from = Math.max(0, page) * pageSize;
+        int to = Math.min(targets.size(), from + pageSize);
+
+        List<SecureIncludeData> items = new ArrayList<SecureIncludeData>(Math.max(0, to - from));
+        for (int i = from; i < to; i++)
+            items.add(data.forTarget(targets.get(i).id));
+        List<Future<RenderedFragment>> renders = parallelRenderer.renderAll(id, items, ctx);
+
+        StringBuilder out = new StringBuilder();
+        if (page == 0)
+            out.append("<div class=\"perimeter-set\">");
+        if (targets.isEmpty())
+            out.append(Placeholders.info("Secure include", "There are no pages to include."));
+
+        for (int i = 0; i < renders.size(); i++) {
+            out.append("<div class=\"perimeter-set-item\">");
+            out.append(getHtml(renders.get(i), targets.get(from + i).title, ctx));
+            out.append("</div>");
+        }
+
+        if (to < targets.size())
+            out.append(Placeholders.more(ctx.getEntity().getId(), id, page + 1));
+        if (page == 0)
+            out.append("</div>");
+        return RenderedFragment.of(out.toString());
+    }
+
+    private String getHtml(Future<RenderedFragment> render, String title, ConversionContext ctx) throws MacroExecutionException {
+        try {
+            String html = render.get().toString();
+            return "<h3 class=\"perimeter-set-title\">" + htmlEncode(title) + "</h3>" + html;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new MacroExecutionException(e);
+        } catch (ExecutionException e) {
+            Exception cause = e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+            if (cause instanceof SecureIncludeLimitException || cause instanceof SecureIncludeUnavailableException)
+                SecureIncludeGraph.get(ctx).markTruncated();
+
+            String placeholder = Placeholders.forFailure(cause);
+            return placeholder != null ? placeholder : Placeholders.error("Unable to render secure include", cause.getMessage());
+        }
+    }
+
+    /**
+     * @return the pages of the set which the owner can view, up to <code>set.maxTargets</code> of them.
+     */
+    private List<Target> getTargets(SecureIncludeData data, ConfluenceUser owner) throws MacroExecutionException {
+        String key = SecureIncludeData.CHILDREN_SCOPE.equals(data.getScope())
+                ? data.getScope() + ":" + data.getContentId() + ":" + owner.getName()
+                : data.getScope() + ":" + data.getLabel() + ":" + owner.getName();
+        List<Target> targets = targetCache.getIfPresent(key);
+        if (targets == null) {
+            targets = loadTargets(data, owner);
+            targetCache.put(key, targets);
+        }
+        return targets;
+    }
+
+    private List<Target> loadTargets(SecureIncludeData data, ConfluenceUser owner) throws MacroExecutionException {
+        List<ContentEntityObject> candidates;
+        if (SecureIncludeData.CHILDREN_SCOPE.equals(data.getScope())) {
+            ContentEntityObject parent = getContentEntityManager().getById(data.getContentId());
+            if (parent == null)
+                throw new MacroExecutionException("The targetContent this secure include accesses no longer exists.");
+            if (!permissionCache.canView(owner, parent))
+                throw new MacroExecutionException("The user who set up this secure include no longer has access to the resource.");
+            candidates = linkAssistant.getChildren(parent);
+        } else {
+            candidates = linkAssistant.getLabelledContent(data.getLabel());
+        }
+
+        if (candidates.isEmpty())
+            return Collections.emptyList();
+
+        List<Target> targets = new ArrayList<Target>();
+        for (ContentEntityObject candidate : candidates) {
+            if (targets.size() >= maxTargets)
+                break;
+            if (permissionCache.canView(owner, candidate))
+                targets.add(new Target(candidate.getId(), candidate.getDisplayTitle()));
+        }
+        return Collections.unmodifiableList(targets);
+    }
+
+    @EventListener
+    public void onLabelAdd(LabelAddEvent event) {
+        targetCache.invalidateAll();
+    }
+
+    @EventListener
+    public void onLabelRemove(LabelRemoveEvent event) {
+        targetCache.invalidateAll();
+    }
+
+    @EventListener
+    public void onPageCreate(PageCreateEvent event) {
+        targetCache.invalidateAll();
+    }
+
+    @EventListener
+    public void onPageMove(PageMoveEvent event) {
+        targetCache.invalidateAll();
+    }
+
+    @EventListener
+    public void onPageTrashed(PageTrashedEvent event) {
+        targetCache.invalidateAll();
+    }
+
+    @EventListener
+    public void onBlogPostCreate(BlogPostCreateEvent event) {
+        targetCache.invalidateAll();
+    }
+
+    @EventListener
+    public void onBlogPostTrashed(BlogPostTrashedEvent event) {
+        targetCache.invalidateAll();
+    }
+
+    @EventListener
+    public void onSpacePermissionsUpdate(SpacePermissionsUpdateEvent event) {
+        targetCache.invalidateAll();
+    }
+
+    @EventListener
+    public void onContentPermission(ContentPermissionEvent event) {
+        targetCache.invalidateAll();
+    }
+
+    @EventListener
+    public void onGroupMembershipCreated(GroupMembershipCreatedEvent event) {
+        targetCache.invalidateAll();
+    }
+
+    @EventListener
+    public void onGroupMembershipDeleted(GroupMembershipDeletedEvent event) {
+        targetCache.invalidateAll();
+    }
+
+    @EventListener
+    public void onUserDeactivate(UserDeactivateEvent event) {
+        targetCache.invalidateAll();
+    }
+
+    @EventListener
+    public void onUserRemove(UserRemoveEvent event) {
+        targetCache.invalidateAll();
+    }
+
+    @Override
+    public void afterPropertiesSet() throws Exception {
+        eventPublisher.register(this);
+    }
+
+    @Override
+    public void destroy() throws Exception {
+        eventPublisher.unregister(this);
+        targetCache.invalidateAll();
+    }
+
+    public ContentEntityManager getContentEntityManager() {
+        if (contentEntityManager == null) {
+            contentEntityManager = (ContentEntityManager) ContainerManager.getComponent("contentEntityManager");
+        }
+        return contentEntityManager;
+    }
+
+    @Autowired
+    public void setLinkAssistant(LinkAssistant linkAssistant) {
+        this.linkAssistant = linkAssistant;
+    }
+
+    @Autowired
+    public void setPermissionCache(OwnerPermissionCache permissionCache) {
+        this.permissionCache = permissionCache;
+    }
+
+    @Autowired
+    public void setUserAccessor(UserAccessor userAccessor) {
+        this.userAccessor = userAccessor;
+    }
+
+    @Autowired
+    public void setParallelRenderer(SecureIncludeParallelRenderer parallelRenderer) {
+        this.parallelRenderer = parallelRenderer;
+    }
+
+    @Autowired
+    public void setEventPublisher(EventPublisher eventPublisher) {
+        this.eventPublisher = eventPublisher;
+    }
+
+    /**
+     * A page of the set, kept by id and title rather than as the entity so it outlives the session it was
+     * loaded in.
+     */
+    private static final class Target {
+        final long id;
+        final String title;
+
+        Target(long id, String title) {
+            this.id = id;
+            this.title = title;
+        }
+    }
+}
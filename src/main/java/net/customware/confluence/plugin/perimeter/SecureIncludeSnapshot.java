@@ -0,0 +1,153 @@
+/*
+ * Copyright (c) 2017, ServiceRocket Inc
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice,
+ *       this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright notice,
+ *       this list of conditions and the following disclaimer in the documentation
+ *       and/or other materials provided with the distribution.
+ *     * Neither the name of "ServiceRocket Inc" nor the names of its contributors may
+ *       be used to endorse or promote products derived from this software without
+ *       specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package net.customware.confluence.plugin.perimeter;
+
+import com.atlassian.confluence.content.render.xhtml.ConversionContext;
+import com.atlassian.confluence.core.ContentEntityObject;
+import com.atlassian.confluence.user.ConfluenceUser;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Everything needed to render the secure includes of one page, loaded in bulk on the first include and kept in
+ * the page's {@link ConversionContext} for the rest of the render. The targets and owners belong to the session of
+ * the request which loaded them; other threads are given a {@link #detached()} copy.
+ *
+ * @since 4.3.1
+ */
+public class SecureIncludeSnapshot {
+
+    static final String CONTEXT_PROPERTY = SecureIncludeSnapshot.class.getName();
+
+    private final long entityId;
+    private final Map<String, SecureIncludeData> data = new LinkedHashMap<String, SecureIncludeData>();
+    private final Map<Long, ContentEntityObject> targets = new HashMap<Long, ContentEntityObject>();
+    private final Map<String, ConfluenceUser> owners = new HashMap<String, ConfluenceUser>();
+    private final Map<String, Set<Long>> permitted = new HashMap<String, Set<Long>>();
+    private final Set<Long> decided = new HashSet<Long>();
+
+    SecureIncludeSnapshot(long entityId) {
+        this.entityId = entityId;
+    }
+
+    /**
+     * @return the snapshot for the entity currently being rendered, or <code>null</code> if none was loaded.
+     */
+    public static SecureIncludeSnapshot get(ConversionContext ctx) {
+        Object snapshot = ctx.getProperty(CONTEXT_PROPERTY);
+        if (snapshot instanceof SecureIncludeSnapshot && ctx.getEntity() != null
+                && ((SecureIncludeSnapshot) snapshot).entityId == ctx.getEntity().getId())
+            return (SecureIncludeSnapshot) snapshot;
+        return null;
+    }
+
+    public long getEntityId() {
+        return entityId;
+    }
+
+    public Set<String> getIncludeIds() {
+        return Collections.unmodifiableSet(data.keySet());
+    }
+
+    /**
+     * @return <code>true</code> if the include was found on the page when the snapshot was taken, even if it
+     *         has not been set up yet.
+     */
+    public boolean contains(String includeId) {
+        return data.containsKey(includeId);
+    }
+
+    public SecureIncludeData getData(String includeId) {
+        return data.get(includeId);
+    }
+
+    public boolean hasTarget(long targetId) {
+        return targets.containsKey(targetId);
+    }
+
+    public ContentEntityObject getTarget(long targetId) {
+        return targets.get(targetId);
+    }
+
+    public boolean hasOwner(String username) {
+        return owners.containsKey(username);
+    }
+
+    public ConfluenceUser getOwner(String username) {
+        return owners.get(username);
+    }
+
+    /**
+     * @return <code>null</code> if the decision was not preloaded.
+     */
+    public Boolean isPermitted(String username, long targetId) {
+        Set<Long> ids = permitted.get(username);
+        if (ids == null || !decided.contains(targetId))
+            return null;
+        return ids.contains(targetId);
+    }
+
+    /**
+     * @return a copy holding only the include data and the permission decisions, for rendering on another thread.
+     *         Targets and owners are left for that thread to load in its own session.
+     */
+    SecureIncludeSnapshot detached() {
+        SecureIncludeSnapshot copy = new SecureIncludeSnapshot(entityId);
+        copy.data.putAll(data);
+        for (Map.Entry<String, Set<Long>> entry : permitted.entrySet())
+            copy.permitted.put(entry.getKey(), new HashSet<Long>(entry.getValue()));
+        for (Map.Entry<Long, ContentEntityObject> target : targets.entrySet()) {
+            if (target.getValue() != null)
+                copy.decided.add(target.getKey());
+        }
+        return copy;
+    }
+
+    void putData(String includeId, SecureIncludeData includeData) {
+        data.put(includeId, includeData);
+    }
+
+    void putTarget(long targetId, ContentEntityObject target) {
+        targets.put(targetId, target);
+        decided.add(targetId);
+    }
+
+    void putOwner(String username, ConfluenceUser owner) {
+        owners.put(username, owner);
+    }
+
+    void putPermitted(String username, Set<Long> targetIds) {
+        permitted.put(username, new HashSet<Long>(targetIds));
+    }
+}
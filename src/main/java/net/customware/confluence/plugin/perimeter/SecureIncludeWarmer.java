@@ -0,0 +1,171 @@
+/*
+ * Copyright (c) 2017, ServiceRocket Inc
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice,
+ *       this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright notice,
+ *       this list of conditions and the following disclaimer in the documentation
+ *       and/or other materials provided with the distribution.
+ *     * Neither the name of "ServiceRocket Inc" nor the names of its contributors may
+ *       be used to endorse or promote products derived from this software without
+ *       specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package net.customware.confluence.plugin.perimeter;
+
+import com.atlassian.confluence.event.events.content.blogpost.BlogPostUpdateEvent;
+import com.atlassian.confluence.event.events.content.page.PageUpdateEvent;
+import com.atlassian.event.api.EventListener;
+import com.atlassian.event.api.EventPublisher;
+import org.slf4j.Logger;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.slf4j.LoggerFactory.getLogger;
+
+/**
+ * Renders secure includes ahead of their viewers. When a page is updated, every include of it which is in the
+ * render cache is re-rendered in the background, and newly set up includes can be queued the same way. The
+ * re-render waits <code>warm.delayMillis</code> so that it sees the update once it has been committed.
+ *
+ * @since 4.3.1
+ */
+@Component
+public class SecureIncludeWarmer implements InitializingBean, DisposableBean {
+    private static final Logger log = getLogger(SecureIncludeWarmer.class);
+
+    static final String ENABLED = "warm.enabled";
+    static final String DELAY_MILLIS = "warm.delayMillis";
+    static final String MAX_PENDING = "warm.maxPending";
+
+    private final boolean enabled = PerimeterConfig.getBoolean(ENABLED, true);
+    private final long delayMillis = PerimeterConfig.getLong(DELAY_MILLIS, 2000);
+    private final int maxPending = PerimeterConfig.getInt(MAX_PENDING, 1000);
+
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "perimeter-warm-1");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private final AtomicInteger pending = new AtomicInteger();
+    private final AtomicLong queued = new AtomicLong();
+    private final AtomicLong skipped = new AtomicLong();
+
+    private SecureIncludeRenderCache renderCache;
+    private SecureIncludeRefresher refresher;
+    private EventPublisher eventPublisher;
+
+    /**
+     * Queues the include to be rendered into the cache shortly.
+     *
+     * @return <code>false</code> if warming is disabled or too many includes are already waiting.
+     */
+    public boolean warm(final SecureIncludeRenderCache.Key key) {
+        if (!enabled)
+            return false;
+
+        if (pending.incrementAndGet() > maxPending) {
+            pending.decrementAndGet();
+            skipped.incrementAndGet();
+            return false;
+        }
+
+        try {
+            scheduler.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    pending.decrementAndGet();
+                    if (!refresher.refresh(key))
+                        skipped.incrementAndGet();
+                }
+            }, delayMillis, TimeUnit.MILLISECONDS);
+            queued.incrementAndGet();
+            return true;
+        } catch (RejectedExecutionException e) {
+            pending.decrementAndGet();
+            return false;
+        }
+    }
+
+    private void warmTarget(long targetId) {
+        List<SecureIncludeRenderCache.Key> keys = renderCache.getKeys(targetId);
+        for (SecureIncludeRenderCache.Key key : keys)
+            warm(key);
+        if (!keys.isEmpty())
+            log.debug("Warming {} secure includes of {}", keys.size(), targetId);
+    }
+
+    @EventListener
+    public void onPageUpdate(PageUpdateEvent event) {
+        warmTarget(event.getPage().getId());
+    }
+
+    @EventListener
+    public void onBlogPostUpdate(BlogPostUpdateEvent event) {
+        warmTarget(event.getBlogPost().getId());
+    }
+
+    public long getQueuedCount() {
+        return queued.get();
+    }
+
+    public long getSkippedCount() {
+        return skipped.get();
+    }
+
+    @Override
+    public void afterPropertiesSet() throws Exception {
+        eventPublisher.register(this);
+    }
+
+    @Override
+    public void destroy() throws Exception {
+        eventPublisher.unregister(this);
+        scheduler.shutdownNow();
+    }
+
+    @Autowired
+    public void setRenderCache(SecureIncludeRenderCache renderCache) {
+        this.renderCache = renderCache;
+    }
+
+    @Autowired
+    public void setRefresher(SecureIncludeRefresher refresher) {
+        this.refresher = refresher;
+    }
+
+    @Autowired
+    public void setEventPublisher(EventPublisher eventPublisher) {
+        this.eventPublisher = eventPublisher;
+    }
+}
@@ -33,11 +33,16 @@ import javax.servlet.http.HttpServletRequest;
 import org.apache.log4j.Logger;
 
 import com.atlassian.confluence.core.ContentEntityObject;
+import com.atlassian.confluence.security.Permission;
+import com.atlassian.confluence.security.PermissionManager;
 import com.atlassian.confluence.servlet.FileServerServlet;
 import com.atlassian.confluence.servlet.download.ThumbnailDownload;
+import com.atlassian.confluence.user.UserAccessor;
 import com.atlassian.confluence.util.GeneralUtil;
 import com.atlassian.user.User;
 
+import static org.apache.commons.lang3.StringUtils.isNotBlank;
+
 /**
  * Provides the download for attachments on a 'secure-include' macro.
  * It will only authorise access to attachments which are:
@@ -48,8 +53,13 @@ public class SecureThumbnailDownload extends ThumbnailDownload
 {
     protected final Logger log = Logger.getLogger(getClass());
 
+    private PermissionManager permissionManager = null;
+
+    private UserAccessor userAccessor = null;
 
-    private static final String THUMBNAIL_PATH = SecureFileServerServlet.SERVLET_PATH + "/" + FileServerServlet.THUMBNAILS_URL_PREFIX;
+    private OwnerPermissionCache permissionCache = null;
+
+    public static final String THUMBNAIL_PATH = SecureFileServerServlet.SERVLET_PATH + "/" + FileServerServlet.THUMBNAILS_URL_PREFIX;
 
     @Override
     public boolean matches(String urlPath)
@@ -66,20 +76,38 @@ public class SecureThumbnailDownload extends ThumbnailDownload
         if (data == null)
             return false;
 
-        if (data.getContentId() != entity.getId())
+        // The pages of a set are all covered by the one include.
+        if (!data.covers(entity))
             return false;
 
-        String username = data.getUsername();
-
         User user = null;
 
-        //if (TextUtils.stringSet(username))
-        //    user = getUserAccessor().getUser(username);
+        if (isNotBlank(data.getUsername()))
+            user = userAccessor.getUserByName(data.getUsername());
 
         if (GeneralUtil.isSuperUser(user))
             return true;
 
-        return true; // permissionManager.hasPermission(user, Permission.VIEW, entity);
+        // Thumbnails are refused along with attachments once the owner can no longer view the target.
+        if (permissionCache != null)
+            return permissionCache.canView(user, entity);
+
+        return permissionManager.hasPermission(user, Permission.VIEW, entity);
+    }
+
+    public void setPermissionManager(PermissionManager permissionManager)
+    {
+        this.permissionManager = permissionManager;
+    }
+
+    public void setUserAccessor(UserAccessor userAccessor)
+    {
+        this.userAccessor = userAccessor;
+    }
+
+    public void setPermissionCache(OwnerPermissionCache permissionCache)
+    {
+        this.permissionCache = permissionCache;
     }
 
     private String getPrefix()
@@ -0,0 +1,88 @@
+/*
+ * Copyright (c) 2017, ServiceRocket Inc
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice,
+ *       this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright notice,
+ *       this list of conditions and the following disclaimer in the documentation
+ *       and/or other materials provided with the distribution.
+ *     * Neither the name of "ServiceRocket Inc" nor the names of its contributors may
+ *       be used to endorse or promote products derived from this software without
+ *       specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package net.customware.confluence.plugin.perimeter;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Splits a page body in storage format into chunks which can be rendered on their own. Chunks only ever end
+ * between top-level elements, such as paragraphs, tables, macros and layouts, so each is well formed, and a chunk
+ * runs on until it holds at least the given number of characters.
+ *
+ * @since 4.3.1
+ */
+final class StorageChunks {
+
+    private StorageChunks() {
+    }
+
+    /**
+     * @return the chunks, which joined together give the storage back. There is always at least one.
+     */
+    static List<String> split(String storage, int maxChars) {
+        List<String> chunks = new ArrayList<String>();
+        if (maxChars <= 0 || storage.length() <= maxChars) {
+            chunks.add(storage);
+            return chunks;
+        }
+
+        int start = 0;
+        int depth = 0;
+        int pos = 0;
+        int lt;
+        while ((lt = storage.indexOf('<', pos)) >= 0) {
+            if (storage.startsWith("<!--", lt)) {
+                pos = StorageSection.skipPast(storage, "-->", lt);
+            } else if (storage.startsWith("<![CDATA[", lt)) {
+                pos = StorageSection.skipPast(storage, "]]>", lt);
+            } else if (storage.startsWith("<?", lt) || storage.startsWith("<!", lt)) {
+                pos = StorageSection.skipPast(storage, ">", lt);
+            } else {
+                int gt = StorageSection.tagEnd(storage, lt);
+                if (gt < 0)
+                    break;
+
+                if (storage.charAt(lt + 1) == '/')
+                    depth--;
+                else if (storage.charAt(gt - 1) != '/')
+                    depth++;
+                pos = gt + 1;
+
+                // The end of a top-level element is somewhere a chunk may end.
+                if (depth == 0 && pos - start >= maxChars && pos < storage.length()) {
+                    chunks.add(storage.substring(start, pos));
+                    start = pos;
+                }
+            }
+        }
+        chunks.add(storage.substring(start));
+        return chunks;
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright (c) 2017, ServiceRocket Inc
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice,
+ *       this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright notice,
+ *       this list of conditions and the following disclaimer in the documentation
+ *       and/or other materials provided with the distribution.
+ *     * Neither the name of "ServiceRocket Inc" nor the names of its contributors may
+ *       be used to endorse or promote products derived from this software without
+ *       specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package net.customware.confluence.plugin.perimeter;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Finds macros by name in a page body in storage format, so they can be rendered apart from the rest of the
+ * page. Macros held in another of the wanted macros are left to the macro holding them.
+ *
+ * @since 4.3.1
+ */
+final class StorageMacros {
+
+    private static final String MACRO = "ac:structured-macro";
+    private static final Pattern NAME = Pattern.compile("\\sac:name\\s*=\\s*(?:\"([^\"]*)\"|'([^']*)')");
+
+    private StorageMacros() {
+    }
+
+    /**
+     * @return the start and end of each wanted macro, in document order.
+     */
+    static List<int[]> find(String storage, Set<String> names) {
+        List<int[]> found = new ArrayList<int[]>();
+        int start = -1;
+        int depth = 0;
+
+        int pos = 0;
+        int lt;
+        while ((lt = storage.indexOf('<', pos)) >= 0) {
+            if (storage.startsWith("<!--", lt)) {
+                pos = StorageSection.skipPast(storage, "-->", lt);
+                continue;
+            }
+            if (storage.startsWith("<![CDATA[", lt)) {
+                pos = StorageSection.skipPast(storage, "]]>", lt);
+                continue;
+            }
+
+            int gt = StorageSection.tagEnd(storage, lt);
+            if (gt < 0)
+                break;
+            pos = gt + 1;
+
+            boolean closing = storage.startsWith("</" + MACRO, lt);
+            if (!closing && !isMacroStart(storage, lt))
+                continue;
+
+            if (closing) {
+                if (start >= 0 && --depth == 0) {
+                    found.add(new int[]{start, pos});
+                    start = -1;
+                }
+            } else if (start >= 0) {
+                if (storage.charAt(gt - 1) != '/')
+                    depth++;
+            } else if (names.contains(name(storage.substring(lt, gt + 1)))) {
+                if (storage.charAt(gt - 1) == '/') {
+                    found.add(new int[]{lt, pos});
+                } else {
+                    start = lt;
+                    depth = 1;
+                }
+            }
+        }
+        return found;
+    }
+
+    /**
+     * @return the name of the macro starting the definition, or <code>null</code> if it has none.
+     */
+    static String name(String definition) {
+        int gt = StorageSection.tagEnd(definition, 0);
+        Matcher name = NAME.matcher(gt < 0 ? definition : definition.substring(0, gt));
+        if (!name.find())
+            return null;
+        return name.group(1) != null ? name.group(1) : name.group(2);
+    }
+
+    private static boolean isMacroStart(String storage, int lt) {
+        int end = lt + 1 + MACRO.length();
+        return storage.startsWith(MACRO, lt + 1) && end < storage.length()
+                && (Character.isWhitespace(storage.charAt(end)) || storage.charAt(end) == '>' || storage.charAt(end) == '/');
+    }
+}
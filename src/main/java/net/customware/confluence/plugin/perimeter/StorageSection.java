@@ -0,0 +1,156 @@
+/*
+ * Copyright (c) 2017, ServiceRocket Inc
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice,
+ *       this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright notice,
+ *       this list of conditions and the following disclaimer in the documentation
+ *       and/or other materials provided with the distribution.
+ *     * Neither the name of "ServiceRocket Inc" nor the names of its contributors may
+ *       be used to endorse or promote products derived from this software without
+ *       specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package net.customware.confluence.plugin.perimeter;
+
+import static org.apache.commons.lang3.StringEscapeUtils.unescapeHtml4;
+
+/**
+ * Cuts a single section out of a page body in storage format. A section starts at a heading and ends before the
+ * next heading of the same or a higher level next to it, or at the end of the element holding it, such as a
+ * layout cell. The result is always well formed.
+ *
+ * @since 4.3.1
+ */
+final class StorageSection {
+
+    private StorageSection() {
+    }
+
+    /**
+     * @param anchor the heading text, as used after the <code>#</code> of a link. Case and spaces are ignored.
+     * @return the storage of the section, or <code>null</code> if there is no such heading.
+     */
+    static String extract(String storage, String anchor) {
+        String wanted = normalize(anchor);
+
+        int depth = 0;
+        int start = -1;
+        int startDepth = 0;
+        int startLevel = 0;
+
+        int pos = 0;
+        int lt;
+        while ((lt = storage.indexOf('<', pos)) >= 0) {
+            if (storage.startsWith("<!--", lt)) {
+                pos = skipPast(storage, "-->", lt);
+                continue;
+            }
+            if (storage.startsWith("<![CDATA[", lt)) {
+                pos = skipPast(storage, "]]>", lt);
+                continue;
+            }
+            if (storage.startsWith("<?", lt) || storage.startsWith("<!", lt)) {
+                pos = skipPast(storage, ">", lt);
+                continue;
+            }
+
+            int gt = tagEnd(storage, lt);
+            if (gt < 0)
+                break;
+
+            if (storage.charAt(lt + 1) == '/') {
+                depth--;
+                if (start >= 0 && depth < startDepth)
+                    return storage.substring(start, lt);
+            } else {
+                int level = headingLevel(storage, lt);
+                if (level > 0) {
+                    if (start >= 0 && depth == startDepth && level <= startLevel)
+                        return storage.substring(start, lt);
+
+                    if (start < 0) {
+                        int close = storage.indexOf("</h" + level, gt);
+                        if (close > gt && normalize(text(storage.substring(gt + 1, close))).equals(wanted)) {
+                            start = lt;
+                            startDepth = depth;
+                            startLevel = level;
+                        }
+                    }
+                }
+                if (storage.charAt(gt - 1) != '/')
+                    depth++;
+            }
+            pos = gt + 1;
+        }
+        return start >= 0 ? storage.substring(start) : null;
+    }
+
+    static int skipPast(String storage, String end, int from) {
+        int index = storage.indexOf(end, from);
+        return index < 0 ? storage.length() : index + end.length();
+    }
+
+    /**
+     * @return the index of the <code>&gt;</code> closing the tag at <code>lt</code>, ignoring any in quoted
+     *         attribute values.
+     */
+    static int tagEnd(String storage, int lt) {
+        char quote = 0;
+        for (int i = lt + 1; i < storage.length(); i++) {
+            char c = storage.charAt(i);
+            if (quote != 0) {
+                if (c == quote)
+                    quote = 0;
+            } else if (c == '"' || c == '\'') {
+                quote = c;
+            } else if (c == '>') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return the level of the heading opened at <code>lt</code>, or <code>0</code> if it is another element.
+     */
+    private static int headingLevel(String storage, int lt) {
+        if (lt + 3 >= storage.length() || storage.charAt(lt + 1) != 'h')
+            return 0;
+
+        char level = storage.charAt(lt + 2);
+        char next = storage.charAt(lt + 3);
+        if (level < '1' || level > '6' || !(next == '>' || next == '/' || Character.isWhitespace(next)))
+            return 0;
+        return level - '0';
+    }
+
+    private static String text(String markup) {
+        return unescapeHtml4(markup.replaceAll("<[^>]*>", ""));
+    }
+
+    private static String normalize(String text) {
+        StringBuilder out = new StringBuilder(text.length());
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (!Character.isWhitespace(c) && c != '\u00a0')
+                out.append(Character.toLowerCase(c));
+        }
+        return out.toString();
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright (c) 2017, ServiceRocket Inc
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice,
+ *       this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright notice,
+ *       this list of conditions and the following disclaimer in the documentation
+ *       and/or other materials provided with the distribution.
+ *     * Neither the name of "ServiceRocket Inc" nor the names of its contributors may
+ *       be used to endorse or promote products derived from this software without
+ *       specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package net.customware.confluence.plugin.perimeter;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.apache.commons.lang3.StringEscapeUtils.unescapeHtml4;
+
+/**
+ * Reads the text of a page body in storage format without converting it to HTML.
+ *
+ * @since 4.3.1
+ */
+final class StorageText {
+
+    private static final String EXCERPT_MACRO = "ac:name=\"excerpt\"";
+    private static final String RICH_TEXT_BODY = "<ac:rich-text-body>";
+
+    private static final Set<String> SKIPPED = new HashSet<String>(Arrays.asList(
+            "ac:parameter", "ac:plain-text-body", "ac:placeholder"));
+
+    private static final Set<String> INLINE = new HashSet<String>(Arrays.asList(
+            "a", "abbr", "b", "code", "del", "em", "i", "ins", "s", "small", "span", "strong", "sub", "sup", "u",
+            "ac:link", "ac:link-body", "ac:plain-text-link-body", "ri:page", "ri:attachment", "ri:user", "ri:url"));
+
+    private StorageText() {
+    }
+
+    /**
+     * @return the storage of the body of the first excerpt macro, or <code>null</code> if there is none.
+     */
+    static String excerpt(String storage) {
+        int macro = storage.indexOf(EXCERPT_MACRO);
+        if (macro < 0)
+            return null;
+
+        int body = storage.indexOf(RICH_TEXT_BODY, macro);
+        if (body < 0)
+            return null;
+
+        int start = body + RICH_TEXT_BODY.length();
+        int depth = 1;
+        int pos = start;
+        int lt;
+        while ((lt = storage.indexOf('<', pos)) >= 0) {
+            if (storage.startsWith("<!--", lt) || storage.startsWith("<![CDATA[", lt)) {
+                pos = StorageSection.skipPast(storage, storage.charAt(lt + 2) == '-' ? "-->" : "]]>", lt);
+                continue;
+            }
+
+            int gt = StorageSection.tagEnd(storage, lt);
+            if (gt < 0)
+                break;
+
+            if (storage.charAt(lt + 1) == '/') {
+                if (--depth == 0)
+                    return storage.substring(start, lt);
+            } else if (storage.charAt(gt - 1) != '/') {
+                depth++;
+            }
+            pos = gt + 1;
+        }
+        return null;
+    }
+
+    /**
+     * @return the readable text of the storage, with whitespace collapsed, cut at a word boundary after at most
+     *         <code>maxChars</code> characters. Macro parameters and code blocks are left out.
+     */
+    static String plainText(String storage, int maxChars) {
+        StringBuilder text = new StringBuilder(Math.min(storage.length(), maxChars + 1));
+        int skipDepth = 0;
+        int pos = 0;
+        while (pos < storage.length() && text.length() <= maxChars) {
+            int lt = storage.indexOf('<', pos);
+            int end = lt < 0 ? storage.length() : lt;
+            if (skipDepth == 0 && end > pos)
+                appendText(text, unescapeHtml4(storage.substring(pos, end)));
+            if (lt < 0)
+                break;
+
+            if (storage.startsWith("<!--", lt) || storage.startsWith("<![CDATA[", lt)) {
+                pos = StorageSection.skipPast(storage, storage.charAt(lt + 2) == '-' ? "-->" : "]]>", lt);
+                continue;
+            }
+
+            int gt = StorageSection.tagEnd(storage, lt);
+            if (gt < 0)
+                break;
+
+            boolean closing = storage.charAt(lt + 1) == '/';
+            boolean empty = storage.charAt(gt - 1) == '/';
+            String name = tagName(storage, closing ? lt + 2 : lt + 1);
+            if (SKIPPED.contains(name)) {
+                if (closing)
+                    skipDepth--;
+                else if (!empty)
+                    skipDepth++;
+            }
+            // Blocks separate words, as in table cells or list items; inline markup does not.
+            if (!INLINE.contains(name))
+                appendText(text, " ");
+            pos = gt + 1;
+        }
+
+        return truncate(text.toString().trim(), maxChars);
+    }
+
+    private static String tagName(String storage, int from) {
+        int end = from;
+        while (end < storage.length()) {
+            char c = storage.charAt(end);
+            if (Character.isWhitespace(c) || c == '/' || c == '>')
+                break;
+            end++;
+        }
+        return storage.substring(from, end);
+    }
+
+    private static void appendText(StringBuilder text, String chunk) {
+        for (int i = 0; i < chunk.length(); i++) {
+            char c = chunk.charAt(i);
+            if (Character.isWhitespace(c) || c == '\u00a0') {
+                if (text.length() > 0 && text.charAt(text.length() - 1) != ' ')
+                    text.append(' ');
+            } else {
+                text.append(c);
+            }
+        }
+    }
+
+    private static String truncate(String text, int maxChars) {
+        if (text.length() <= maxChars)
+            return text;
+
+        int cut = text.lastIndexOf(' ', maxChars);
+        return text.substring(0, cut > maxChars / 2 ? cut : maxChars) + "...";
+    }
+}
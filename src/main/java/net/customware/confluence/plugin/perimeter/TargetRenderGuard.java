@@ -0,0 +1,264 @@
+/*
+ * Copyright (c) 2017, ServiceRocket Inc
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice,
+ *       this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright notice,
+ *       this list of conditions and the following disclaimer in the documentation
+ *       and/or other materials provided with the distribution.
+ *     * Neither the name of "ServiceRocket Inc" nor the names of its contributors may
+ *       be used to endorse or promote products derived from this software without
+ *       specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package net.customware.confluence.plugin.perimeter;
+
+import com.atlassian.confluence.macro.MacroExecutionException;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import org.slf4j.Logger;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.stereotype.Component;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.slf4j.LoggerFactory.getLogger;
+
+/**
+ * Protects the request threads from targets which are slow to render. Each target may only be rendered by
+ * <code>render.bulkhead.perTarget</code> threads at once. When <code>render.timeout.millis</code> is set, renders
+ * run on a separate pool and the caller stops waiting for them after that long. A target whose renders time out
+ * <code>render.breaker.failures</code> times in a row is not rendered at all for
+ * <code>render.breaker.openSeconds</code>, after which renders are tried again.
+ *
+ * @since 4.3.1
+ */
+@Component
+public class TargetRenderGuard implements DisposableBean {
+    private static final Logger log = getLogger(TargetRenderGuard.class);
+
+    static final String PER_TARGET = "render.bulkhead.perTarget";
+    static final String WAIT_MILLIS = "render.bulkhead.waitMillis";
+    static final String TIMEOUT_MILLIS = "render.timeout.millis";
+    static final String THREADS = "render.timeout.threads";
+    static final String QUEUE_SIZE = "render.timeout.queueSize";
+    static final String BREAKER_FAILURES = "render.breaker.failures";
+    static final String BREAKER_OPEN_SECONDS = "render.breaker.openSeconds";
+
+    private final int perTarget = PerimeterConfig.getInt(PER_TARGET, 4);
+    private final long waitMillis = PerimeterConfig.getLong(WAIT_MILLIS, 1000);
+    private final long timeoutMillis = PerimeterConfig.getLong(TIMEOUT_MILLIS, 0);
+    private final int breakerFailures = Math.max(1, PerimeterConfig.getInt(BREAKER_FAILURES, 3));
+    private final long breakerOpenMillis = TimeUnit.SECONDS.toMillis(PerimeterConfig.getLong(BREAKER_OPEN_SECONDS, 60));
+
+    private final BoundedExecutor executor = timeoutMillis > 0 ? new BoundedExecutor("deadline",
+            PerimeterConfig.getInt(THREADS, 8), PerimeterConfig.getInt(QUEUE_SIZE, 50)) : null;
+
+    private final LoadingCache<Long, TargetState> targets = CacheBuilder.newBuilder()
+            .expireAfterAccess(10, TimeUnit.MINUTES)
+            .build(new CacheLoader<Long, TargetState>() {
+                @Override
+                public TargetState load(Long targetId) {
+                    return new TargetState(perTarget);
+                }
+            });
+
+    private final AtomicLong timeouts = new AtomicLong();
+    private final AtomicLong bulkheadRejections = new AtomicLong();
+    private final AtomicLong breakerRejections = new AtomicLong();
+
+    /**
+     * Runs the conversion of the target, subject to the target's bulkhead and circuit breaker, and to the deadline
+     * if <code>deadline</code> is set.
+     *
+     * @throws SecureIncludeUnavailableException if the target was not rendered in time, or not rendered at all.
+     */
+    public String render(long targetId, final Callable<String> conversion, boolean deadline) throws MacroExecutionException {
+        final TargetState state = targets.getUnchecked(targetId);
+
+        if (state.isOpen()) {
+            breakerRejections.incrementAndGet();
+            throw new SecureIncludeUnavailableException("This content is temporarily unavailable because it has been too slow to display.");
+        }
+
+        if (perTarget > 0 && !acquire(state)) {
+            bulkheadRejections.incrementAndGet();
+            throw new SecureIncludeUnavailableException("This content is temporarily unavailable because it is being displayed too often at once.");
+        }
+
+        // Released by whichever of the render and a timed out caller gets to it first.
+        final AtomicBoolean released = new AtomicBoolean();
+        final AtomicBoolean started = new AtomicBoolean();
+        Future<String> future = null;
+        if (executor != null && deadline) {
+            try {
+                future = executor.submit(new Callable<String>() {
+                    @Override
+                    public String call() throws Exception {
+                        started.set(true);
+                        try {
+                            return conversion.call();
+                        } finally {
+                            release(state, released);
+                        }
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                log.debug("Deadline pool is busy, rendering {} without a deadline", targetId);
+            }
+        }
+
+        if (future == null) {
+            try {
+                return call(conversion);
+            } finally {
+                release(state, released);
+            }
+        }
+
+        try {
+            String rendered = future.get(timeoutMillis, TimeUnit.MILLISECONDS);
+            state.succeeded();
+            return rendered;
+        } catch (TimeoutException e) {
+            // A render which has started keeps its bulkhead permit until it really finishes, but one still
+            // waiting in the queue never runs once cancelled, so its permit is given back here.
+            if (future.cancel(false) && !started.get())
+                release(state, released);
+            timeouts.incrementAndGet();
+            if (state.failed(breakerFailures, breakerOpenMillis))
+                log.warn("Rendering {} timed out {} times in a row, not rendering it for {} seconds",
+                        new Object[] {targetId, breakerFailures, TimeUnit.MILLISECONDS.toSeconds(breakerOpenMillis)});
+            throw new SecureIncludeUnavailableException("This content is temporarily unavailable because it took more than " + timeoutMillis + "ms to display.");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new MacroExecutionException(e);
+        } catch (ExecutionException e) {
+            throw unwrap(e.getCause());
+        }
+    }
+
+    private boolean acquire(TargetState state) {
+        try {
+            return state.permits.tryAcquire(waitMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private void release(TargetState state, AtomicBoolean released) {
+        if (perTarget > 0 && released.compareAndSet(false, true))
+            state.permits.release();
+    }
+
+    /**
+     * @return the number of further renders of the target which may start straight away.
+     */
+    int getAvailablePermits(long targetId) {
+        return targets.getUnchecked(targetId).permits.availablePermits();
+    }
+
+    private static String call(Callable<String> conversion) throws MacroExecutionException {
+        try {
+            return conversion.call();
+        } catch (Exception e) {
+            throw unwrap(e);
+        }
+    }
+
+    private static MacroExecutionException unwrap(Throwable e) {
+        if (e instanceof RenderFailure)
+            return ((RenderFailure) e).getCause();
+        if (e instanceof MacroExecutionException)
+            return (MacroExecutionException) e;
+        if (e instanceof RuntimeException)
+            throw (RuntimeException) e;
+        return new MacroExecutionException(e);
+    }
+
+    public long getTimeoutCount() {
+        return timeouts.get();
+    }
+
+    public long getBulkheadRejectionCount() {
+        return bulkheadRejections.get();
+    }
+
+    public long getBreakerRejectionCount() {
+        return breakerRejections.get();
+    }
+
+    /**
+     * @return the number of targets which are currently not being rendered.
+     */
+    public int getOpenBreakerCount() {
+        int open = 0;
+        for (TargetState state : targets.asMap().values()) {
+            if (state.isOpen())
+                open++;
+        }
+        return open;
+    }
+
+    @Override
+    public void destroy() throws Exception {
+        if (executor != null)
+            executor.shutdown();
+        targets.invalidateAll();
+    }
+
+    private static final class TargetState {
+        private final Semaphore permits;
+        private final AtomicInteger failures = new AtomicInteger();
+        private volatile long openUntil;
+
+        TargetState(int permits) {
+            this.permits = new Semaphore(Math.max(1, permits));
+        }
+
+        boolean isOpen() {
+            return openUntil > System.currentTimeMillis();
+        }
+
+        void succeeded() {
+            failures.set(0);
+            openUntil = 0L;
+        }
+
+        /**
+         * @return <code>true</code> if this failure opened the breaker.
+         */
+        boolean failed(int threshold, long openMillis) {
+            if (failures.incrementAndGet() < threshold)
+                return false;
+            openUntil = System.currentTimeMillis() + openMillis;
+            return true;
+        }
+    }
+}
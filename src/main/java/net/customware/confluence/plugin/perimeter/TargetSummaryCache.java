@@ -0,0 +1,102 @@
+/*
+ * Copyright (c) 2017, ServiceRocket Inc
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice,
+ *       this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright notice,
+ *       this list of conditions and the following disclaimer in the documentation
+ *       and/or other materials provided with the distribution.
+ *     * Neither the name of "ServiceRocket Inc" nor the names of its contributors may
+ *       be used to endorse or promote products derived from this software without
+ *       specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package net.customware.confluence.plugin.perimeter;
+
+import com.atlassian.confluence.core.ContentEntityObject;
+import com.atlassian.confluence.macro.MacroExecutionException;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import org.springframework.stereotype.Component;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.atlassian.confluence.util.GeneralUtil.htmlEncode;
+
+/**
+ * Plain text summaries of included pages, for includes in summary mode. A summary is the text of the page's
+ * excerpt, or else its first <code>summary.maxChars</code> characters of text, and is worked out from the storage
+ * format once per version of the page and section.
+ *
+ * @since 4.3.1
+ */
+@Component
+public class TargetSummaryCache {
+
+    static final String MAX_CHARS = "summary.maxChars";
+    static final String MAX_SIZE = "summary.cache.maxSize";
+
+    private final int maxChars = PerimeterConfig.getInt(MAX_CHARS, 300);
+
+    private final Cache<String, String> cache = CacheBuilder.newBuilder()
+            .maximumSize(PerimeterConfig.getLong(MAX_SIZE, 5000))
+            .build();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * @return the summary of the target, or of its section if one is given, as HTML.
+     */
+    public String getSummary(ContentEntityObject target, String section) throws MacroExecutionException {
+        return "<p class=\"perimeter-summary\">" + htmlEncode(getSummaryText(target, section)) + "</p>";
+    }
+
+    /**
+     * @return the summary of the target, or of its section if one is given, as plain text.
+     */
+    public String getSummaryText(ContentEntityObject target, String section) throws MacroExecutionException {
+        String key = target.getId() + ":" + target.getVersion() + (section == null ? "" : "#" + section);
+        String summary = cache.getIfPresent(key);
+        if (summary != null) {
+            hits.incrementAndGet();
+            return summary;
+        }
+
+        misses.incrementAndGet();
+        String storage = target.getBodyAsString();
+        if (section != null) {
+            storage = StorageSection.extract(storage, section);
+            if (storage == null)
+                throw new MacroExecutionException("The section '" + section + "' this secure include accesses no longer exists.");
+        }
+
+        String excerpt = StorageText.excerpt(storage);
+        summary = StorageText.plainText(excerpt != null ? excerpt : storage, maxChars);
+        cache.put(key, summary);
+        return summary;
+    }
+
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    public long getMissCount() {
+        return misses.get();
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright (c) 2017, ServiceRocket Inc
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice,
+ *       this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright notice,
+ *       this list of conditions and the following disclaimer in the documentation
+ *       and/or other materials provided with the distribution.
+ *     * Neither the name of "ServiceRocket Inc" nor the names of its contributors may
+ *       be used to endorse or promote products derived from this software without
+ *       specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package net.customware.confluence.plugin.perimeter;
+
+import com.atlassian.confluence.core.ContentEntityObject;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.Weigher;
+import org.springframework.stereotype.Component;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Plain text of included pages for the search index, worked out from the storage format once per version of the
+ * page and section. A reindex visits every page holding an include of a popular target, so the text is shared
+ * between them rather than converting the target for each one.
+ *
+ * @since 4.3.1
+ */
+@Component
+public class TargetTextCache {
+
+    static final String MAX_CHARS = "index.maxChars";
+    static final String CACHE_MAX_CHARS = "index.cache.maxChars";
+
+    private final int maxChars = PerimeterConfig.getInt(MAX_CHARS, 32 * 1024);
+
+    private final Cache<String, String> cache = CacheBuilder.newBuilder()
+            .maximumWeight(PerimeterConfig.getLong(CACHE_MAX_CHARS, 8L * 1024 * 1024))
+            .weigher(new Weigher<String, String>() {
+                @Override
+                public int weigh(String key, String text) {
+                    return text.length();
+                }
+            })
+            .build();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * @return the text of the target, or of its section if one is given, or <code>null</code> if the section
+     *         does not exist.
+     */
+    public String getText(ContentEntityObject target, String section) {
+        String key = target.getId() + ":" + target.getVersion() + (section == null ? "" : "#" + section);
+        String text = cache.getIfPresent(key);
+        if (text != null) {
+            hits.incrementAndGet();
+            return text;
+        }
+
+        misses.incrementAndGet();
+        String storage = target.getBodyAsString();
+        if (section != null)
+            storage = StorageSection.extract(storage, section);
+        if (storage == null)
+            return null;
+
+        text = StorageText.plainText(storage, maxChars);
+        cache.put(key, text);
+        return text;
+    }
+
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    public long getMissCount() {
+        return misses.get();
+    }
+}
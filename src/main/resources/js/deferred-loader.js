@@ -0,0 +1,86 @@
+/*
+ * Fills in the secure includes which were left out of the page, in batches, once the page has loaded, the
+ * further pages of multi-page includes when the viewer asks for them, and the further chunks of long pages as the
+ * viewer scrolls towards them.
+ */
+AJS.toInit(function ($) {
+    var BATCH_SIZE = 20;
+    var URL = AJS.contextPath() + "/rest/perimeter/1.0/includes";
+
+    var placeholders = $(".perimeter-deferred").get();
+
+    function showError(placeholder, message) {
+        $(placeholder).removeClass("perimeter-deferred").empty().append(
+            $("<div class='aui-message error'></div>").text(message));
+    }
+
+    function load(batch) {
+        var includes = $.map(batch, function (placeholder) {
+            var chunk = $(placeholder).attr("data-chunk");
+            return {
+                sourceId: parseInt($(placeholder).attr("data-source-id"), 10),
+                includeId: $(placeholder).attr("data-include-id"),
+                page: parseInt($(placeholder).attr("data-page") || "0", 10),
+                chunk: chunk ? parseInt(chunk, 10) : null
+            };
+        });
+
+        $.ajax({
+            url: URL,
+            type: "POST",
+            contentType: "application/json",
+            dataType: "json",
+            data: JSON.stringify({includes: includes})
+        }).done(function (response) {
+            $.each(batch, function (i, placeholder) {
+                var fragment = response.fragments && response.fragments[i];
+                if (!fragment || fragment.error)
+                    showError(placeholder, fragment ? fragment.error : "Unable to load this secure include.");
+                else if ($(placeholder).attr("data-chunk"))
+                    $(placeholder).replaceWith(fragment.html);
+                else
+                    $(placeholder).removeClass("perimeter-deferred").html(fragment.html);
+            });
+            loadVisibleChunks();
+        }).fail(function () {
+            $.each(batch, function (i, placeholder) {
+                showError(placeholder, "Unable to load this secure include.");
+            });
+        });
+    }
+
+    // Chunks are fetched once they are within a screen's height of coming into view.
+    function loadVisibleChunks() {
+        var bottom = $(window).scrollTop() + 2 * $(window).height();
+        var chunks = $(".perimeter-chunk").filter(function () {
+            return $(this).offset().top < bottom;
+        }).get();
+
+        $(chunks).removeClass("perimeter-chunk").addClass("perimeter-deferred");
+        for (var i = 0; i < chunks.length; i += BATCH_SIZE)
+            load(chunks.slice(i, i + BATCH_SIZE));
+    }
+
+    var scrollTimer = null;
+    $(window).on("scroll resize", function () {
+        if (scrollTimer === null) {
+            scrollTimer = setTimeout(function () {
+                scrollTimer = null;
+                loadVisibleChunks();
+            }, 100);
+        }
+    });
+
+    loadVisibleChunks();
+
+    for (var i = 0; i < placeholders.length; i += BATCH_SIZE)
+        load(placeholders.slice(i, i + BATCH_SIZE));
+
+    $(document).on("click", ".perimeter-more button", function (e) {
+        e.preventDefault();
+        var more = $(this).closest(".perimeter-more");
+        more.removeClass("perimeter-more").addClass("perimeter-deferred").empty()
+            .append("<span class='aui-icon aui-icon-wait'>Loading...</span>");
+        load([more.get(0)]);
+    });
+});
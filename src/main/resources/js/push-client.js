@@ -0,0 +1,40 @@
+/*
+ * Listens for changes to the secure includes of the page being viewed and fetches each changed include again,
+ * instead of the whole page being reloaded.
+ */
+AJS.toInit(function ($) {
+    var includes = $(".perimeter-include");
+    if (!includes.length || !window.EventSource)
+        return;
+
+    var sourceId = includes.first().attr("data-source-id");
+    var events = new EventSource(AJS.contextPath() + "/plugins/servlet/perimeter-events?sourceId=" + encodeURIComponent(sourceId));
+    var loading = {};
+
+    events.addEventListener("include", function (event) {
+        var includeId = event.data;
+        if (loading[includeId])
+            return;
+
+        var include = includes.filter(function () {
+            return $(this).attr("data-include-id") === includeId;
+        });
+        if (!include.length)
+            return;
+
+        loading[includeId] = true;
+        $.ajax({
+            url: AJS.contextPath() + "/rest/perimeter/1.0/includes",
+            type: "POST",
+            contentType: "application/json",
+            dataType: "json",
+            data: JSON.stringify({includes: [{sourceId: parseInt(sourceId, 10), includeId: includeId}]})
+        }).done(function (response) {
+            var fragment = response.fragments && response.fragments[0];
+            if (fragment && !fragment.error)
+                include.html(fragment.html);
+        }).always(function () {
+            delete loading[includeId];
+        });
+    });
+});
@@ -0,0 +1,117 @@
+/*
+ * Copyright (c) 2017, ServiceRocket Inc
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice,
+ *       this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright notice,
+ *       this list of conditions and the following disclaimer in the documentation
+ *       and/or other materials provided with the distribution.
+ *     * Neither the name of "ServiceRocket Inc" nor the names of its contributors may
+ *       be used to endorse or promote products derived from this software without
+ *       specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package net.customware.confluence.plugin.perimeter;
+
+import com.atlassian.confluence.servlet.FileServerServlet;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares {@link AttachmentUrlRewriter} with the <code>String.replaceAll</code> rewrite it replaced, on
+ * rendered fragments of about 1 MB. Run with <code>mvn test-compile exec:java
+ * -Dexec.mainClass=net.customware.confluence.plugin.perimeter.AttachmentUrlRewriterBenchmark
+ * -Dexec.classpathScope=test</code>; the GC profiler reports the bytes allocated per rewrite.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class AttachmentUrlRewriterBenchmark {
+
+    private static final long TARGET_ID = 98765L;
+    private static final long SOURCE_ID = 12345L;
+    private static final String INCLUDE_ID = "dashboard";
+
+    /**
+     * Number of attachment links per kilobyte of fragment.
+     */
+    @Param({"0", "1", "8"})
+    public int linksPerKb;
+
+    private String fragment;
+    private AttachmentUrlRewriter rewriter;
+    private String attachmentUrl;
+    private String contentIncludeId;
+
+    @Setup
+    public void setUp() {
+        StringBuilder html = new StringBuilder(1024 * 1024 + 1024);
+        String text = "<p>Lorem ipsum dolor sit amet, consectetur adipiscing elit, sed do eiusmod tempor incididunt.</p>\n";
+        String link = "<a href=\"/confluence/download/attachments/" + TARGET_ID + "/report.pdf?version=3&amp;api=v2\">report</a>\n";
+        String image = "<img src=\"/confluence/download/thumbnails/" + TARGET_ID + "/chart.png\" data-image-src=\"/confluence/download/attachments/"
+                + TARGET_ID + "/chart.png\"/>\n";
+
+        while (html.length() < 1024 * 1024) {
+            int kbStart = html.length();
+            for (int i = 0; i < linksPerKb; i++)
+                html.append((i & 1) == 0 ? link : image);
+            while (html.length() - kbStart < 1024)
+                html.append(text);
+        }
+        fragment = html.toString();
+
+        rewriter = new AttachmentUrlRewriter(TARGET_ID, SOURCE_ID, INCLUDE_ID);
+        attachmentUrl = "/" + FileServerServlet.SERVLET_PATH + "/" + FileServerServlet.ATTACHMENTS_URL_PREFIX + "/" + TARGET_ID;
+        contentIncludeId = rewriter.getAttachmentPath();
+    }
+
+    @Benchmark
+    public String replaceAll() {
+        return fragment.replaceAll(attachmentUrl, contentIncludeId);
+    }
+
+    @Benchmark
+    public String singlePass() {
+        return rewriter.rewrite(fragment);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(AttachmentUrlRewriterBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build()).run();
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright (c) 2017, ServiceRocket Inc
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice,
+ *       this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright notice,
+ *       this list of conditions and the following disclaimer in the documentation
+ *       and/or other materials provided with the distribution.
+ *     * Neither the name of "ServiceRocket Inc" nor the names of its contributors may
+ *       be used to endorse or promote products derived from this software without
+ *       specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package net.customware.confluence.plugin.perimeter;
+
+import org.junit.Test;
+
+import java.util.Collections;
+
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.Assert.assertThat;
+
+public class AttachmentUrlRewriterTest {
+
+    private final AttachmentUrlRewriter rewriter = new AttachmentUrlRewriter(123L, 456L, "inc");
+
+    @Test public void attachmentLinksOfTheTargetShouldPointAtTheSecureServlet() {
+        assertThat(
+                rewriter.rewrite("<a href=\"/confluence/download/attachments/123/file.pdf?version=1\">file</a>"),
+                is("<a href=\"/confluence/plugins/servlet/perimeter/attachments/123/456/inc/file.pdf?version=1\">file</a>")
+        );
+    }
+
+    @Test public void thumbnailLinksOfTheTargetShouldPointAtTheSecureServlet() {
+        assertThat(
+                rewriter.rewrite("<img src=\"/download/thumbnails/123/image.png\"/>"),
+                is("<img src=\"/plugins/servlet/perimeter/thumbnails/123/456/inc/image.png\"/>")
+        );
+    }
+
+    @Test public void imagePreviewLinksOfTheTargetShouldPointAtTheSecureServlet() {
+        assertThat(
+                rewriter.rewrite("<img src=\"/download/thumbnails/123/a.png\" data-image-src=\"/download/attachments/123/a.png\"/>"),
+                is("<img src=\"/plugins/servlet/perimeter/thumbnails/123/456/inc/a.png\" data-image-src=\"/plugins/servlet/perimeter/attachments/123/456/inc/a.png\"/>")
+        );
+    }
+
+    @Test public void pinnedAttachmentLinksShouldAskForThePinnedVersion() {
+        AttachmentUrlRewriter pinned = new AttachmentUrlRewriter(123L, 456L, "inc",
+                Collections.singletonMap("my file.pdf", 2));
+        assertThat(
+                pinned.rewrite("<a href=\"/download/attachments/123/my%20file.pdf?version=5&amp;api=v2#p3\">a</a>"
+                        + "<a href=\"/download/attachments/123/other.pdf?version=5\">b</a>"),
+                is("<a href=\"/plugins/servlet/perimeter/attachments/123/456/inc/my%20file.pdf?version=2#p3\">a</a>"
+                        + "<a href=\"/plugins/servlet/perimeter/attachments/123/456/inc/other.pdf?version=5\">b</a>")
+        );
+    }
+
+    @Test public void linksOfOtherContentShouldBeLeftAlone() {
+        String html = "<a href=\"/download/attachments/1234/file.pdf\">a</a><a href=\"/download/attachments/12/file.pdf\">b</a>"
+                + "<a href=\"/download/temp/123/file.pdf\">c</a>";
+        assertThat(rewriter.rewrite(html), sameInstance(html));
+    }
+
+    @Test public void htmlWithoutDownloadLinksShouldNotBeCopied() {
+        String html = "<p>Nothing to see here</p>";
+        assertThat(rewriter.rewrite(html), sameInstance(html));
+    }
+
+    @Test public void includeIdShouldBeUrlEncoded() {
+        assertThat(
+                new AttachmentUrlRewriter(123L, 456L, "a b").rewrite("/download/attachments/123/f"),
+                is("/plugins/servlet/perimeter/attachments/123/456/a+b/f")
+        );
+    }
+}
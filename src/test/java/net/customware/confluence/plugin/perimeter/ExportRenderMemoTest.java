@@ -0,0 +1,99 @@
+/*
+ * Copyright (c) 2017, ServiceRocket Inc
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice,
+ *       this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright notice,
+ *       this list of conditions and the following disclaimer in the documentation
+ *       and/or other materials provided with the distribution.
+ *     * Neither the name of "ServiceRocket Inc" nor the names of its contributors may
+ *       be used to endorse or promote products derived from this software without
+ *       specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package net.customware.confluence.plugin.perimeter;
+
+import com.atlassian.renderer.RenderContextOutputType;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+public class ExportRenderMemoTest {
+
+    private static final Set<String> INFO = Collections.singleton("info");
+
+    private final ExportRenderMemo memo = new ExportRenderMemo();
+
+    private static ExportRenderMemo.Key key(long sourceId) {
+        return new ExportRenderMemo.Key(RenderContextOutputType.PDF, 1, 2, "admin", null, sourceId);
+    }
+
+    @Test public void contentNamingItsPagesShouldBeShareable() {
+        assertThat(ExportRenderMemo.isShareable("<p>Plain <strong>text</strong></p><ac:emoticon ac:name=\"smile\" />", INFO), is(true));
+        assertThat(ExportRenderMemo.isShareable("<ac:structured-macro ac:name=\"info\"><ac:rich-text-body><p>a</p></ac:rich-text-body></ac:structured-macro>", INFO), is(true));
+        assertThat(ExportRenderMemo.isShareable("<ac:link><ri:page ri:space-key=\"DOC\" ri:content-title=\"Terms\" /></ac:link>", INFO), is(true));
+        assertThat(ExportRenderMemo.isShareable("<ac:image><ri:attachment ri:filename=\"logo.png\"><ri:page ri:space-key=\"DOC\" ri:content-title=\"Terms\" /></ri:attachment></ac:image>", INFO), is(true));
+        assertThat(ExportRenderMemo.isShareable("<ac:image><ri:url ri:value=\"http://example.com/a.png\" /></ac:image>", INFO), is(true));
+    }
+
+    @Test public void contentResolvedAgainstTheIncludingPageShouldNotBeShareable() {
+        assertThat(ExportRenderMemo.isShareable("<ac:structured-macro ac:name=\"children\" />", INFO), is(false));
+        assertThat(ExportRenderMemo.isShareable("<ac:image><ri:attachment ri:filename=\"logo.png\" /></ac:image>", INFO), is(false));
+        assertThat(ExportRenderMemo.isShareable("<ac:link><ri:page ri:content-title=\"Terms\" /></ac:link>", INFO), is(false));
+        assertThat(ExportRenderMemo.isShareable("<ac:image><ri:attachment ri:filename=\"logo.png\"><ri:page ri:content-title=\"Terms\" /></ri:attachment></ac:image>", INFO), is(false));
+    }
+
+    @Test public void shareableRendersShouldServeEveryIncludingPage() {
+        memo.put(key(10), "<p>plain</p>", "<p>plain</p>");
+        assertThat(memo.get(key(11)), is("<p>plain</p>"));
+    }
+
+    @Test public void otherRendersShouldOnlyServeTheirIncludingPage() {
+        memo.put(key(10), "<ac:image><ri:attachment ri:filename=\"a.png\" /></ac:image>", "<img>");
+        assertThat(memo.get(key(10)), is("<img>"));
+        assertThat(memo.get(key(11)), is(nullValue()));
+    }
+
+    @Test public void memoShouldLastForTheExportOfOneThread() throws Exception {
+        memo.put(key(10), "<p>plain</p>", "<p>plain</p>");
+
+        ExecutorService other = Executors.newSingleThreadExecutor();
+        try {
+            String elsewhere = other.submit(new Callable<String>() {
+                @Override
+                public String call() {
+                    return memo.get(key(10));
+                }
+            }).get();
+            assertThat(elsewhere, is(nullValue()));
+        } finally {
+            other.shutdown();
+        }
+
+        memo.finish();
+        assertThat(memo.get(key(10)), is(nullValue()));
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright (c) 2017, ServiceRocket Inc
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice,
+ *       this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright notice,
+ *       this list of conditions and the following disclaimer in the documentation
+ *       and/or other materials provided with the distribution.
+ *     * Neither the name of "ServiceRocket Inc" nor the names of its contributors may
+ *       be used to endorse or promote products derived from this software without
+ *       specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package net.customware.confluence.plugin.perimeter;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+public class HtmlOptimizerTest {
+
+    private static final HtmlOptimizer.ImageSizes SIZES = new HtmlOptimizer.ImageSizes() {
+        @Override
+        public int[] get(String fileName) {
+            return "a%20b.png".equals(fileName) ? new int[]{640, 480} : null;
+        }
+    };
+
+    @Test public void whitespaceShouldBeCollapsedOutsidePreformattedElements() {
+        String html = "<p>one   two\n\n  three</p>  \t <pre>  keep\n\n  this </pre>";
+        assertThat(new HtmlOptimizer(1L, SIZES).optimize(html), is("<p>one two\nthree</p> <pre>  keep\n\n  this </pre>"));
+    }
+
+    @Test public void attachmentImagesShouldLoadLazilyWithTheirSize() {
+        String html = "<img class=\"x\" src=\"/download/attachments/1/a%20b.png?version=1\" />";
+        assertThat(new HtmlOptimizer(1L, SIZES).optimize(html),
+                is("<img class=\"x\" src=\"/download/attachments/1/a%20b.png?version=1\" loading=\"lazy\" width=\"640\" height=\"480\" />"));
+    }
+
+    @Test public void imagesWithASizeShouldKeepIt() {
+        String html = "<img src='/download/attachments/1/a%20b.png' height='250'>";
+        assertThat(new HtmlOptimizer(1L, SIZES).optimize(html),
+                is("<img src='/download/attachments/1/a%20b.png' height='250' loading=\"lazy\">"));
+    }
+
+    @Test public void otherImagesShouldBeLeftAlone() {
+        String html = "<img src=\"/download/attachments/2/a%20b.png\"><img src=\"/images/icon.png\">";
+        assertThat(new HtmlOptimizer(1L, SIZES).optimize(html), is(html));
+    }
+
+    @Test public void imageSourcesShouldBeFoundInDocumentOrder() {
+        String html = "<p title=\"<img src='no'>\"><img src='a.png'></p><img alt=\"x\"><IMG SRC=\"b.png?x=1&amp;y=2\"/>";
+        assertThat(HtmlOptimizer.imageSources(html), is(Arrays.asList("a.png", "b.png?x=1&amp;y=2")));
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright (c) 2017, ServiceRocket Inc
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice,
+ *       this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright notice,
+ *       this list of conditions and the following disclaimer in the documentation
+ *       and/or other materials provided with the distribution.
+ *     * Neither the name of "ServiceRocket Inc" nor the names of its contributors may
+ *       be used to endorse or promote products derived from this software without
+ *       specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package net.customware.confluence.plugin.perimeter;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Set;
+
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+public class RenderDiskStoreTest {
+
+    private static final int SEGMENT_BYTES = 4096;
+    private static final Set<Long> NONE = Collections.emptySet();
+
+    @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+    private static SecureIncludeRenderCache.Key key(long targetId, long sourceId, String includeId) {
+        return new SecureIncludeRenderCache.Key(targetId, "admin", sourceId, includeId, null);
+    }
+
+    private RenderDiskStore open(File dir) throws IOException {
+        return RenderDiskStore.open(dir, 4 * SEGMENT_BYTES, SEGMENT_BYTES);
+    }
+
+    @Test public void rendersShouldSurviveReopening() throws IOException {
+        File dir = folder.newFolder();
+        RenderDiskStore store = open(dir);
+        store.put(key(1, 2, "a"), 3, false, NONE, "<p>one</p>");
+        store.put(key(1, 2, "a"), 4, true, NONE, "<p>two</p>");
+        store.put(new SecureIncludeRenderCache.Key(1, "admin", 2, "a", "Heading", 1), 4, false, NONE, "<p>chunk</p>");
+        store.close();
+
+        store = open(dir);
+        RenderDiskStore.Stored stored = store.get(key(1, 2, "a"));
+        assertThat(stored.version, is(4));
+        assertThat(stored.pinned, is(true));
+        assertThat(stored.html, is("<p>two</p>"));
+        assertThat(store.get(new SecureIncludeRenderCache.Key(1, "admin", 2, "a", "Heading", 1)).html, is("<p>chunk</p>"));
+        assertThat(store.size(), is(2));
+    }
+
+    @Test public void removalsShouldSurviveReopening() throws IOException {
+        File dir = folder.newFolder();
+        RenderDiskStore store = open(dir);
+        store.put(key(1, 2, "a"), 1, false, NONE, "<p>a</p>");
+        store.put(key(1, 3, "b"), 1, true, NONE, "<p>b</p>");
+        store.put(key(5, 1, "c"), 1, false, NONE, "<p>c</p>");
+        store.removeContent(1, true);
+        store.close();
+
+        store = open(dir);
+        assertThat(store.get(key(1, 2, "a")), is(nullValue()));
+        assertThat(store.get(key(1, 3, "b")).html, is("<p>b</p>"));
+        assertThat(store.get(key(5, 1, "c")), is(nullValue()));
+    }
+
+    @Test public void oldestSegmentShouldBeCompactedToStayWithinTheCap() throws IOException {
+        File dir = folder.newFolder();
+        RenderDiskStore store = open(dir);
+        store.put(key(1, 1, "kept"), 1, false, NONE, "<p>kept</p>");
+        StringBuilder html = new StringBuilder();
+        while (html.length() < 1000)
+            html.append("<p>filler</p>");
+        for (int i = 0; i < 40; i++)
+            store.put(key(2, 1, "replaced"), i, false, NONE, html.toString());
+        store.close();
+
+        assertThat(dir.list().length <= 4, is(true));
+        store = open(dir);
+        assertThat(store.get(key(1, 1, "kept")).html, is("<p>kept</p>"));
+        assertThat(store.get(key(2, 1, "replaced")).version, is(39));
+        assertThat(store.size(), is(2));
+    }
+
+    @Test public void rendersShouldBeRemovedWithTheirNestedTargets() throws IOException {
+        File dir = folder.newFolder();
+        RenderDiskStore store = open(dir);
+        store.put(key(1, 2, "a"), 1, true, Collections.singleton(7L), "<p>a</p>");
+        store.put(key(1, 3, "b"), 1, true, NONE, "<p>b</p>");
+        store.removeContent(7, true);
+        store.close();
+
+        store = open(dir);
+        assertThat(store.get(key(1, 2, "a")), is(nullValue()));
+        assertThat(store.get(key(1, 3, "b")).nested, is(NONE));
+    }
+}
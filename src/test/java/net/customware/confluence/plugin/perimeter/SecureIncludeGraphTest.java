@@ -0,0 +1,71 @@
+/*
+ * Copyright (c) 2017, ServiceRocket Inc
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice,
+ *       this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright notice,
+ *       this list of conditions and the following disclaimer in the documentation
+ *       and/or other materials provided with the distribution.
+ *     * Neither the name of "ServiceRocket Inc" nor the names of its contributors may
+ *       be used to endorse or promote products derived from this software without
+ *       specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package net.customware.confluence.plugin.perimeter;
+
+import com.atlassian.confluence.content.render.xhtml.ConversionContext;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.mock;
+
+public class SecureIncludeGraphTest {
+
+    private SecureIncludeGraph root;
+
+    @Before public void setUp() {
+        root = SecureIncludeGraph.get(mock(ConversionContext.class));
+    }
+
+    @Test public void truncationIsKeptToTheIncludesAroundIt() {
+        SecureIncludeGraph first = root.enter(1);
+        SecureIncludeGraph nested = first.enter(2);
+        SecureIncludeGraph second = root.enter(3);
+
+        nested.markTruncated();
+
+        assertThat(nested.isTruncated(), is(true));
+        assertThat(first.isTruncated(), is(true));
+        assertThat(root.isTruncated(), is(true));
+        assertThat(second.isTruncated(), is(false));
+    }
+
+    @Test public void nestedCharactersAreCountedOnce() {
+        SecureIncludeGraph outer = root.enter(1);
+        SecureIncludeGraph inner = outer.enter(2);
+
+        // The inner include is counted as it is rendered into the outer one...
+        assertThat(outer.countChars(inner, 100), is(100L));
+        // ...so only what the outer one adds around it is counted when it is rendered into the page.
+        assertThat(root.countChars(outer, 150), is(150L));
+        // Cached includes are counted in full.
+        assertThat(root.countChars(null, 20), is(170L));
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright (c) 2017, ServiceRocket Inc
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice,
+ *       this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright notice,
+ *       this list of conditions and the following disclaimer in the documentation
+ *       and/or other materials provided with the distribution.
+ *     * Neither the name of "ServiceRocket Inc" nor the names of its contributors may
+ *       be used to endorse or promote products derived from this software without
+ *       specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package net.customware.confluence.plugin.perimeter;
+
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.Set;
+
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+public class SecureIncludeRenderCacheTest {
+
+    private static final Set<Long> NONE = Collections.emptySet();
+
+    private final SecureIncludeRenderCache cache = new SecureIncludeRenderCache();
+
+    private static SecureIncludeRenderCache.Key key(long targetId, long sourceId) {
+        return new SecureIncludeRenderCache.Key(targetId, "admin", sourceId, "a", null);
+    }
+
+    @Test public void keysShouldDifferByChunkAndSection() {
+        assertThat(key(1, 2), is(new SecureIncludeRenderCache.Key(1, "admin", 2, "a", null, -1)));
+        assertThat(key(1, 2), is(not(new SecureIncludeRenderCache.Key(1, "admin", 2, "a", null, 0))));
+        assertThat(key(1, 2), is(not(new SecureIncludeRenderCache.Key(1, "admin", 2, "a", "Heading"))));
+    }
+
+    @Test public void otherVersionsShouldMiss() {
+        cache.put(key(1, 2), 3, "<p>a</p>");
+        assertThat(cache.get(key(1, 2), 3), is("<p>a</p>"));
+        assertThat(cache.get(key(1, 2), 4), is(nullValue()));
+    }
+
+    @Test public void updatedTargetShouldGoStaleAndIncludesOfItsPageBeDropped() {
+        cache.put(key(1, 2), 3, "<p>a</p>");
+        cache.put(key(5, 1), 1, "<p>b</p>");
+        cache.markStale(1);
+
+        assertThat(cache.get(key(1, 2), 3), is(nullValue()));
+        assertThat(cache.getStale(key(1, 2), 60000, 0L), is("<p>a</p>"));
+        assertThat(cache.getStale(key(5, 1), 60000, System.currentTimeMillis()), is(nullValue()));
+    }
+
+    @Test public void pinnedRenderShouldOnlyGoStaleWithItsNestedIncludes() {
+        cache.put(key(1, 2), 3, "<p>pinned</p>", true, NONE);
+        cache.put(key(1, 4), 3, "<p>nesting</p>", true, Collections.singleton(7L));
+        cache.markStale(1);
+
+        assertThat(cache.get(key(1, 2), 3), is("<p>pinned</p>"));
+        assertThat(cache.get(key(1, 4), 3), is("<p>nesting</p>"));
+
+        cache.markStale(7);
+        assertThat(cache.get(key(1, 2), 3), is("<p>pinned</p>"));
+        assertThat(cache.get(key(1, 4), 3), is(nullValue()));
+    }
+
+    @Test public void renderShouldFollowItsNestedIncludes() {
+        cache.put(key(1, 2), 3, "<p>a</p>", false, Collections.singleton(7L));
+
+        assertThat(cache.getKeys(7), is(Collections.singletonList(key(1, 2))));
+        assertThat(cache.getNestedTargets(key(1, 2)), is(Collections.singleton(7L)));
+
+        cache.invalidate(7);
+        assertThat(cache.get(key(1, 2), 3), is(nullValue()));
+        assertThat(cache.getSize(), is(0L));
+    }
+
+    @Test public void emptyRendersShouldStillWeighTheirKey() {
+        System.setProperty("perimeter.render.cache.maxChars", String.valueOf(SecureIncludeRenderCache.ENTRY_WEIGHT * 10));
+        try {
+            SecureIncludeRenderCache small = new SecureIncludeRenderCache();
+            for (int chunk = 0; chunk < 100; chunk++)
+                small.put(new SecureIncludeRenderCache.Key(1, "admin", 2, "a", null, chunk), 1, "");
+            assertThat(small.getSize() <= 10, is(true));
+        } finally {
+            System.clearProperty("perimeter.render.cache.maxChars");
+        }
+    }
+}
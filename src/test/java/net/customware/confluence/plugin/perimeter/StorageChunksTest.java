@@ -0,0 +1,59 @@
+/*
+ * Copyright (c) 2017, ServiceRocket Inc
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice,
+ *       this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright notice,
+ *       this list of conditions and the following disclaimer in the documentation
+ *       and/or other materials provided with the distribution.
+ *     * Neither the name of "ServiceRocket Inc" nor the names of its contributors may
+ *       be used to endorse or promote products derived from this software without
+ *       specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package net.customware.confluence.plugin.perimeter;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+public class StorageChunksTest {
+
+    private static final String STORAGE = "<p>one</p><table><tbody><tr><td><p>two</p></td></tr></tbody></table>"
+            + "<ac:structured-macro ac:name=\"toc\" /><!-- <p> --><p>three</p>";
+
+    @Test public void shortStorageShouldBeASingleChunk() {
+        assertThat(StorageChunks.split(STORAGE, STORAGE.length()), is(Collections.singletonList(STORAGE)));
+    }
+
+    @Test public void chunksShouldEndBetweenTopLevelElements() {
+        assertThat(StorageChunks.split(STORAGE, 5), is(Arrays.asList("<p>one</p>",
+                "<table><tbody><tr><td><p>two</p></td></tr></tbody></table>",
+                "<ac:structured-macro ac:name=\"toc\" />", "<!-- <p> --><p>three</p>")));
+    }
+
+    @Test public void chunksShouldHoldAtLeastTheGivenNumberOfCharacters() {
+        assertThat(StorageChunks.split(STORAGE, 40), is(Arrays.asList(
+                "<p>one</p><table><tbody><tr><td><p>two</p></td></tr></tbody></table>",
+                "<ac:structured-macro ac:name=\"toc\" /><!-- <p> --><p>three</p>")));
+    }
+}
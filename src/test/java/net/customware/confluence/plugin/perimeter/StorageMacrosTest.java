@@ -0,0 +1,77 @@
+/*
+ * Copyright (c) 2017, ServiceRocket Inc
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice,
+ *       this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright notice,
+ *       this list of conditions and the following disclaimer in the documentation
+ *       and/or other materials provided with the distribution.
+ *     * Neither the name of "ServiceRocket Inc" nor the names of its contributors may
+ *       be used to endorse or promote products derived from this software without
+ *       specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package net.customware.confluence.plugin.perimeter;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+public class StorageMacrosTest {
+
+    private static final Set<String> NAMES = new HashSet<String>(Arrays.asList("jira", "children"));
+
+    private static final String JIRA = "<ac:structured-macro ac:name=\"jira\"><ac:parameter ac:name=\"key\">A-1</ac:parameter></ac:structured-macro>";
+    private static final String CHILDREN = "<ac:structured-macro ac:name='children' />";
+    private static final String EXPAND = "<ac:structured-macro ac:name=\"expand\"><ac:rich-text-body>"
+            + "<ac:structured-macro ac:name=\"info\"><ac:rich-text-body><p>x</p></ac:rich-text-body></ac:structured-macro>"
+            + JIRA + "</ac:rich-text-body></ac:structured-macro>";
+    private static final String CODE = "<ac:structured-macro ac:name=\"code\"><ac:plain-text-body><![CDATA["
+            + JIRA + "]]></ac:plain-text-body></ac:structured-macro>";
+
+    @Test public void wantedMacrosShouldBeFoundAtAnyDepth() {
+        String storage = "<p>" + JIRA + "</p>" + EXPAND + CHILDREN + CODE;
+        assertThat(definitions(storage), is(Arrays.asList(JIRA, JIRA, CHILDREN)));
+    }
+
+    @Test public void macrosInsideWantedMacrosShouldBeLeftToThem() {
+        String outer = "<ac:structured-macro ac:name=\"children\"><ac:rich-text-body>" + JIRA + "</ac:rich-text-body></ac:structured-macro>";
+        assertThat(definitions(outer + "<p>end</p>"), is(Arrays.asList(outer)));
+    }
+
+    @Test public void macroNameShouldComeFromTheStartTag() {
+        assertThat(StorageMacros.name(JIRA), is("jira"));
+        assertThat(StorageMacros.name(CHILDREN), is("children"));
+        assertThat(StorageMacros.name("<ac:structured-macro><ac:parameter ac:name=\"x\" /></ac:structured-macro>"), is(nullValue()));
+    }
+
+    private static List<String> definitions(String storage) {
+        List<String> definitions = new ArrayList<String>();
+        for (int[] macro : StorageMacros.find(storage, NAMES))
+            definitions.add(storage.substring(macro[0], macro[1]));
+        return definitions;
+    }
+}
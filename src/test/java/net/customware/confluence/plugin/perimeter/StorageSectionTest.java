@@ -0,0 +1,62 @@
+/*
+ * Copyright (c) 2017, ServiceRocket Inc
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice,
+ *       this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright notice,
+ *       this list of conditions and the following disclaimer in the documentation
+ *       and/or other materials provided with the distribution.
+ *     * Neither the name of "ServiceRocket Inc" nor the names of its contributors may
+ *       be used to endorse or promote products derived from this software without
+ *       specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package net.customware.confluence.plugin.perimeter;
+
+import org.junit.Test;
+
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+public class StorageSectionTest {
+
+    private static final String STORAGE = "<p>intro</p><h1>One</h1><p>a</p><h2>Sub &amp; More</h2><p>b</p><h1 id=\"x\">Two</h1><p>c</p>"
+            + "<ac:layout><ac:layout-section><ac:layout-cell><h2>Cell</h2><p>d</p></ac:layout-cell>"
+            + "<ac:layout-cell><p>e</p></ac:layout-cell></ac:layout-section></ac:layout><!-- <h1>Hidden</h1> -->";
+
+    @Test public void sectionShouldIncludeLowerLevelHeadings() {
+        assertThat(StorageSection.extract(STORAGE, "One"), is("<h1>One</h1><p>a</p><h2>Sub &amp; More</h2><p>b</p>"));
+    }
+
+    @Test public void headingShouldMatchIgnoringCaseSpacesAndEntities() {
+        assertThat(StorageSection.extract(STORAGE, "sub&more"), is("<h2>Sub &amp; More</h2><p>b</p>"));
+    }
+
+    @Test public void lastSectionShouldRunToTheEndOfThePage() {
+        assertThat(StorageSection.extract(STORAGE, "Two"), is(STORAGE.substring(STORAGE.indexOf("<h1 id"))));
+    }
+
+    @Test public void sectionShouldEndWithTheElementHoldingIt() {
+        assertThat(StorageSection.extract(STORAGE, "Cell"), is("<h2>Cell</h2><p>d</p>"));
+    }
+
+    @Test public void headingsInCommentsShouldBeIgnored() {
+        assertThat(StorageSection.extract(STORAGE, "Hidden"), is(nullValue()));
+    }
+}
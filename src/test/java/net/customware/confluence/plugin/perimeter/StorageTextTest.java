@@ -0,0 +1,59 @@
+/*
+ * Copyright (c) 2017, ServiceRocket Inc
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice,
+ *       this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright notice,
+ *       this list of conditions and the following disclaimer in the documentation
+ *       and/or other materials provided with the distribution.
+ *     * Neither the name of "ServiceRocket Inc" nor the names of its contributors may
+ *       be used to endorse or promote products derived from this software without
+ *       specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package net.customware.confluence.plugin.perimeter;
+
+import org.junit.Test;
+
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+public class StorageTextTest {
+
+    @Test public void plainTextShouldLeaveOutMarkupAndMacroParameters() {
+        String storage = "<p>Hello <strong>Bo</strong>ld&nbsp;world</p><ac:structured-macro ac:name=\"info\">"
+                + "<ac:parameter ac:name=\"title\">Title</ac:parameter><ac:rich-text-body><p>Inside</p></ac:rich-text-body>"
+                + "</ac:structured-macro><table><tr><td>a</td><td>b</td></tr></table>";
+        assertThat(StorageText.plainText(storage, 300), is("Hello Bold world Inside a b"));
+    }
+
+    @Test public void plainTextShouldBeCutAtAWordBoundary() {
+        assertThat(StorageText.plainText("<p>one two three four</p>", 10), is("one two..."));
+    }
+
+    @Test public void excerptShouldBeTheBodyOfTheExcerptMacro() {
+        String storage = "<p>x</p><ac:structured-macro ac:name=\"excerpt\"><ac:rich-text-body><p>Ex <em>cerpt</em></p>"
+                + "</ac:rich-text-body></ac:structured-macro><p>after</p>";
+        assertThat(StorageText.excerpt(storage), is("<p>Ex <em>cerpt</em></p>"));
+    }
+
+    @Test public void pageWithoutExcerptShouldHaveNone() {
+        assertThat(StorageText.excerpt("<p>x</p>"), is(nullValue()));
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright (c) 2017, ServiceRocket Inc
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ *     * Redistributions of source code must retain the above copyright notice,
+ *       this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright notice,
+ *       this list of conditions and the following disclaimer in the documentation
+ *       and/or other materials provided with the distribution.
+ *     * Neither the name of "ServiceRocket Inc" nor the names of its contributors may
+ *       be used to endorse or promote products derived from this software without
+ *       specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package net.customware.confluence.plugin.perimeter;
+
+import com.atlassian.confluence.macro.MacroExecutionException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+public class TargetRenderGuardTest {
+
+    private static final String[] PROPERTIES = {"render.timeout.millis", "render.timeout.threads",
+            "render.timeout.queueSize", "render.bulkhead.perTarget", "render.bulkhead.waitMillis"};
+
+    private final CountDownLatch blocked = new CountDownLatch(1);
+    private TargetRenderGuard guard;
+
+    @Before public void setUp() {
+        System.setProperty("perimeter.render.timeout.millis", "100");
+        System.setProperty("perimeter.render.timeout.threads", "1");
+        System.setProperty("perimeter.render.timeout.queueSize", "1");
+        System.setProperty("perimeter.render.bulkhead.perTarget", "1");
+        System.setProperty("perimeter.render.bulkhead.waitMillis", "10");
+        guard = new TargetRenderGuard();
+    }
+
+    @After public void tearDown() throws Exception {
+        blocked.countDown();
+        guard.destroy();
+        for (String property : PROPERTIES)
+            System.clearProperty("perimeter." + property);
+    }
+
+    @Test public void rendersTimingOutInTheQueueShouldGiveTheirPermitBack() throws Exception {
+        // Keep the only deadline thread busy, so the next render waits in the queue until it times out.
+        timeOut(1L, new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                blocked.await();
+                return "slow";
+            }
+        });
+        timeOut(2L, rendering("queued"));
+
+        assertThat(guard.getAvailablePermits(1L), is(0));
+        assertThat(guard.getAvailablePermits(2L), is(1));
+
+        blocked.countDown();
+        assertThat(guard.render(2L, rendering("fast"), true), is("fast"));
+    }
+
+    private void timeOut(long targetId, Callable<String> conversion) throws MacroExecutionException {
+        try {
+            guard.render(targetId, conversion, true);
+            fail("Expected the render of " + targetId + " to time out");
+        } catch (SecureIncludeUnavailableException e) {
+            assertThat(e.getMessage().contains("took more than"), is(true));
+        }
+    }
+
+    private static Callable<String> rendering(final String html) {
+        return new Callable<String>() {
+            @Override
+            public String call() {
+                return html;
+            }
+        };
+    }
+}